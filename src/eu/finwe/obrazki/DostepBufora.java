@@ -0,0 +1,292 @@
+package eu.finwe.obrazki;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Bezpośredni dostęp do tablic z danymi obrazu dla dwóch najczęstszych
+ * układów pikseli:
+ *
+ * 1. piksele upakowane w int (TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_INT_BGR...)
+ * 2. próbki 8-bitowe przeplatane w jednej tablicy bajtów (TYPE_3BYTE_BGR,
+ *    TYPE_4BYTE_ABGR, TYPE_BYTE_GRAY, TYPE_BYTE_INDEXED...)
+ *
+ * Uwzględnia przesunięcia rastra (obrazy z getSubimage()), krok wiersza
+ * i przesunięcie w DataBuffer, więc indeks(x, y) wskazuje właściwy piksel
+ * także w obrazach będących widokami fragmentu innego obrazu.
+ *
+ * Dla pozostałych układów rodzaj == INNY i trzeba skorzystać z metod
+ * rastra (getPixels() itp.).
+ *
+ * Wołanie getData() na DataBuffer wyłącza akcelerację sprzętową obrazu,
+ * ale dla obrazów przetwarzanych programowo nie ma to znaczenia.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+final class DostepBufora {
+
+    static final int INNY = 0;
+    static final int INT_PAKOWANY = 1;
+    static final int BAJT_PRZEPLATANY = 2;
+
+    /** jeden z: INNY, INT_PAKOWANY, BAJT_PRZEPLATANY */
+    final int rodzaj;
+
+    final int szerokosc;
+    final int wysokosc;
+    final int liczbaPasm;
+
+    /** dane dla INT_PAKOWANY */
+    final int [] daneInt;
+    /** dane dla BAJT_PRZEPLATANY */
+    final byte [] daneBajt;
+
+    /** indeks piksela (0, 0) w tablicy danych */
+    final int poczatek;
+    /** odległość (w elementach tablicy) między kolejnymi wierszami */
+    final int krokWiersza;
+    /** odległość (w elementach tablicy) między kolejnymi pikselami */
+    final int krokPiksela;
+
+    /** INT_PAKOWANY: maski i przesunięcia bitowe kolejnych pasm */
+    final int [] maski;
+    final int [] przesuniecia;
+
+    /** BAJT_PRZEPLATANY: położenie próbek kolejnych pasm w pikselu */
+    final int [] przesunieciaPasm;
+
+    /**
+     * true, jeśli pasma to 8-bitowe R, G, B i ewentualnie A (bez
+     * przemnożenia) w przestrzeni sRGB - wtedy wierszArgb() nie musi
+     * korzystać z modelu kolorów
+     */
+    final boolean srgb8;
+
+    private final BufferedImage obraz;
+
+    private DostepBufora(BufferedImage im)
+    {
+        obraz = im;
+        srgb8 = czySrgb8(im);
+
+        WritableRaster r = im.getRaster();
+        SampleModel sm = r.getSampleModel();
+        DataBuffer db = r.getDataBuffer();
+
+        szerokosc = im.getWidth();
+        wysokosc = im.getHeight();
+        liczbaPasm = r.getNumBands();
+
+        // współrzędne (0, 0) rastra we współrzędnych modelu próbek
+        int x0 = -r.getSampleModelTranslateX();
+        int y0 = -r.getSampleModelTranslateY();
+
+        if (sm instanceof SinglePixelPackedSampleModel
+                && db instanceof DataBufferInt && db.getNumBanks() == 1)
+        {
+            SinglePixelPackedSampleModel spp = (SinglePixelPackedSampleModel) sm;
+
+            rodzaj = INT_PAKOWANY;
+            daneInt = ((DataBufferInt) db).getData();
+            daneBajt = null;
+            poczatek = db.getOffset() + spp.getOffset(x0, y0);
+            krokWiersza = spp.getScanlineStride();
+            krokPiksela = 1;
+            maski = spp.getBitMasks();
+            przesuniecia = spp.getBitOffsets();
+            przesunieciaPasm = null;
+            return;
+        }
+
+        if (sm instanceof ComponentSampleModel
+                && db instanceof DataBufferByte && db.getNumBanks() == 1)
+        {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+
+            rodzaj = BAJT_PRZEPLATANY;
+            daneInt = null;
+            daneBajt = ((DataBufferByte) db).getData();
+            krokWiersza = csm.getScanlineStride();
+            krokPiksela = csm.getPixelStride();
+            // csm.getOffset() wlicza już przesunięcie pasma 0, więc liczymy sami
+            poczatek = db.getOffset() + y0 * krokWiersza + x0 * krokPiksela;
+            maski = null;
+            przesuniecia = null;
+            przesunieciaPasm = csm.getBandOffsets();
+            return;
+        }
+
+        rodzaj = INNY;
+        daneInt = null;
+        daneBajt = null;
+        poczatek = 0;
+        krokWiersza = 0;
+        krokPiksela = 0;
+        maski = null;
+        przesuniecia = null;
+        przesunieciaPasm = null;
+    }
+
+    private static boolean czySrgb8(BufferedImage im)
+    {
+        ColorModel cm = im.getColorModel();
+        int pasma = im.getRaster().getNumBands();
+
+        if (cm.isAlphaPremultiplied() || (pasma != 3 && pasma != 4)
+                || pasma != cm.getNumComponents())
+            return false;
+        if (!(cm instanceof DirectColorModel || cm instanceof ComponentColorModel))
+            return false;
+        if (!cm.getColorSpace().isCS_sRGB())
+            return false;
+
+        for (int b = 0; b < pasma; b++)
+            if (cm.getComponentSize(b) != 8 || im.getSampleModel().getSampleSize(b) != 8)
+                return false;
+
+        return cm.getColorSpace().getType() == ColorSpace.TYPE_RGB;
+    }
+
+    /**
+     * Czyta wiersz y obrazu jako piksele ARGB (jak getRGB()), dla obrazów
+     * 8-bitowych sRGB wprost z tablicy danych
+     *
+     * @param y numer wiersza
+     * @param wiersz tablica na co najmniej szerokosc pikseli
+     */
+    void wierszArgb(int y, int [] wiersz)
+    {
+        if (srgb8 && rodzaj == INT_PAKOWANY)
+        {
+            int i = indeks(0, y);
+            boolean alfa = (liczbaPasm == 4);
+            for (int x = 0; x < szerokosc; x++, i++)
+            {
+                int p = daneInt[i];
+                int a = alfa ? (p & maski[3]) >>> przesuniecia[3] : 0xff;
+                wiersz[x] = (a << 24)
+                        | (((p & maski[0]) >>> przesuniecia[0]) << 16)
+                        | (((p & maski[1]) >>> przesuniecia[1]) << 8)
+                        | ((p & maski[2]) >>> przesuniecia[2]);
+            }
+            return;
+        }
+
+        if (srgb8 && rodzaj == BAJT_PRZEPLATANY)
+        {
+            int i = indeks(0, y);
+            int [] pp = przesunieciaPasm;
+            boolean alfa = (liczbaPasm == 4);
+            for (int x = 0; x < szerokosc; x++, i += krokPiksela)
+            {
+                int a = alfa ? daneBajt[i + pp[3]] & 0xff : 0xff;
+                wiersz[x] = (a << 24)
+                        | ((daneBajt[i + pp[0]] & 0xff) << 16)
+                        | ((daneBajt[i + pp[1]] & 0xff) << 8)
+                        | (daneBajt[i + pp[2]] & 0xff);
+            }
+            return;
+        }
+
+        obraz.getRGB(0, y, szerokosc, 1, wiersz, 0, szerokosc);
+    }
+
+    /**
+     * Zapisuje wiersz y obrazu z pikseli ARGB (jak setRGB()), dla obrazów
+     * 8-bitowych sRGB wprost do tablicy danych
+     *
+     * @param y numer wiersza
+     * @param wiersz tablica z co najmniej szerokosc pikseli
+     */
+    void zapiszWierszArgb(int y, int [] wiersz)
+    {
+        if (srgb8 && rodzaj == INT_PAKOWANY)
+        {
+            int i = indeks(0, y);
+            boolean alfa = (liczbaPasm == 4);
+            for (int x = 0; x < szerokosc; x++, i++)
+            {
+                int p = wiersz[x];
+                int q = ((((p >> 16) & 0xff) << przesuniecia[0]) & maski[0])
+                        | ((((p >> 8) & 0xff) << przesuniecia[1]) & maski[1])
+                        | (((p & 0xff) << przesuniecia[2]) & maski[2]);
+                if (alfa)
+                    q |= ((p >>> 24) << przesuniecia[3]) & maski[3];
+                daneInt[i] = q;
+            }
+            return;
+        }
+
+        if (srgb8 && rodzaj == BAJT_PRZEPLATANY)
+        {
+            int i = indeks(0, y);
+            int [] pp = przesunieciaPasm;
+            boolean alfa = (liczbaPasm == 4);
+            for (int x = 0; x < szerokosc; x++, i += krokPiksela)
+            {
+                int p = wiersz[x];
+                daneBajt[i + pp[0]] = (byte) (p >> 16);
+                daneBajt[i + pp[1]] = (byte) (p >> 8);
+                daneBajt[i + pp[2]] = (byte) p;
+                if (alfa)
+                    daneBajt[i + pp[3]] = (byte) (p >>> 24);
+            }
+            return;
+        }
+
+        obraz.setRGB(0, y, szerokosc, 1, wiersz, 0, szerokosc);
+    }
+
+    /**
+     * Opisuje układ danych obrazu
+     *
+     * @param im obraz
+     * @return opis; rodzaj == INNY, jeśli układ nie jest obsługiwany bezpośrednio
+     */
+    static DostepBufora z(BufferedImage im)
+    {
+        return new DostepBufora(im);
+    }
+
+    /**
+     * @param x kolumna obrazu
+     * @param y wiersz obrazu
+     * @return indeks pierwszego elementu piksela (x, y) w tablicy danych
+     */
+    int indeks(int x, int y)
+    {
+        return poczatek + y * krokWiersza + x * krokPiksela;
+    }
+
+    /**
+     * @param a pierwszy opis
+     * @param b drugi opis
+     * @return true, jeśli oba obrazy mają identyczny układ pikseli
+     *         (poza położeniem w tablicy), więc można między nimi
+     *         przepisywać elementy tablic bez konwersji
+     */
+    static boolean zgodne(DostepBufora a, DostepBufora b)
+    {
+        if (a.rodzaj != b.rodzaj || a.rodzaj == INNY)
+            return false;
+        if (a.liczbaPasm != b.liczbaPasm || a.krokPiksela != b.krokPiksela)
+            return false;
+
+        if (a.rodzaj == INT_PAKOWANY)
+            return Arrays.equals(a.maski, b.maski);
+
+        return Arrays.equals(a.przesunieciaPasm, b.przesunieciaPasm);
+    }
+}
@@ -4,12 +4,15 @@ package eu.finwe.obrazki;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.Point2D;
-//import java.awt.geom.Rectangle2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImageOp;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 //import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Klasa abstrakcyjna ułatwiająca implementację interfejsu BufferedImageOp
@@ -142,23 +145,232 @@ abstract class Filtr implements BufferedImageOp {
         
         WritableRaster retWR = destCM.createCompatibleWritableRaster(rct.width, rct.height);
         
-        BufferedImage ret  = new BufferedImage(destCM, retWR, false, null);
+        // false dla modelu z alfą przemnożoną zmieniłoby model kolorów wyniku
+        BufferedImage ret  = new BufferedImage(destCM, retWR, destCM.isAlphaPremultiplied(), null);
          
         return ret;
     }
 
 
+    /** wskazówki podane przy tworzeniu filtra lub null */
+    private RenderingHints wskazowki = null;
+
+    /**
+     * Ustawia wskazówki wyboru między szybkością a jakością (zob. Wskazowki)
+     *
+     * @param wskazowki wskazówki lub null - zachowanie domyślne
+     * @since 0.4
+     */
+    void ustawWskazowki(RenderingHints wskazowki)
+    {
+        this.wskazowki = (wskazowki == null) ? null : (RenderingHints) wskazowki.clone();
+    }
+
+    /**
+     * @return wskazówki podane przy tworzeniu filtra lub null
+     * @since 0.4
+     */
+    protected RenderingHints wskazowki()
+    {
+        return wskazowki;
+    }
+
+    /**
+     * Informuje, czy filtr przepróbkowuje obraz (i stosuje wskazówki
+     * interpolacji). Klasy pochodne, które to robią, powinny ją przesłonić.
+     *
+     * @return true, jeśli filtr interpoluje piksele
+     * @since 0.4
+     */
+    protected boolean przeprobkowuje()
+    {
+        return false;
+    }
+
     /**
      * Returns the rendering hints for this operation.
      * 
-     * @return The RenderingHints object for this BufferedImageOp. Returns null if no hints have been set.
+     * Zwraca wskazówki faktycznie stosowane przez filtr: podane przy jego
+     * tworzeniu, uzupełnione o rozstrzygnięte wartości domyślne, więc nigdy
+     * nie jest to null.
+     * 
+     * @return The RenderingHints object for this BufferedImageOp.
      */
     @Override
     public RenderingHints getRenderingHints()
+    {
+        return Wskazowki.skuteczne(wskazowki, przeprobkowuje());
+    }
+
+
+    /* filtracja asynchroniczna */
+
+    /**
+     * Liczba wierszy obrazu wynikowego liczonych jednorazowo przez
+     * filterAsync(); pomiędzy pasami sprawdzane jest anulowanie zadania
+     *
+     * @since 0.4
+     */
+    protected static final int WIERSZY_W_PASIE = 32;
+
+    /**
+     * Informuje, czy filtr potrafi liczyć obraz wynikowy pasami wierszy
+     * (metodą filtrujPas()). Klasy pochodne, które to potrafią, powinny
+     * przesłonić obie metody.
+     *
+     * @return true, jeśli filtrujPas() jest zaimplementowana
+     * @since 0.4
+     */
+    protected boolean obslugujePasy()
+    {
+        return false;
+    }
+
+    /**
+     * Liczy wiersze [odWiersza, doWiersza) obrazu wynikowego dest.
+     * Obraz dest musi mieć wymiary zgodne z getBounds2D(src).
+     *
+     * @param src obraz źródłowy
+     * @param dest obraz docelowy
+     * @param odWiersza pierwszy liczony wiersz obrazu docelowego
+     * @param doWiersza wiersz za ostatnim liczonym wierszem obrazu docelowego
+     * @since 0.4
+     */
+    protected void filtrujPas(BufferedImage src, BufferedImage dest,
+            int odWiersza, int doWiersza)
+    {
+        throw new UnsupportedOperationException("Ten filtr nie liczy obrazu pasami");
+    }
+
+    /**
+     * Wyznacza fragment obrazu wynikowego, który może się zmienić po zmianie
+     * fragmentu zmiana obrazu src (dla przeliczania przyrostowego, zob.
+     * LancuchPrzyrostowy). Fragment wyniku przeliczany jest wtedy pasami
+     * wierszy przez filtrujPas(), więc ma to sens tylko dla filtrów, które
+     * je obsługują i których wynik zależy tylko od sąsiedztwa piksela.
+     *
+     * @param src obraz źródłowy (już zmieniony)
+     * @param zmiana zmieniony fragment obrazu src
+     * @return fragment obrazu wynikowego (może wykraczać poza obraz) lub
+     *         null, jeśli zmienić może się cały wynik
+     * @since 0.4
+     */
+    protected Rectangle obszarWyniku(BufferedImage src, Rectangle zmiana)
     {
         return null;
     }
 
-    
-    
+    /**
+     * Jak filterAsync(src, dest, executor, null)
+     *
+     * @param src obraz źródłowy
+     * @param dest obraz docelowy lub null
+     * @param executor wykonawca zadania filtracji
+     * @return przyszły wynik filtracji
+     * @since 0.4
+     */
+    public CompletableFuture<BufferedImage> filterAsync(BufferedImage src,
+            BufferedImage dest, Executor executor)
+    {
+        return filterAsync(src, dest, executor, null);
+    }
+
+    /**
+     * Asynchroniczna wersja filter(). Filtracja wykonywana jest przez podany
+     * executor, a wynik (obraz dest lub nowy obraz, jeśli dest == null)
+     * dostarczany przez zwrócony obiekt CompletableFuture.
+     *
+     * Anulowanie zwróconego zadania (cancel()) jest sprawdzane pomiędzy
+     * pasami wierszy, więc przerwanie następuje najpóźniej po policzeniu
+     * bieżącego pasa. Filtry, które nie liczą obrazu pasami, sprawdzają
+     * anulowanie tylko przed rozpoczęciem pracy.
+     *
+     * Wynik jest taki sam jak z filter(): obraz dest o złych wymiarach
+     * odrzucany jest od razu, a dla dest z paletą inną niż model src pasy
+     * liczone są w modelu src i kwantyzowane na końcu (z rozpraszaniem
+     * błędu według wskazówek).
+     *
+     * @param src obraz źródłowy
+     * @param dest obraz docelowy lub null
+     * @param executor wykonawca zadania filtracji
+     * @param postep odbiorca informacji o postępie lub null
+     * @return przyszły wynik filtracji
+     * @throws IllegalArgumentException gdy wymiary dest nie pasują do getBounds2D(src)
+     * @since 0.4
+     */
+    public CompletableFuture<BufferedImage> filterAsync(final BufferedImage src,
+            BufferedImage dest, Executor executor, final PostepFiltra postep)
+    {
+        Rectangle2D wymiary = (dest == null) ? null : getBounds2D(src);
+        if (wymiary != null && (dest.getWidth() != (int) wymiary.getWidth()
+                || dest.getHeight() != (int) wymiary.getHeight()))
+            throw new IllegalArgumentException("wymiary obrazów nie pasują");
+
+        final BufferedImage cel = (dest == null) ?
+                createCompatibleDestImage(src, null) : dest;
+        // pasy do obrazu z paletą - w modelu src, kwantyzacja na końcu jak w filter()
+        final BufferedImage pasy = (obslugujePasy() && Util.przezPalete(src, cel))
+                ? Util.czystyObraz(src.getColorModel(), cel.getWidth(), cel.getHeight()) : cel;
+        final CompletableFuture<BufferedImage> wynik =
+                new CompletableFuture<BufferedImage>();
+
+        Runnable zadanie = new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    int h = cel.getHeight();
+
+                    if (!obslugujePasy())
+                    {
+                        if (wynik.isDone())
+                            return;
+                        filter(src, cel);
+                    }
+                    else
+                    {
+                        for (int y = 0; y < h; y += WIERSZY_W_PASIE)
+                        {
+                            // ktoś anulował - nie ma sensu liczyć dalej
+                            if (wynik.isDone())
+                                return;
+
+                            int doY = Math.min(h, y + WIERSZY_W_PASIE);
+                            filtrujPas(src, pasy, y, doY);
+
+                            if (postep != null && doY < h)
+                                postep.postep(doY, h);
+                        }
+
+                        if (pasy != cel)
+                        {
+                            if (wynik.isDone())
+                                return;
+                            Util.kopiujW(pasy, cel, wskazowki());
+                        }
+                    }
+
+                    if (postep != null)
+                        postep.postep(h, h);
+
+                    wynik.complete(cel);
+                }
+                catch (Throwable t)
+                {
+                    wynik.completeExceptionally(t);
+                }
+            }
+        };
+
+        try {
+            executor.execute(zadanie);
+        }
+        catch (RejectedExecutionException e)
+        {
+            wynik.completeExceptionally(e);
+        }
+
+        return wynik;
+    }
+
 }
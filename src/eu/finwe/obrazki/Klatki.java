@@ -0,0 +1,216 @@
+package eu.finwe.obrazki;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Przetwarzanie plików wieloklatkowych (animowane GIF, wielostronicowe TIFF)
+ * klatka po klatce.
+ *
+ * Klatki czytane są pojedynczo przez ImageReader, przepuszczane przez
+ * łańcuch filtrów i od razu zapisywane przez ImageWriter w trybie sekwencji,
+ * więc w pamięci znajduje się tylko kilka klatek naraz, niezależnie od
+ * długości pliku. Metadane klatek (opóźnienia, sposób usuwania, położenie)
+ * przenoszone są do pliku wynikowego.
+ *
+ * Uwaga: metadane klatek GIF opisują m.in. położenie klatki na ekranie
+ * logicznym, więc filtry zmieniające wymiary (np. SKALUJ) dadzą poprawny
+ * wynik tylko dla animacji, których wszystkie klatki są pełnej wielkości.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public final class Klatki {
+
+    private Klatki()
+    {
+    }
+
+    /**
+     * Jak przetworz(wejscie, wyjscie, format, lancuch, null, 1) - klatki
+     * przetwarzane są kolejno w bieżącym wątku
+     *
+     * @param wejscie plik wejściowy
+     * @param wyjscie plik wynikowy (zostanie nadpisany)
+     * @param format nazwa formatu wynikowego, np. "gif" lub "tiff"
+     * @param lancuch filtry stosowane kolejno do każdej klatki
+     * @return liczba przetworzonych klatek
+     * @throws IOException w przypadku błędu odczytu lub zapisu
+     */
+    public static int przetworz(File wejscie, File wyjscie, String format,
+            BufferedImageOp ... lancuch) throws IOException
+    {
+        return przetworz(wejscie, wyjscie, format, lancuch, null, 1);
+    }
+
+    /**
+     * Czyta kolejne klatki pliku wejscie, stosuje do nich łańcuch filtrów
+     * i zapisuje wyniki jako sekwencję w pliku wyjscie.
+     *
+     * Jeśli podano wykonawcę, do wToku klatek przetwarzanych jest
+     * równolegle (filtry muszą więc dać się używać z wielu wątków naraz);
+     * klatki zapisywane są zawsze w kolejności z pliku wejściowego.
+     *
+     * @param wejscie plik wejściowy
+     * @param wyjscie plik wynikowy (zostanie nadpisany)
+     * @param format nazwa formatu wynikowego, np. "gif" lub "tiff"
+     * @param lancuch filtry stosowane kolejno do każdej klatki
+     * @param executor wykonawca przetwarzania klatek lub null
+     * @param wToku największa liczba klatek przetwarzanych jednocześnie
+     * @return liczba przetworzonych klatek
+     * @throws IOException w przypadku błędu odczytu lub zapisu lub gdy
+     *         format wynikowy nie obsługuje sekwencji obrazów
+     */
+    public static int przetworz(File wejscie, File wyjscie, String format,
+            final BufferedImageOp [] lancuch, Executor executor, int wToku)
+            throws IOException
+    {
+        if (wToku < 1)
+            throw new IllegalArgumentException("liczba klatek w toku powinna być dodatnia");
+
+        ImageInputStream we = ImageIO.createImageInputStream(wejscie);
+        if (we == null)
+            throw new IOException("nie można otworzyć pliku " + wejscie);
+
+        ImageReader czytnik = null;
+        ImageWriter pisarz = null;
+        ImageOutputStream wy = null;
+
+        try {
+            Iterator<ImageReader> czytniki = ImageIO.getImageReaders(we);
+            if (!czytniki.hasNext())
+                throw new IOException("nieznany format pliku " + wejscie);
+            czytnik = czytniki.next();
+            // tylko do przodu - czytnik nie musi pamiętać poprzednich klatek
+            czytnik.setInput(we, true, false);
+
+            Iterator<ImageWriter> pisarze = ImageIO.getImageWritersByFormatName(format);
+            if (!pisarze.hasNext())
+                throw new IOException("nieznany format " + format);
+            pisarz = pisarze.next();
+            if (!pisarz.canWriteSequence())
+                throw new IOException("format " + format + " nie obsługuje sekwencji obrazów");
+
+            // FileImageOutputStream nie skraca istniejącego pliku
+            if (wyjscie.exists() && !wyjscie.delete())
+                throw new IOException("nie można nadpisać pliku " + wyjscie);
+            wy = ImageIO.createImageOutputStream(wyjscie);
+            pisarz.setOutput(wy);
+
+            IIOMetadata metadaneStrumienia = czytnik.getStreamMetadata();
+            if (metadaneStrumienia != null)
+                metadaneStrumienia = pisarz.convertStreamMetadata(metadaneStrumienia, null);
+            pisarz.prepareWriteSequence(metadaneStrumienia);
+
+            // klatki w toku, w kolejności z pliku
+            ArrayDeque<CompletableFuture<BufferedImage>> wyniki =
+                    new ArrayDeque<CompletableFuture<BufferedImage>>();
+            ArrayDeque<IIOMetadata> metadane = new ArrayDeque<IIOMetadata>();
+            int liczba = 0;
+
+            for (int i = 0; ; i++)
+            {
+                IIOImage klatka;
+                try {
+                    klatka = czytnik.readAll(i, null);
+                }
+                catch (IndexOutOfBoundsException e)
+                {
+                    // nie ma więcej klatek
+                    break;
+                }
+
+                final BufferedImage obraz = (BufferedImage) klatka.getRenderedImage();
+                Supplier<BufferedImage> praca = new Supplier<BufferedImage>() {
+                    @Override
+                    public BufferedImage get()
+                    {
+                        return filtruj(obraz, lancuch);
+                    }
+                };
+
+                if (executor == null)
+                    wyniki.add(CompletableFuture.completedFuture(praca.get()));
+                else
+                    wyniki.add(CompletableFuture.supplyAsync(praca, executor));
+                metadane.add(klatka.getMetadata());
+                liczba++;
+
+                if (wyniki.size() >= wToku)
+                    zapiszKlatke(pisarz, wyniki.poll(), metadane.poll());
+            }
+
+            while (!wyniki.isEmpty())
+                zapiszKlatke(pisarz, wyniki.poll(), metadane.poll());
+
+            pisarz.endWriteSequence();
+            return liczba;
+        }
+        finally {
+            if (czytnik != null)
+                czytnik.dispose();
+            if (pisarz != null)
+                pisarz.dispose();
+            if (wy != null)
+                wy.close();
+            we.close();
+        }
+    }
+
+    private static BufferedImage filtruj(BufferedImage obraz, BufferedImageOp [] lancuch)
+    {
+        for (BufferedImageOp op : lancuch)
+            obraz = op.filter(obraz, null);
+        return obraz;
+    }
+
+    /**
+     * Czeka na wynik przetwarzania klatki i zapisuje go jako kolejny obraz
+     * sekwencji, z metadanymi przekształconymi do formatu pisarza
+     */
+    private static void zapiszKlatke(ImageWriter pisarz,
+            CompletableFuture<BufferedImage> wynik, IIOMetadata metadane)
+            throws IOException
+    {
+        BufferedImage obraz;
+        try {
+            obraz = wynik.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("przerwano przetwarzanie klatek", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            throw new IOException(t);
+        }
+
+        if (metadane != null)
+            metadane = pisarz.convertImageMetadata(metadane,
+                    ImageTypeSpecifier.createFromRenderedImage(obraz), null);
+
+        pisarz.writeToSequence(new IIOImage(obraz, null, metadane), null);
+    }
+}
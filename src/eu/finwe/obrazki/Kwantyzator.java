@@ -0,0 +1,644 @@
+package eu.finwe.obrazki;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Kwantyzacja kolorów dla obrazów z paletą (TYPE_BYTE_INDEXED, GIF).
+ *
+ * Zamiast szukać najbliższego koloru palety osobno dla każdego piksela
+ * (tak robi setRGB() dla IndexColorModel), piksele mapowane są przez
+ * tablicę odwrotną: dla każdej komórki sześcianu RGB o boku 4 poziomów
+ * zapamiętany jest najbliższy kolor palety. Tablica liczona jest raz dla
+ * palety (równolegle) i przechowywana w pamięci podręcznej, w której
+ * kluczem są kolory palety - IndexColorModel.equals() w Javie 8 ich nie
+ * porównuje, a kolejne klatki GIF-a mają osobne obiekty tej samej palety.
+ *
+ * Paletę dla obrazu można wyznaczyć metodą median cut (paleta()) na
+ * podstawie histogramu kolorów liczonego w jednym, równoległym przebiegu.
+ *
+ * Indeksy zapisywane są wprost do tablicy danych obrazu docelowego.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public final class Kwantyzator {
+
+    /**
+     * Sposób rozpraszania błędu kwantyzacji (ditheringu)
+     */
+    public static enum Rozpraszanie
+    {
+        /** najbliższy kolor palety - najszybciej, ale z widocznymi pasami */
+        BRAK,
+        /** macierz Bayera 8x8 - szybko, równolegle, regularny wzór */
+        UPORZADKOWANE,
+        /** dyfuzja błędu Floyda-Steinberga - najlepiej, ale sekwencyjnie */
+        FLOYD_STEINBERG;
+    }
+
+    /** bity na kanał w histogramie kolorów (median cut) */
+    private static final int BITY_HISTOGRAMU = 5;
+    /** bity na kanał w tablicy odwrotnej */
+    private static final int BITY_ODWROTNEJ = 6;
+
+    /** próg alfa, poniżej którego piksel uznawany jest za przezroczysty */
+    private static final int PROG_ALFA = 128;
+
+    private static final int [] BAYER = {
+         0, 32,  8, 40,  2, 34, 10, 42,
+        48, 16, 56, 24, 50, 18, 58, 26,
+        12, 44,  4, 36, 14, 46,  6, 38,
+        60, 28, 52, 20, 62, 30, 54, 22,
+         3, 35, 11, 43,  1, 33,  9, 41,
+        51, 19, 59, 27, 49, 17, 57, 25,
+        15, 47,  7, 39, 13, 45,  5, 37,
+        63, 31, 55, 23, 61, 29, 53, 21,
+    };
+
+    /** ile tablic odwrotnych (po 256 KB) trzymać w pamięci */
+    private static final int MAKS_ODWROTNYCH = 16;
+
+    /** tablice odwrotne ostatnio używanych palet; chronione przez siebie */
+    private static final Map<Paleta, byte []> odwrotne =
+            new LinkedHashMap<Paleta, byte []>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Paleta, byte []> najstarszy)
+                {
+                    return size() > MAKS_ODWROTNYCH;
+                }
+            };
+
+    /**
+     * Klucz pamięci tablic odwrotnych: kolory palety
+     */
+    private static final class Paleta
+    {
+        final int [] kolory;
+        final int hash;
+
+        Paleta(int [] kolory)
+        {
+            this.kolory = kolory;
+            this.hash = Arrays.hashCode(kolory);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return (o instanceof Paleta) && Arrays.equals(kolory, ((Paleta) o).kolory);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    private Kwantyzator()
+    {
+    }
+
+    /**
+     * Tworzy nowy obraz TYPE_BYTE_INDEXED z paletą dobraną do obrazu
+     *
+     * @param src obraz źródłowy
+     * @param liczbaKolorow liczba kolorów palety, od 2 do 256
+     * @param rozpraszanie sposób rozpraszania błędu
+     * @return nowy obraz z paletą
+     */
+    public static BufferedImage kwantyzuj(final BufferedImage src, int liczbaKolorow,
+            Rozpraszanie rozpraszanie)
+    {
+        IndexColorModel icm = paleta(src, liczbaKolorow);
+        WritableRaster wr = icm.createCompatibleWritableRaster(src.getWidth(), src.getHeight());
+        BufferedImage ret = new BufferedImage(icm, wr, false, null);
+
+        mapuj(src, ret, rozpraszanie);
+        return ret;
+    }
+
+    /**
+     * Wyznacza paletę dla obrazu metodą median cut. Jeśli obraz ma
+     * przezroczyste piksele, jeden z kolorów palety jest przezroczysty.
+     *
+     * @param src obraz
+     * @param liczbaKolorow największa liczba kolorów palety, od 2 do 256
+     * @return paleta 8-bitowa
+     */
+    public static IndexColorModel paleta(final BufferedImage src, int liczbaKolorow)
+    {
+        if (liczbaKolorow < 2 || liczbaKolorow > 256)
+            throw new IllegalArgumentException("liczba kolorów powinna należeć do [2, 256]");
+
+        final int komorki = 1 << (3 * BITY_HISTOGRAMU);
+        final int w = src.getWidth();
+        int h = src.getHeight();
+        final DostepBufora bufor = DostepBufora.z(src);
+
+        // histogram i sumy kolorów - osobne dla każdego pasa, ale pasów
+        // nie więcej niż wątków, bo każdy zajmuje prawie 1MB
+        int n = Math.min(Rownolegle.liczbaPasow(w, h), ForkJoinPool.getCommonPoolParallelism());
+        final int [][] liczby = new int[n][komorki];
+        final long [][][] sumy = new long[n][3][komorki];
+        final long [] przezroczyste = new long[n];
+
+        Rownolegle.wykonaj(n, h, new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odWiersza, int doWiersza)
+            {
+                int [] ile = liczby[nrPasa];
+                long [] sr = sumy[nrPasa][0];
+                long [] sg = sumy[nrPasa][1];
+                long [] sb = sumy[nrPasa][2];
+                int [] wiersz = new int[w];
+                int bez = 8 - BITY_HISTOGRAMU;
+
+                for (int y = odWiersza; y < doWiersza; y++)
+                {
+                    bufor.wierszArgb(y, wiersz);
+                    for (int x = 0; x < w; x++)
+                    {
+                        int p = wiersz[x];
+                        if ((p >>> 24) < PROG_ALFA)
+                        {
+                            przezroczyste[nrPasa]++;
+                            continue;
+                        }
+                        int r = (p >> 16) & 0xff;
+                        int g = (p >> 8) & 0xff;
+                        int b = p & 0xff;
+                        int k = ((r >> bez) << (2 * BITY_HISTOGRAMU))
+                                | ((g >> bez) << BITY_HISTOGRAMU) | (b >> bez);
+                        ile[k]++;
+                        sr[k] += r;
+                        sg[k] += g;
+                        sb[k] += b;
+                    }
+                }
+            }
+        });
+
+        // sumujemy do tablic pierwszego pasa
+        int [] ile = liczby[0];
+        long [][] suma = sumy[0];
+        long ilePrzezroczystych = przezroczyste[0];
+        for (int i = 1; i < n; i++)
+        {
+            for (int k = 0; k < komorki; k++)
+            {
+                ile[k] += liczby[i][k];
+                suma[0][k] += sumy[i][0][k];
+                suma[1][k] += sumy[i][1][k];
+                suma[2][k] += sumy[i][2][k];
+            }
+            ilePrzezroczystych += przezroczyste[i];
+        }
+
+        int kolorow = (ilePrzezroczystych > 0) ? liczbaKolorow - 1 : liczbaKolorow;
+        List<Pudelko> pudelka = medianCut(ile, kolorow);
+
+        int rozmiar = pudelka.size() + ((ilePrzezroczystych > 0) ? 1 : 0);
+        // paleta nie może być pusta (obraz całkiem przezroczysty)
+        rozmiar = Math.max(rozmiar, 2);
+        byte [] r = new byte[rozmiar];
+        byte [] g = new byte[rozmiar];
+        byte [] b = new byte[rozmiar];
+        byte [] a = new byte[rozmiar];
+
+        int i = 0;
+        for (Pudelko p : pudelka)
+        {
+            long sr = 0, sg = 0, sb = 0, s = 0;
+            for (int kr = p.od[0]; kr <= p.do_[0]; kr++)
+                for (int kg = p.od[1]; kg <= p.do_[1]; kg++)
+                    for (int kb = p.od[2]; kb <= p.do_[2]; kb++)
+                    {
+                        int k = (kr << (2 * BITY_HISTOGRAMU)) | (kg << BITY_HISTOGRAMU) | kb;
+                        s += ile[k];
+                        sr += suma[0][k];
+                        sg += suma[1][k];
+                        sb += suma[2][k];
+                    }
+            r[i] = (byte) ((sr + s / 2) / s);
+            g[i] = (byte) ((sg + s / 2) / s);
+            b[i] = (byte) ((sb + s / 2) / s);
+            a[i] = (byte) 0xff;
+            i++;
+        }
+        for (; i < rozmiar; i++)
+            a[i] = (ilePrzezroczystych > 0) ? 0 : (byte) 0xff;
+
+        int bity = 1;
+        while ((1 << bity) < rozmiar)
+            bity++;
+
+        if (ilePrzezroczystych > 0)
+            return new IndexColorModel(bity, rozmiar, r, g, b, rozmiar - 1);
+        return new IndexColorModel(bity, rozmiar, r, g, b);
+    }
+
+    /** prostopadłościan w histogramie kolorów; granice włącznie */
+    private static final class Pudelko
+    {
+        final int [] od = new int[3];
+        final int [] do_ = new int[3];
+        long liczba;
+
+        int najdluzszyBok()
+        {
+            int bok = 0;
+            for (int c = 1; c < 3; c++)
+                if (do_[c] - od[c] > do_[bok] - od[bok])
+                    bok = c;
+            return bok;
+        }
+
+        /** zawęża granice do niepustych komórek i liczy piksele */
+        void zawez(int [] ile)
+        {
+            int [] min = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE };
+            int [] max = { -1, -1, -1 };
+            liczba = 0;
+
+            for (int kr = od[0]; kr <= do_[0]; kr++)
+                for (int kg = od[1]; kg <= do_[1]; kg++)
+                    for (int kb = od[2]; kb <= do_[2]; kb++)
+                    {
+                        long n = ile[(kr << (2 * BITY_HISTOGRAMU)) | (kg << BITY_HISTOGRAMU) | kb];
+                        if (n == 0)
+                            continue;
+                        liczba += n;
+                        min[0] = Math.min(min[0], kr);
+                        max[0] = Math.max(max[0], kr);
+                        min[1] = Math.min(min[1], kg);
+                        max[1] = Math.max(max[1], kg);
+                        min[2] = Math.min(min[2], kb);
+                        max[2] = Math.max(max[2], kb);
+                    }
+
+            if (liczba > 0)
+                for (int c = 0; c < 3; c++)
+                {
+                    od[c] = min[c];
+                    do_[c] = max[c];
+                }
+        }
+    }
+
+    private static List<Pudelko> medianCut(int [] ile, int kolorow)
+    {
+        List<Pudelko> pudelka = new ArrayList<Pudelko>();
+        Pudelko cale = new Pudelko();
+        for (int c = 0; c < 3; c++)
+            cale.do_[c] = (1 << BITY_HISTOGRAMU) - 1;
+        cale.zawez(ile);
+        if (cale.liczba == 0)
+            return pudelka;
+        pudelka.add(cale);
+
+        while (pudelka.size() < kolorow)
+        {
+            // dzielimy pudełko z największą liczbą pikseli i długością boku
+            Pudelko naj = null;
+            double najWynik = 0;
+            for (Pudelko p : pudelka)
+            {
+                int bok = p.najdluzszyBok();
+                double wynik = (double) p.liczba * (p.do_[bok] - p.od[bok]);
+                if (wynik > najWynik)
+                {
+                    najWynik = wynik;
+                    naj = p;
+                }
+            }
+            // wszystkie pudełka to pojedyncze komórki
+            if (naj == null)
+                break;
+
+            int bok = naj.najdluzszyBok();
+
+            // mediana liczby pikseli wzdłuż najdłuższego boku
+            long [] rzut = new long[naj.do_[bok] - naj.od[bok] + 1];
+            for (int kr = naj.od[0]; kr <= naj.do_[0]; kr++)
+                for (int kg = naj.od[1]; kg <= naj.do_[1]; kg++)
+                    for (int kb = naj.od[2]; kb <= naj.do_[2]; kb++)
+                    {
+                        int kBok = (bok == 0) ? kr : (bok == 1 ? kg : kb);
+                        rzut[kBok - naj.od[bok]] +=
+                                ile[(kr << (2 * BITY_HISTOGRAMU)) | (kg << BITY_HISTOGRAMU) | kb];
+                    }
+
+            long polowa = naj.liczba / 2;
+            long suma = 0;
+            int podzial = naj.od[bok];
+            for (int i = 0; i < rzut.length - 1; i++)
+            {
+                suma += rzut[i];
+                podzial = naj.od[bok] + i;
+                if (suma >= polowa)
+                    break;
+            }
+
+            Pudelko drugie = new Pudelko();
+            for (int c = 0; c < 3; c++)
+            {
+                drugie.od[c] = naj.od[c];
+                drugie.do_[c] = naj.do_[c];
+            }
+            naj.do_[bok] = podzial;
+            drugie.od[bok] = podzial + 1;
+
+            naj.zawez(ile);
+            drugie.zawez(ile);
+            if (drugie.liczba > 0)
+                pudelka.add(drugie);
+        }
+
+        return pudelka;
+    }
+
+    /**
+     * Zapisuje obraz src w obrazie dst z paletą kolorów (o tych samych
+     * wymiarach), korzystając z tablicy odwrotnej palety. Palety większe
+     * niż 256 kolorów obsługiwane są przez setRGB().
+     *
+     * @param src obraz źródłowy
+     * @param dst obraz docelowy z IndexColorModel
+     * @param rozpraszanie sposób rozpraszania błędu
+     */
+    public static void mapuj(final BufferedImage src, final BufferedImage dst,
+            Rozpraszanie rozpraszanie)
+    {
+        if (!(dst.getColorModel() instanceof IndexColorModel))
+            throw new IllegalArgumentException("obraz docelowy powinien mieć paletę kolorów");
+
+        final int w = src.getWidth();
+        int h = src.getHeight();
+        if (w != dst.getWidth() || h != dst.getHeight())
+            throw new IllegalArgumentException("wymiary obrazów nie pasują");
+
+        final IndexColorModel icm = (IndexColorModel) dst.getColorModel();
+        if (icm.getMapSize() > 256)
+        {
+            int [] wiersz = new int[w];
+            for (int y = 0; y < h; y++)
+            {
+                src.getRGB(0, y, w, 1, wiersz, 0, w);
+                dst.setRGB(0, y, w, 1, wiersz, 0, w);
+            }
+            return;
+        }
+
+        final byte [] tab = odwrotna(icm);
+        final int przezroczysty = icm.getTransparentPixel();
+        final DostepBufora zr = DostepBufora.z(src);
+        final DostepBufora cel = DostepBufora.z(dst);
+
+        if (rozpraszanie == Rozpraszanie.FLOYD_STEINBERG)
+        {
+            mapujFS(zr, cel, dst.getRaster(), icm, tab, przezroczysty);
+            return;
+        }
+
+        final boolean bayer = (rozpraszanie == Rozpraszanie.UPORZADKOWANE);
+        // amplituda szumu ~ odległość między sąsiednimi kolorami palety
+        final int amplituda = (int) Math.round(256 / Math.cbrt(icm.getMapSize()));
+        final WritableRaster dr = dst.getRaster();
+
+        Rownolegle.wykonaj(Rownolegle.liczbaPasow(w, h), h, new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odWiersza, int doWiersza)
+            {
+                int [] wiersz = new int[w];
+                int [] indeksy = new int[w];
+
+                for (int y = odWiersza; y < doWiersza; y++)
+                {
+                    zr.wierszArgb(y, wiersz);
+                    for (int x = 0; x < w; x++)
+                    {
+                        int p = wiersz[x];
+                        if (przezroczysty >= 0 && (p >>> 24) < PROG_ALFA)
+                        {
+                            indeksy[x] = przezroczysty;
+                            continue;
+                        }
+                        int r = (p >> 16) & 0xff;
+                        int g = (p >> 8) & 0xff;
+                        int b = p & 0xff;
+                        if (bayer)
+                        {
+                            int d = (BAYER[((y & 7) << 3) | (x & 7)] - 32) * amplituda / 64;
+                            r = obetnij(r + d);
+                            g = obetnij(g + d);
+                            b = obetnij(b + d);
+                        }
+                        indeksy[x] = tab[komorka(r, g, b)] & 0xff;
+                    }
+                    zapiszWiersz(cel, dr, y, indeksy);
+                }
+            }
+        });
+    }
+
+    /** dyfuzja błędu Floyda-Steinberga - wiersze muszą iść po kolei */
+    private static void mapujFS(DostepBufora zr, DostepBufora cel, WritableRaster dr,
+            IndexColorModel icm, byte [] tab, int przezroczysty)
+    {
+        int w = zr.szerokosc;
+        int h = zr.wysokosc;
+        int [] wiersz = new int[w];
+        int [] indeksy = new int[w];
+
+        // błędy (x16) dla bieżącego i następnego wiersza, z marginesem po 1
+        int [][] biezacy = new int[3][w + 2];
+        int [][] nastepny = new int[3][w + 2];
+
+        int [] paleta = new int[icm.getMapSize()];
+        icm.getRGBs(paleta);
+
+        // kolor z błędem i kolor wybrany z palety - wspólne dla wszystkich pikseli
+        int [] c = new int[3];
+        int [] wybrany = new int[3];
+
+        for (int y = 0; y < h; y++)
+        {
+            zr.wierszArgb(y, wiersz);
+
+            for (int x = 0; x < w; x++)
+            {
+                int p = wiersz[x];
+                if (przezroczysty >= 0 && (p >>> 24) < PROG_ALFA)
+                {
+                    indeksy[x] = przezroczysty;
+                    continue;
+                }
+
+                c[0] = obetnij(((p >> 16) & 0xff) + (biezacy[0][x + 1] + 8) / 16);
+                c[1] = obetnij(((p >> 8) & 0xff) + (biezacy[1][x + 1] + 8) / 16);
+                c[2] = obetnij((p & 0xff) + (biezacy[2][x + 1] + 8) / 16);
+
+                int i = tab[komorka(c[0], c[1], c[2])] & 0xff;
+                indeksy[x] = i;
+
+                int q = paleta[i];
+                wybrany[0] = (q >> 16) & 0xff;
+                wybrany[1] = (q >> 8) & 0xff;
+                wybrany[2] = q & 0xff;
+                for (int k = 0; k < 3; k++)
+                {
+                    int blad = c[k] - wybrany[k];
+                    biezacy[k][x + 2] += blad * 7;
+                    nastepny[k][x] += blad * 3;
+                    nastepny[k][x + 1] += blad * 5;
+                    nastepny[k][x + 2] += blad;
+                }
+            }
+
+            zapiszWiersz(cel, dr, y, indeksy);
+
+            int [][] t = biezacy;
+            biezacy = nastepny;
+            nastepny = t;
+            for (int k = 0; k < 3; k++)
+                Arrays.fill(nastepny[k], 0);
+        }
+    }
+
+    private static void zapiszWiersz(DostepBufora cel, WritableRaster dr, int y, int [] indeksy)
+    {
+        if (cel.rodzaj == DostepBufora.BAJT_PRZEPLATANY && cel.liczbaPasm == 1)
+        {
+            byte [] dane = cel.daneBajt;
+            int i = cel.indeks(0, y);
+            for (int x = 0; x < cel.szerokosc; x++, i += cel.krokPiksela)
+                dane[i] = (byte) indeksy[x];
+        }
+        else
+            dr.setSamples(0, y, cel.szerokosc, 1, 0, indeksy);
+    }
+
+    /**
+     * Zamienia wiersz pikseli ARGB na indeksy palety icm (do 256 kolorów)
+     * przez tablicę odwrotną, bez rozpraszania błędu - dla operacji, które
+     * same zapisują indeksy do obrazu z paletą (np. Mieszanie w miejscu)
+     *
+     * @param icm paleta o co najwyżej 256 kolorach
+     * @param tab tablica odwrotna palety icm, zob. odwrotna()
+     * @param argb piksele ARGB z alfą nieprzemnożoną
+     * @param indeksy tablica na indeksy, co najmniej tak długa jak argb
+     */
+    static void indeksyWiersza(IndexColorModel icm, byte [] tab, int [] argb, int [] indeksy)
+    {
+        int przezroczysty = icm.getTransparentPixel();
+        for (int x = 0; x < argb.length; x++)
+        {
+            int p = argb[x];
+            if (przezroczysty >= 0 && (p >>> 24) < PROG_ALFA)
+                indeksy[x] = przezroczysty;
+            else
+                indeksy[x] = tab[komorka((p >> 16) & 0xff, (p >> 8) & 0xff, p & 0xff)] & 0xff;
+        }
+    }
+
+    private static int obetnij(int v)
+    {
+        return (v < 0) ? 0 : (v > 255 ? 255 : v);
+    }
+
+    private static int komorka(int r, int g, int b)
+    {
+        int bez = 8 - BITY_ODWROTNEJ;
+        return ((r >> bez) << (2 * BITY_ODWROTNEJ)) | ((g >> bez) << BITY_ODWROTNEJ) | (b >> bez);
+    }
+
+    /**
+     * Tablica odwrotna palety: dla każdej komórki sześcianu RGB indeks
+     * najbliższego (nieprzezroczystego) koloru palety
+     *
+     * @param icm paleta o co najwyżej 256 kolorach
+     */
+    static byte [] odwrotna(final IndexColorModel icm)
+    {
+        if (icm.getMapSize() > 256)
+            throw new IllegalArgumentException("paleta ma więcej niż 256 kolorów");
+
+        final int rozmiar = icm.getMapSize();
+        final int [] paleta = new int[rozmiar];
+        icm.getRGBs(paleta);
+        Paleta klucz = new Paleta(paleta);
+
+        synchronized (odwrotne)
+        {
+            byte [] tab = odwrotne.get(klucz);
+            if (tab != null)
+                return tab;
+        }
+
+        // kolory, które biorą udział w wyszukiwaniu
+        int ile = 0;
+        final int [] kandydaci = new int[rozmiar];
+        for (int i = 0; i < rozmiar; i++)
+            if ((paleta[i] >>> 24) >= PROG_ALFA)
+                kandydaci[ile++] = i;
+        // paleta bez kolorów nieprzezroczystych - bierzemy wszystkie
+        if (ile == 0)
+            for (int i = 0; i < rozmiar; i++)
+                kandydaci[ile++] = i;
+        final int liczbaKandydatow = ile;
+
+        final int poziomy = 1 << BITY_ODWROTNEJ;
+        final int bez = 8 - BITY_ODWROTNEJ;
+        final byte [] tab = new byte[poziomy * poziomy * poziomy];
+
+        // równolegle po wartościach czerwieni
+        Rownolegle.wykonaj(poziomy, poziomy, new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odWiersza, int doWiersza)
+            {
+                int srodek = 1 << (bez - 1);
+                for (int kr = odWiersza; kr < doWiersza; kr++)
+                    for (int kg = 0; kg < poziomy; kg++)
+                        for (int kb = 0; kb < poziomy; kb++)
+                        {
+                            int r = (kr << bez) + srodek;
+                            int g = (kg << bez) + srodek;
+                            int b = (kb << bez) + srodek;
+                            int naj = kandydaci[0];
+                            int najOdl = Integer.MAX_VALUE;
+                            for (int j = 0; j < liczbaKandydatow; j++)
+                            {
+                                int q = paleta[kandydaci[j]];
+                                int dr = r - ((q >> 16) & 0xff);
+                                int dg = g - ((q >> 8) & 0xff);
+                                int db = b - (q & 0xff);
+                                int odl = dr * dr + dg * dg + db * db;
+                                if (odl < najOdl)
+                                {
+                                    najOdl = odl;
+                                    naj = kandydaci[j];
+                                }
+                            }
+                            tab[(kr << (2 * BITY_ODWROTNEJ)) | (kg << BITY_ODWROTNEJ) | kb] = (byte) naj;
+                        }
+            }
+        });
+
+        synchronized (odwrotne)
+        {
+            odwrotne.put(klucz, tab);
+        }
+        return tab;
+    }
+}
@@ -0,0 +1,246 @@
+package eu.finwe.obrazki;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.awt.image.LookupOp;
+import java.awt.image.RescaleOp;
+import java.awt.image.WritableRaster;
+
+/**
+ * Łańcuch filtrów przeliczany przyrostowo: po zmianie małego fragmentu
+ * obrazu źródłowego (np. pociągnięcie pędzlem w edytorze) przeliczane są
+ * tylko te fragmenty wyników kolejnych filtrów, które mogły się zmienić.
+ *
+ * Łańcuch pamięta obraz źródłowy i wyniki wszystkich filtrów. Zmieniony
+ * fragment przenoszony jest przez kolejne filtry:
+ *
+ * 1. LookupOp, RescaleOp, ColorConvertOp - ten sam fragment (operacje
+ *    na pojedynczych pikselach); liczony wprost do fragmentu wyniku
+ * 2. ConvolveOp - fragment powiększony o zasięg jądra (z uwzględnieniem
+ *    jego środka); liczony z fragmentu źródła powiększonego o margines
+ *    i przepisywany do wyniku bez marginesu, więc brzegi fragmentu
+ *    nie są traktowane jak brzegi obrazu
+ * 3. AffineTransformOp - obraz fragmentu (powiększonego o zasięg
+ *    interpolacji) po przekształceniu; liczony przesuniętym
+ *    przekształceniem wprost do fragmentu wyniku
+ * 4. filtry z dajFiltr(), które liczą wynik pasami wierszy (odbicia,
+ *    obroty, wycinanie, skalowanie przez powielanie pikseli) - fragment
+ *    z Filtr.obszarWyniku(); przeliczane są całe wiersze fragmentu
+ * 5. pozostałe operacje (np. AUTO_POZIOMY, który zależy od histogramu
+ *    całego obrazu) - przeliczane w całości, przez co zmienia się cały
+ *    wynik i wszystkie kolejne filtry też muszą go przeliczyć w całości
+ *
+ * Wynik przeliczania przyrostowego jest taki sam jak przeliczenia
+ * całego łańcucha, z jednym wyjątkiem: AffineTransformOp z interpolacją
+ * zaokrągla inaczej zależnie od początku obrazu docelowego, więc przy
+ * przekształceniach innych niż przesunięcia i skale całkowite piksele
+ * przeliczonego fragmentu mogą różnić się o 1. Każdy wynik pośredni
+ * zajmuje pamięć przez cały czas życia łańcucha.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public final class LancuchPrzyrostowy {
+
+    private final BufferedImageOp [] lancuch;
+    /** wyniki kolejnych filtrów; wyniki[i] to wejście filtra i + 1 */
+    private final BufferedImage [] wyniki;
+    private BufferedImage zrodlo = null;
+
+    /**
+     * @param lancuch filtry stosowane kolejno do obrazu źródłowego
+     */
+    public LancuchPrzyrostowy(BufferedImageOp ... lancuch)
+    {
+        this.lancuch = lancuch.clone();
+        wyniki = new BufferedImage[lancuch.length];
+    }
+
+    /**
+     * Przelicza cały łańcuch dla obrazu zrodlo. Obraz jest zapamiętywany
+     * (nie kopiowany) - późniejsze zmiany jego fragmentów należy zgłaszać
+     * przez przelicz(Rectangle).
+     *
+     * @param zrodlo obraz źródłowy
+     * @return wynik ostatniego filtra (obraz zrodlo dla pustego łańcucha)
+     */
+    public BufferedImage przelicz(BufferedImage zrodlo)
+    {
+        this.zrodlo = zrodlo;
+
+        BufferedImage obraz = zrodlo;
+        for (int i = 0; i < lancuch.length; i++)
+        {
+            wyniki[i] = lancuch[i].filter(obraz, null);
+            obraz = wyniki[i];
+        }
+
+        return obraz;
+    }
+
+    /**
+     * Przelicza fragmenty wyników, na które wpływa zmiana fragmentu
+     * zmiana obrazu źródłowego. Wyniki zmieniane są w miejscu, więc
+     * obraz zwrócony przez wynik() pozostaje ten sam.
+     *
+     * @param zmiana zmieniony fragment obrazu źródłowego
+     * @return fragment wyniku ostatniego filtra, który mógł się zmienić
+     *         (pusty, jeśli żaden), np. do odświeżenia ekranu
+     */
+    public Rectangle przelicz(Rectangle zmiana)
+    {
+        if (zrodlo == null)
+            throw new IllegalStateException("łańcuch nie był jeszcze przeliczony");
+
+        BufferedImage wej = zrodlo;
+        Rectangle obszar = zmiana.intersection(granice(wej));
+
+        for (int i = 0; i < lancuch.length && !obszar.isEmpty(); i++)
+        {
+            obszar = przeliczKrok(lancuch[i], wej, wyniki[i], obszar);
+            wej = wyniki[i];
+        }
+
+        return obszar.isEmpty() ? new Rectangle() : obszar;
+    }
+
+    /**
+     * @return wynik ostatniego filtra
+     */
+    public BufferedImage wynik()
+    {
+        if (zrodlo == null)
+            throw new IllegalStateException("łańcuch nie był jeszcze przeliczony");
+
+        return (wyniki.length == 0) ? zrodlo : wyniki[wyniki.length - 1];
+    }
+
+    private static Rectangle granice(BufferedImage im)
+    {
+        return new Rectangle(im.getWidth(), im.getHeight());
+    }
+
+    /**
+     * Przelicza fragment wyniku op, na który wpływa zmiana fragmentu wej
+     *
+     * @return zmieniony fragment wyniku, przycięty do jego wymiarów
+     */
+    private static Rectangle przeliczKrok(BufferedImageOp op, BufferedImage wej,
+            BufferedImage wyj, Rectangle zmiana)
+    {
+        Rectangle cale = granice(wyj);
+
+        if (op instanceof LookupOp || op instanceof RescaleOp || op instanceof ColorConvertOp)
+        {
+            Rectangle o = zmiana.intersection(cale);
+            if (!o.isEmpty())
+                op.filter(wej.getSubimage(o.x, o.y, o.width, o.height),
+                        wyj.getSubimage(o.x, o.y, o.width, o.height));
+            return o;
+        }
+
+        if (op instanceof ConvolveOp)
+            return przeliczSplot((ConvolveOp) op, wej, wyj, zmiana);
+
+        if (op instanceof AffineTransformOp)
+            return przeliczPrzeksztalcenie((AffineTransformOp) op, wej, wyj, zmiana);
+
+        if (op instanceof Filtr && ((Filtr) op).obslugujePasy())
+        {
+            Filtr f = (Filtr) op;
+            Rectangle o = f.obszarWyniku(wej, zmiana);
+            if (o != null)
+            {
+                o = o.intersection(cale);
+                if (!o.isEmpty())
+                    f.filtrujPas(wej, wyj, o.y, o.y + o.height);
+                return o;
+            }
+        }
+
+        op.filter(wej, wyj);
+        return cale;
+    }
+
+    /**
+     * Piksel (x, y) wyniku splotu zależy od pikseli źródła od
+     * (x - xOrigin, y - yOrigin) do (x - xOrigin + w - 1, y - yOrigin + h - 1)
+     */
+    private static Rectangle przeliczSplot(ConvolveOp op, BufferedImage wej,
+            BufferedImage wyj, Rectangle zmiana)
+    {
+        Kernel k = op.getKernel();
+        int xo = k.getXOrigin();
+        int yo = k.getYOrigin();
+        int kw = k.getWidth();
+        int kh = k.getHeight();
+
+        Rectangle o = new Rectangle(zmiana.x - (kw - 1 - xo), zmiana.y - (kh - 1 - yo),
+                zmiana.width + kw - 1, zmiana.height + kh - 1).intersection(granice(wyj));
+        if (o.isEmpty())
+            return o;
+
+        // źródło z marginesem - poza brzegami obrazu tak samo jak dla całości
+        Rectangle z = new Rectangle(o.x - xo, o.y - yo, o.width + kw - 1, o.height + kh - 1)
+                .intersection(granice(wej));
+        BufferedImage tmp = op.filter(wycinek(wej, z), null);
+
+        wyj.getRaster().setDataElements(o.x, o.y, tmp.getRaster().createChild(
+                o.x - z.x, o.y - z.y, o.width, o.height, 0, 0, null));
+        return o;
+    }
+
+    /**
+     * Kopia fragmentu obrazu we własnym, zwartym rastrze. ConvolveOp
+     * (biblioteka natywna) kopiuje cały DataBuffer widoku z getSubimage(),
+     * czyli cały obraz, z którego pochodzi.
+     */
+    private static BufferedImage wycinek(BufferedImage im, Rectangle r)
+    {
+        WritableRaster wr = im.getRaster().createCompatibleWritableRaster(r.width, r.height);
+        wr.setDataElements(0, 0, im.getRaster().createChild(r.x, r.y, r.width, r.height, 0, 0, null));
+
+        return new BufferedImage(im.getColorModel(), wr, im.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Fragment wyniku to obraz zmienionego fragmentu powiększonego o zasięg
+     * interpolacji; liczony jest przekształceniem przesuniętym o jego róg,
+     * wprost do widoku fragmentu wyniku
+     */
+    private static Rectangle przeliczPrzeksztalcenie(AffineTransformOp op, BufferedImage wej,
+            BufferedImage wyj, Rectangle zmiana)
+    {
+        int zasieg;
+        switch (op.getInterpolationType())
+        {
+            case AffineTransformOp.TYPE_BICUBIC:
+                zasieg = 2;
+                break;
+            default:
+                zasieg = 1;
+        }
+
+        Rectangle z = new Rectangle(zmiana);
+        z.grow(zasieg, zasieg);
+        AffineTransform t = op.getTransform();
+        Rectangle o = t.createTransformedShape(z).getBounds();
+        o.grow(1, 1);
+        o = o.intersection(granice(wyj));
+        if (o.isEmpty())
+            return o;
+
+        AffineTransform przesuniete = AffineTransform.getTranslateInstance(-o.x, -o.y);
+        przesuniete.concatenate(t);
+        new AffineTransformOp(przesuniete, op.getInterpolationType())
+                .filter(wej, wyj.getSubimage(o.x, o.y, o.width, o.height));
+
+        return o;
+    }
+}
@@ -0,0 +1,464 @@
+package eu.finwe.obrazki;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Mieszanie (kompozycja) dwóch obrazów: obraz górny nakładany jest na
+ * dolny (source-over) z jednym z rozdzielnych trybów mieszania kolorów
+ * (zob. Tryb). W odróżnieniu od Util.mnoz() kanał alfa nie jest
+ * mieszany jak kolor: wynikowa alfa to as + ab - as * ab, a kolor
+ *
+ *      co = cs * (1 - ab) + cb * (1 - as) + as * ab * B(Cb, Cs)
+ *
+ * gdzie cs, cb to kolory z alfą przemnożoną, a Cs, Cb - bez niej.
+ * Dla obrazów nieprzezroczystych zostaje samo B(Cb, Cs).
+ *
+ * Liczone jest na pikselach ARGB z alfą przemnożoną, 8 bitów na kanał,
+ * równolegle pasami wierszy. Obrazy TYPE_INT_ARGB_PRE, TYPE_INT_ARGB
+ * i TYPE_INT_RGB czytane i zapisywane są wprost z tablic danych (dla
+ * _PRE bez żadnej konwersji), pozostałe - wierszami przez
+ * DostepBufora.wierszArgb().
+ *
+ * Mieszanie można ograniczyć do prostokątnego obszaru obrazu dolnego
+ * (np. znak wodny w rogu zdjęcia) - wtedy praca zależy tylko od wielkości
+ * obszaru, a mieszajWMiejscu() nie kopiuje niczego. W obrębie obszaru
+ * można dodatkowo podać maskę: jej alfa (dla masek bez alfy, np.
+ * TYPE_BYTE_BINARY, TYPE_BYTE_GRAY - jasność) mnoży krycie obrazu górnego,
+ * więc piksele o masce 0 pozostają bez zmian.
+ *
+ * Obraz dolny z paletą (do 256 kolorów) zmieniany w miejscu dostaje
+ * indeksy z tablicy odwrotnej palety (zob. Kwantyzator), tylko dla
+ * pikseli, które mieszanie zmienia.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public final class Mieszanie {
+
+    /**
+     * Tryb mieszania kolorów B(Cb, Cs) (Cb - kolor dolny, Cs - górny)
+     */
+    public enum Tryb
+    {
+        /** Cb * Cs - zawsze ciemniej */
+        MNOZENIE,
+        /** Cb + Cs - Cb * Cs - zawsze jaśniej */
+        EKRAN,
+        /** mnożenie dla ciemnych Cb, ekran dla jasnych - wzmacnia kontrast */
+        NAKLADKA,
+        /** min(Cb, Cs) */
+        CIEMNIEJSZE,
+        /** max(Cb, Cs) */
+        JASNIEJSZE,
+        /** sqrt(Cb * Cs) - jak Util.mnoz() dla obrazów nieprzezroczystych */
+        SREDNIA_GEOMETRYCZNA
+    }
+
+    /* układy pikseli czytane wprost z tablicy danych */
+    private static final int INNY = 0;
+    private static final int ARGB_PRZEMNOZONY = 1;
+    private static final int ARGB = 2;
+    private static final int RGB = 3;
+    /** obraz z paletą do 256 kolorów, zapisywany indeksami (tylko w miejscu) */
+    private static final int PALETA = 4;
+
+    private Mieszanie()
+    {
+    }
+
+    /**
+     * Nakłada obraz gora na obraz dol
+     *
+     * @param dol obraz dolny
+     * @param gora obraz górny, o wymiarach obrazu dol
+     * @param tryb tryb mieszania
+     * @return nowy obraz w modelu kolorów obrazu dol
+     */
+    public static BufferedImage mieszaj(BufferedImage dol, BufferedImage gora, Tryb tryb)
+    {
+        if (dol.getWidth() != gora.getWidth() || dol.getHeight() != gora.getHeight())
+            throw new IllegalArgumentException("wymiary obrazów nie pasują");
+
+        ColorModel cm = dol.getColorModel();
+
+        // zapis przez setRGB() do obrazu z paletą szukałby koloru dla każdego
+        // piksela - lepiej policzyć w ARGB i skwantyzować całość
+        if (cm instanceof IndexColorModel)
+        {
+            BufferedImage tmp = new BufferedImage(dol.getWidth(), dol.getHeight(),
+                    BufferedImage.TYPE_INT_ARGB_PRE);
+            mieszajW(dol, gora, null, tmp, tryb);
+            return Util.dopasujTyp(dol, tmp);
+        }
+
+        WritableRaster wr = cm.createCompatibleWritableRaster(dol.getWidth(), dol.getHeight());
+        BufferedImage ret = new BufferedImage(cm, wr, cm.isAlphaPremultiplied(), null);
+        mieszajW(dol, gora, null, ret, tryb);
+
+        return ret;
+    }
+
+    /**
+     * Nakłada obraz gora na fragment obszar obrazu dol
+     *
+     * @param dol obraz dolny
+     * @param gora obraz górny, o wymiarach obszaru
+     * @param tryb tryb mieszania
+     * @param obszar położenie obrazu gora w obrazie dol
+     * @return nowy obraz - kopia obrazu dol ze zmienionym obszarem
+     */
+    public static BufferedImage mieszaj(BufferedImage dol, BufferedImage gora, Tryb tryb,
+            Rectangle obszar)
+    {
+        return mieszaj(dol, gora, tryb, obszar, null);
+    }
+
+    /**
+     * Nakłada obraz gora na fragment obszar obrazu dol z krycie zmienionym
+     * przez maskę
+     *
+     * @param dol obraz dolny
+     * @param gora obraz górny, o wymiarach obszaru
+     * @param tryb tryb mieszania
+     * @param obszar położenie obrazu gora w obrazie dol
+     * @param maska maska o wymiarach obszaru lub null - bez maski
+     * @return nowy obraz - kopia obrazu dol ze zmienionym obszarem
+     * @since 0.4
+     */
+    public static BufferedImage mieszaj(BufferedImage dol, BufferedImage gora, Tryb tryb,
+            Rectangle obszar, BufferedImage maska)
+    {
+        sprawdzObszar(dol, gora, obszar, maska);
+
+        BufferedImage ret = Util.kopiuj(dol);
+        mieszajWMiejscu(ret, gora, tryb, obszar, maska);
+
+        return ret;
+    }
+
+    /**
+     * Nakłada obraz gora na fragment obszar obrazu dol, zmieniając obraz dol
+     *
+     * @param dol obraz dolny, zmieniany
+     * @param gora obraz górny, o wymiarach obszaru
+     * @param tryb tryb mieszania
+     * @param obszar położenie obrazu gora w obrazie dol lub null - cały obraz
+     */
+    public static void mieszajWMiejscu(BufferedImage dol, BufferedImage gora, Tryb tryb,
+            Rectangle obszar)
+    {
+        mieszajWMiejscu(dol, gora, tryb, obszar, null);
+    }
+
+    /**
+     * Nakłada obraz gora na fragment obszar obrazu dol, zmieniając obraz dol,
+     * tylko tam, gdzie pozwala maska
+     *
+     * @param dol obraz dolny, zmieniany
+     * @param gora obraz górny, o wymiarach obszaru
+     * @param tryb tryb mieszania
+     * @param obszar położenie obrazu gora w obrazie dol lub null - cały obraz
+     * @param maska maska o wymiarach obszaru lub null - bez maski
+     * @since 0.4
+     */
+    public static void mieszajWMiejscu(BufferedImage dol, BufferedImage gora, Tryb tryb,
+            Rectangle obszar, BufferedImage maska)
+    {
+        if (obszar == null)
+            obszar = new Rectangle(0, 0, dol.getWidth(), dol.getHeight());
+        sprawdzObszar(dol, gora, obszar, maska);
+
+        if (obszar.isEmpty())
+            return;
+
+        BufferedImage widok = dol.getSubimage(obszar.x, obszar.y, obszar.width, obszar.height);
+        mieszajW(widok, gora, maska, widok, tryb);
+    }
+
+    private static void sprawdzObszar(BufferedImage dol, BufferedImage gora, Rectangle obszar,
+            BufferedImage maska)
+    {
+        if (obszar.width != gora.getWidth() || obszar.height != gora.getHeight())
+            throw new IllegalArgumentException("wymiary obszaru i obrazu górnego nie pasują");
+        if (maska != null && (maska.getWidth() != gora.getWidth()
+                || maska.getHeight() != gora.getHeight()))
+            throw new IllegalArgumentException("wymiary maski i obrazu górnego nie pasują");
+        if (obszar.x < 0 || obszar.y < 0 || obszar.width < 0 || obszar.height < 0
+                || (long) obszar.x + obszar.width > dol.getWidth()
+                || (long) obszar.y + obszar.height > dol.getHeight())
+            throw new IllegalArgumentException("obszar wykracza poza obraz dolny");
+    }
+
+    /**
+     * Nakłada gora (z kryciem zmienionym przez maska, jeśli nie null) na dol
+     * i zapisuje wynik w cel; wszystkie obrazy mają te same wymiary, cel
+     * może być obrazem dol
+     */
+    private static void mieszajW(BufferedImage dol, BufferedImage gora, BufferedImage maska,
+            BufferedImage cel, final Tryb tryb)
+    {
+        final DostepBufora dd = DostepBufora.z(dol);
+        final DostepBufora dg = DostepBufora.z(gora);
+        final DostepBufora dm = (maska == null) ? null : DostepBufora.z(maska);
+        final boolean alfaMaski = (maska != null) && maska.getColorModel().hasAlpha();
+        final DostepBufora dc = (cel == dol) ? dd : DostepBufora.z(cel);
+        final int fd = uklad(dol, dd);
+        final int fg = uklad(gora, dg);
+        // indeksy niezmienionych pikseli bierzemy z obrazu dol, więc tylko w miejscu
+        final int fc = (cel == dol) ? uklad(cel, dc) : INNY;
+        final IndexColorModel paleta = (fc == PALETA) ? (IndexColorModel) cel.getColorModel() : null;
+        final byte [] odwrotna = (paleta == null) ? null : Kwantyzator.odwrotna(paleta);
+        final WritableRaster cr = cel.getRaster();
+        final int w = dol.getWidth();
+        int h = dol.getHeight();
+
+        Rownolegle.wykonaj(Rownolegle.liczbaPasow(w, h), h, new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odWiersza, int doWiersza)
+            {
+                int [] wd = new int[w];
+                int [] wg = new int[w];
+                int [] wm = (dm == null) ? null : new int[w];
+                int [] stare = (paleta == null) ? null : new int[w];
+                int [] indeksy = (paleta == null) ? null : new int[w];
+
+                for (int y = odWiersza; y < doWiersza; y++)
+                {
+                    czytaj(dd, fd, y, wd);
+                    czytaj(dg, fg, y, wg);
+                    if (dm != null)
+                    {
+                        dm.wierszArgb(y, wm);
+                        for (int x = 0; x < w; x++)
+                            wg[x] = razyPiksel(wg[x], wartoscMaski(wm[x], alfaMaski));
+                    }
+
+                    for (int x = 0; x < w; x++)
+                        wd[x] = mieszajPiksel(wd[x], wg[x], tryb);
+
+                    if (paleta == null)
+                    {
+                        zapisz(dc, fc, y, wd);
+                        continue;
+                    }
+
+                    // piksele pod przezroczystymi pikselami górnego zostają,
+                    // jakie były - tablica odwrotna mogłaby wybrać inny,
+                    // choć równie bliski, kolor palety
+                    stare = cr.getSamples(0, y, w, 1, 0, stare);
+                    for (int x = 0; x < w; x++)
+                        wd[x] = odmnoz(wd[x]);
+                    Kwantyzator.indeksyWiersza(paleta, odwrotna, wd, indeksy);
+                    for (int x = 0; x < w; x++)
+                        if ((wg[x] >>> 24) == 0)
+                            indeksy[x] = stare[x];
+                    cr.setSamples(0, y, w, 1, 0, indeksy);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return wartość maski z [0, 255]: alfa albo, dla masek bez alfy, średnia R, G, B
+     */
+    private static int wartoscMaski(int p, boolean alfa)
+    {
+        if (alfa)
+            return p >>> 24;
+
+        return (((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff) + 1) / 3;
+    }
+
+    /**
+     * @return piksel ARGB z alfą przemnożoną, ze wszystkimi kanałami razy m / 255
+     */
+    private static int razyPiksel(int p, int m)
+    {
+        if (m == 0xff)
+            return p;
+        if (m == 0)
+            return 0;
+
+        return (razy(p >>> 24, m) << 24) | (razy((p >> 16) & 0xff, m) << 16)
+                | (razy((p >> 8) & 0xff, m) << 8) | razy(p & 0xff, m);
+    }
+
+    /**
+     * @return układ pikseli obrazu: ARGB_PRZEMNOZONY, ARGB, RGB, PALETA lub INNY
+     */
+    private static int uklad(BufferedImage im, DostepBufora d)
+    {
+        ColorModel cm = im.getColorModel();
+        if (cm instanceof IndexColorModel && ((IndexColorModel) cm).getMapSize() <= 256
+                && im.getRaster().getNumBands() == 1)
+            return PALETA;
+        if (d.rodzaj != DostepBufora.INT_PAKOWANY || !(cm instanceof DirectColorModel)
+                || !cm.getColorSpace().isCS_sRGB())
+            return INNY;
+
+        int [] m = d.maski;
+        if (m[0] != 0xff0000 || m[1] != 0xff00 || m[2] != 0xff)
+            return INNY;
+        if (d.liczbaPasm == 3)
+            return RGB;
+        if (d.liczbaPasm == 4 && m[3] == 0xff000000)
+            return cm.isAlphaPremultiplied() ? ARGB_PRZEMNOZONY : ARGB;
+
+        return INNY;
+    }
+
+    /**
+     * Czyta wiersz y jako piksele ARGB z alfą przemnożoną
+     */
+    private static void czytaj(DostepBufora d, int uklad, int y, int [] wiersz)
+    {
+        int w = d.szerokosc;
+
+        switch (uklad)
+        {
+            case ARGB_PRZEMNOZONY:
+                System.arraycopy(d.daneInt, d.indeks(0, y), wiersz, 0, w);
+                return;
+            case RGB:
+                for (int x = 0, i = d.indeks(0, y); x < w; x++, i++)
+                    wiersz[x] = d.daneInt[i] | 0xff000000;
+                return;
+            case ARGB:
+                for (int x = 0, i = d.indeks(0, y); x < w; x++, i++)
+                    wiersz[x] = przemnoz(d.daneInt[i]);
+                return;
+            default:
+                d.wierszArgb(y, wiersz);
+                for (int x = 0; x < w; x++)
+                    wiersz[x] = przemnoz(wiersz[x]);
+        }
+    }
+
+    /**
+     * Zapisuje wiersz y z pikseli ARGB z alfą przemnożoną (niszczy zawartość tablicy)
+     */
+    private static void zapisz(DostepBufora d, int uklad, int y, int [] wiersz)
+    {
+        int w = d.szerokosc;
+
+        switch (uklad)
+        {
+            case ARGB_PRZEMNOZONY:
+                System.arraycopy(wiersz, 0, d.daneInt, d.indeks(0, y), w);
+                return;
+            case RGB:
+                // obraz dolny był nieprzezroczysty, więc wynik też jest
+                for (int x = 0, i = d.indeks(0, y); x < w; x++, i++)
+                    d.daneInt[i] = wiersz[x] & 0xffffff;
+                return;
+            case ARGB:
+                for (int x = 0, i = d.indeks(0, y); x < w; x++, i++)
+                    d.daneInt[i] = odmnoz(wiersz[x]);
+                return;
+            default:
+                for (int x = 0; x < w; x++)
+                    wiersz[x] = odmnoz(wiersz[x]);
+                d.zapiszWierszArgb(y, wiersz);
+        }
+    }
+
+    /** a * b / 255 z zaokrągleniem, dla a, b z [0, 255] */
+    private static int razy(int a, int b)
+    {
+        int t = a * b + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+
+    private static int przemnoz(int p)
+    {
+        int a = p >>> 24;
+        if (a == 0xff)
+            return p;
+        if (a == 0)
+            return 0;
+
+        return (a << 24) | (razy((p >> 16) & 0xff, a) << 16)
+                | (razy((p >> 8) & 0xff, a) << 8) | razy(p & 0xff, a);
+    }
+
+    private static int odmnoz(int p)
+    {
+        int a = p >>> 24;
+        if (a == 0xff)
+            return p;
+        if (a == 0)
+            return 0;
+
+        int pol = a >> 1;
+        int r = Math.min(255, (((p >> 16) & 0xff) * 255 + pol) / a);
+        int g = Math.min(255, (((p >> 8) & 0xff) * 255 + pol) / a);
+        int b = Math.min(255, ((p & 0xff) * 255 + pol) / a);
+
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * @param b piksel dolny (ARGB, alfa przemnożona)
+     * @param s piksel górny (ARGB, alfa przemnożona)
+     * @param tryb tryb mieszania
+     * @return piksel wynikowy (ARGB, alfa przemnożona)
+     */
+    private static int mieszajPiksel(int b, int s, Tryb tryb)
+    {
+        int as = s >>> 24;
+        int ab = b >>> 24;
+        if (as == 0)
+            return b;
+        if (ab == 0)
+            return s;
+
+        int ao = as + ab - razy(as, ab);
+
+        return (ao << 24)
+                | (kanal(tryb, (b >> 16) & 0xff, (s >> 16) & 0xff, ab, as, ao) << 16)
+                | (kanal(tryb, (b >> 8) & 0xff, (s >> 8) & 0xff, ab, as, ao) << 8)
+                | kanal(tryb, b & 0xff, s & 0xff, ab, as, ao);
+    }
+
+    /**
+     * Jeden kanał koloru (wartości przemnożone przez alfę, w skali 255)
+     */
+    private static int kanal(Tryb tryb, int cb, int cs, int ab, int as, int ao)
+    {
+        // cs * (1 - ab) + cb * (1 - as) + as * ab * B(Cb, Cs), w skali 255 * 255
+        int x;
+        switch (tryb)
+        {
+            case MNOZENIE:
+                x = cs * (255 - ab) + cb * (255 - as) + cs * cb;
+                break;
+            case EKRAN:
+                x = (cs + cb) * 255 - cs * cb;
+                break;
+            case NAKLADKA:
+                x = cs * (255 - ab) + cb * (255 - as) + ((2 * cb <= ab)
+                        ? 2 * cs * cb
+                        : as * ab - 2 * (ab - cb) * (as - cs));
+                break;
+            case CIEMNIEJSZE:
+                x = (cs + cb) * 255 - Math.max(cs * ab, cb * as);
+                break;
+            case JASNIEJSZE:
+                x = (cs + cb) * 255 - Math.min(cs * ab, cb * as);
+                break;
+            default:
+                x = cs * (255 - ab) + cb * (255 - as)
+                        + (int) (Math.sqrt((double) (cs * cb) * (as * ab)) + 0.5);
+        }
+
+        int c = (x + 127) / 255;
+        if (c < 0)
+            return 0;
+        return (c > ao) ? ao : c;
+    }
+}
@@ -0,0 +1,452 @@
+package eu.finwe.obrazki;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Roboczy format obrazu do łańcuchów operacji arytmetycznych: każde pasmo
+ * przechowywane jest osobno (układ planarny) jako tablica float z
+ * wartościami z przedziału [0, 1].
+ *
+ * Konwersja z/do BufferedImage odbywa się tylko na początku i na końcu
+ * łańcucha, więc kolejne operacje (mnoz(), mieszaj(), gamma()...) nie
+ * tracą dokładności na pośrednich zaokrągleniach i nie alokują pamięci.
+ * Operacje modyfikują obraz w miejscu i zwracają this, co pozwala pisać
+ *
+ *      ObrazFloat.z(a).mnoz(ObrazFloat.z(b)).gamma(2.2f).zapisz(wynik, 0);
+ *
+ * Konwersje przebiegają wiersz po wierszu i mogą dotyczyć tylko pasa
+ * wierszy obrazu (z(src, od, do), wczytaj(), zapisz()), dzięki czemu
+ * duże obrazy można przetwarzać pasami o ograniczonym rozmiarze.
+ *
+ * Pasma odpowiadają pasmom rastra; obrazy z paletą kolorów przechowywane
+ * są jako R, G, B i ewentualnie A. Operacje arytmetyczne nie zmieniają
+ * kanału alfa.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public final class ObrazFloat {
+
+    private final int szerokosc;
+    private final int wysokosc;
+    private final int pasmoAlfa;
+    private final float [][] pasma;
+
+    /**
+     * Tworzy wyzerowany obraz
+     *
+     * @param szerokosc szerokość obrazu
+     * @param wysokosc wysokość obrazu
+     * @param liczbaPasm liczba pasm
+     * @param pasmoAlfa numer pasma alfa lub -1, jeśli obraz go nie ma
+     */
+    public ObrazFloat(int szerokosc, int wysokosc, int liczbaPasm, int pasmoAlfa)
+    {
+        if (szerokosc <= 0 || wysokosc <= 0 || liczbaPasm <= 0)
+            throw new IllegalArgumentException("wymiary i liczba pasm powinny być dodatnie");
+        if (pasmoAlfa >= liczbaPasm)
+            throw new IllegalArgumentException("niepoprawny numer pasma alfa");
+
+        this.szerokosc = szerokosc;
+        this.wysokosc = wysokosc;
+        this.pasmoAlfa = pasmoAlfa;
+
+        pasma = new float[liczbaPasm][szerokosc * wysokosc];
+    }
+
+    /**
+     * Przekształca cały obraz
+     *
+     * @param src obraz źródłowy
+     * @return nowy obraz roboczy
+     */
+    public static ObrazFloat z(final BufferedImage src)
+    {
+        return z(src, 0, src.getHeight());
+    }
+
+    /**
+     * Przekształca pas wierszy [odWiersza, doWiersza) obrazu
+     *
+     * @param src obraz źródłowy
+     * @param odWiersza pierwszy wiersz pasa
+     * @param doWiersza wiersz za ostatnim wierszem pasa
+     * @return nowy obraz roboczy o wysokości doWiersza - odWiersza
+     */
+    public static ObrazFloat z(final BufferedImage src, int odWiersza, int doWiersza)
+    {
+        ColorModel cm = src.getColorModel();
+        int pasm;
+        int alfa;
+
+        if (cm instanceof IndexColorModel)
+        {
+            pasm = cm.hasAlpha() ? 4 : 3;
+            alfa = cm.hasAlpha() ? 3 : -1;
+        }
+        else
+        {
+            pasm = src.getRaster().getNumBands();
+            alfa = cm.hasAlpha() ? cm.getNumColorComponents() : -1;
+        }
+
+        ObrazFloat ret = new ObrazFloat(src.getWidth(), doWiersza - odWiersza, pasm, alfa);
+        ret.wczytaj(src, odWiersza);
+        return ret;
+    }
+
+    /**
+     * Wczytuje do obrazu roboczego (bez tworzenia nowych tablic) wiersze
+     * [odWiersza, odWiersza + wysokosc()) obrazu src - kolejny pas przy
+     * przetwarzaniu pasami.
+     *
+     * @param src obraz źródłowy o tej samej szerokości i liczbie pasm
+     * @param odWiersza pierwszy wczytywany wiersz
+     */
+    public void wczytaj(final BufferedImage src, int odWiersza)
+    {
+        sprawdzPas(src, odWiersza);
+
+        int w = szerokosc;
+        ColorModel cm = src.getColorModel();
+
+        if (cm instanceof IndexColorModel)
+        {
+            int [] wiersz = new int[w];
+            for (int y = 0; y < wysokosc; y++)
+            {
+                src.getRGB(0, odWiersza + y, w, 1, wiersz, 0, w);
+                int k = y * w;
+                for (int x = 0; x < w; x++, k++)
+                {
+                    int p = wiersz[x];
+                    pasma[0][k] = ((p >> 16) & 0xff) / 255f;
+                    pasma[1][k] = ((p >> 8) & 0xff) / 255f;
+                    pasma[2][k] = (p & 0xff) / 255f;
+                    if (pasmoAlfa >= 0)
+                        pasma[3][k] = (p >>> 24) / 255f;
+                }
+            }
+            return;
+        }
+
+        int liczbaPasm = pasma.length;
+        float [] skala = new float[liczbaPasm];
+        WritableRaster r = src.getRaster();
+        for (int b = 0; b < liczbaPasm; b++)
+            skala[b] = 1f / ((1 << r.getSampleModel().getSampleSize(b)) - 1);
+
+        DostepBufora bufor = DostepBufora.z(src);
+        // próbki jednego pasma z jednego wiersza, dla pozostałych układów
+        int [] wiersz = (bufor.rodzaj == DostepBufora.INNY) ? new int[w] : null;
+
+        for (int y = 0; y < wysokosc; y++)
+        {
+            int k = y * w;
+            int sy = odWiersza + y;
+
+            if (bufor.rodzaj == DostepBufora.INT_PAKOWANY)
+            {
+                int i = bufor.indeks(0, sy);
+                for (int x = 0; x < w; x++, i++)
+                {
+                    int p = bufor.daneInt[i];
+                    for (int b = 0; b < liczbaPasm; b++)
+                        pasma[b][k + x] = ((p & bufor.maski[b]) >>> bufor.przesuniecia[b]) * skala[b];
+                }
+            }
+            else if (bufor.rodzaj == DostepBufora.BAJT_PRZEPLATANY)
+            {
+                for (int b = 0; b < liczbaPasm; b++)
+                {
+                    float [] pl = pasma[b];
+                    int i = bufor.indeks(0, sy) + bufor.przesunieciaPasm[b];
+                    for (int x = 0; x < w; x++, i += bufor.krokPiksela)
+                        pl[k + x] = (bufor.daneBajt[i] & 0xff) * skala[b];
+                }
+            }
+            else
+            {
+                for (int b = 0; b < liczbaPasm; b++)
+                {
+                    r.getSamples(0, sy, w, 1, b, wiersz);
+                    float [] pl = pasma[b];
+                    for (int x = 0; x < w; x++)
+                        pl[k + x] = wiersz[x] * skala[b];
+                }
+            }
+        }
+    }
+
+    /**
+     * Zapisuje obraz roboczy w wierszach [odWiersza, odWiersza + wysokosc())
+     * obrazu dest, zaokrąglając wartości do najbliższych poziomów próbek.
+     *
+     * @param dest obraz docelowy o tej samej szerokości i liczbie pasm
+     *             (dla obrazu z paletą: pasma R, G, B[, A])
+     * @param odWiersza pierwszy zapisywany wiersz obrazu dest
+     * @return dest
+     */
+    public BufferedImage zapisz(BufferedImage dest, int odWiersza)
+    {
+        sprawdzPas(dest, odWiersza);
+
+        int w = szerokosc;
+        ColorModel cm = dest.getColorModel();
+
+        if (cm instanceof IndexColorModel)
+        {
+            int [] wiersz = new int[w];
+            for (int y = 0; y < wysokosc; y++)
+            {
+                int k = y * w;
+                for (int x = 0; x < w; x++, k++)
+                {
+                    int a = (pasmoAlfa >= 0) ? kwantyzuj(pasma[pasmoAlfa][k], 255) : 255;
+                    wiersz[x] = (a << 24)
+                            | (kwantyzuj(pasma[0][k], 255) << 16)
+                            | (kwantyzuj(pasma[1][k], 255) << 8)
+                            | kwantyzuj(pasma[2][k], 255);
+                }
+                dest.setRGB(0, odWiersza + y, w, 1, wiersz, 0, w);
+            }
+            return dest;
+        }
+
+        int liczbaPasm = pasma.length;
+        int [] maks = new int[liczbaPasm];
+        WritableRaster r = dest.getRaster();
+        for (int b = 0; b < liczbaPasm; b++)
+            maks[b] = (1 << r.getSampleModel().getSampleSize(b)) - 1;
+
+        DostepBufora bufor = DostepBufora.z(dest);
+        int [] wiersz = (bufor.rodzaj == DostepBufora.INNY) ? new int[w] : null;
+
+        for (int y = 0; y < wysokosc; y++)
+        {
+            int k = y * w;
+            int dy = odWiersza + y;
+
+            if (bufor.rodzaj == DostepBufora.INT_PAKOWANY)
+            {
+                int i = bufor.indeks(0, dy);
+                for (int x = 0; x < w; x++, i++)
+                {
+                    int p = 0;
+                    for (int b = 0; b < liczbaPasm; b++)
+                        p |= kwantyzuj(pasma[b][k + x], maks[b]) << bufor.przesuniecia[b];
+                    bufor.daneInt[i] = p;
+                }
+            }
+            else if (bufor.rodzaj == DostepBufora.BAJT_PRZEPLATANY)
+            {
+                for (int b = 0; b < liczbaPasm; b++)
+                {
+                    float [] pl = pasma[b];
+                    int i = bufor.indeks(0, dy) + bufor.przesunieciaPasm[b];
+                    for (int x = 0; x < w; x++, i += bufor.krokPiksela)
+                        bufor.daneBajt[i] = (byte) kwantyzuj(pl[k + x], 255);
+                }
+            }
+            else
+            {
+                for (int b = 0; b < liczbaPasm; b++)
+                {
+                    float [] pl = pasma[b];
+                    for (int x = 0; x < w; x++)
+                        wiersz[x] = kwantyzuj(pl[k + x], maks[b]);
+                    r.setSamples(0, dy, w, 1, b, wiersz);
+                }
+            }
+        }
+
+        return dest;
+    }
+
+    /**
+     * Tworzy nowy obraz w modelu kolorów obrazu wzorcowego i zapisuje w nim
+     * obraz roboczy
+     *
+     * @param wzorzec obraz dostarczający model kolorów
+     * @return nowy obraz o wymiarach obrazu roboczego
+     */
+    public BufferedImage doObrazu(final BufferedImage wzorzec)
+    {
+        ColorModel cm = wzorzec.getColorModel();
+        WritableRaster wr = cm.createCompatibleWritableRaster(szerokosc, wysokosc);
+
+        return zapisz(new BufferedImage(cm, wr, cm.isAlphaPremultiplied(), null), 0);
+    }
+
+    private void sprawdzPas(BufferedImage im, int odWiersza)
+    {
+        if (im.getWidth() != szerokosc)
+            throw new IllegalArgumentException("szerokości obrazów nie pasują");
+        if (odWiersza < 0 || odWiersza + wysokosc > im.getHeight())
+            throw new IllegalArgumentException("pas wykracza poza obraz");
+
+        ColorModel cm = im.getColorModel();
+        int pasm = (cm instanceof IndexColorModel) ? (cm.hasAlpha() ? 4 : 3)
+                                                   : im.getRaster().getNumBands();
+        if (pasm != pasma.length)
+            throw new IllegalArgumentException("liczby pasm obrazów nie pasują");
+    }
+
+    private static int kwantyzuj(float v, int maks)
+    {
+        int t = (int) (v * maks + 0.5f);
+        return (t < 0) ? 0 : (t > maks ? maks : t);
+    }
+
+    private void sprawdzZgodnosc(ObrazFloat inny)
+    {
+        if (inny.szerokosc != szerokosc || inny.wysokosc != wysokosc
+                || inny.pasma.length != pasma.length)
+            throw new IllegalArgumentException("wymiary obrazów nie pasują");
+    }
+
+    /* operacje arytmetyczne - wszystkie w miejscu, z pominięciem alfy */
+
+    /**
+     * Zastępuje próbki średnią geometryczną próbek tego i drugiego obrazu
+     * (jak Util.mnoz())
+     *
+     * @param inny drugi czynnik o tych samych wymiarach
+     * @return this
+     */
+    public ObrazFloat mnoz(final ObrazFloat inny)
+    {
+        sprawdzZgodnosc(inny);
+
+        for (int b = 0; b < pasma.length; b++)
+        {
+            if (b == pasmoAlfa)
+                continue;
+            float [] p = pasma[b];
+            float [] q = inny.pasma[b];
+            for (int i = 0; i < p.length; i++)
+                p[i] = (float) Math.sqrt(p[i] * q[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Mnoży próbki przez stały współczynnik
+     *
+     * @param czynnik współczynnik
+     * @return this
+     */
+    public ObrazFloat mnoz(float czynnik)
+    {
+        for (int b = 0; b < pasma.length; b++)
+        {
+            if (b == pasmoAlfa)
+                continue;
+            float [] p = pasma[b];
+            for (int i = 0; i < p.length; i++)
+                p[i] *= czynnik;
+        }
+        return this;
+    }
+
+    /**
+     * Miesza obraz z drugim obrazem: p = (1 - udzial) * p + udzial * q
+     *
+     * @param inny drugi obraz o tych samych wymiarach
+     * @param udzial udział drugiego obrazu, od 0 do 1
+     * @return this
+     */
+    public ObrazFloat mieszaj(final ObrazFloat inny, float udzial)
+    {
+        sprawdzZgodnosc(inny);
+
+        for (int b = 0; b < pasma.length; b++)
+        {
+            if (b == pasmoAlfa)
+                continue;
+            float [] p = pasma[b];
+            float [] q = inny.pasma[b];
+            for (int i = 0; i < p.length; i++)
+                p[i] += udzial * (q[i] - p[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Korekcja gamma: p = p ^ (1 / gamma)
+     *
+     * @param gamma współczynnik gamma, dodatni
+     * @return this
+     */
+    public ObrazFloat gamma(float gamma)
+    {
+        if (gamma <= 0)
+            throw new IllegalArgumentException("gamma powinna być dodatnia");
+
+        final double wykladnik = 1.0 / gamma;
+
+        // potęgowanie jest kosztowne, więc tę operację liczymy równolegle
+        Rownolegle.wykonaj(Rownolegle.liczbaPasow(szerokosc, wysokosc), wysokosc,
+                new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odWiersza, int doWiersza)
+            {
+                for (int b = 0; b < pasma.length; b++)
+                {
+                    if (b == pasmoAlfa)
+                        continue;
+                    float [] p = pasma[b];
+                    for (int i = odWiersza * szerokosc; i < doWiersza * szerokosc; i++)
+                        p[i] = (float) Math.pow(p[i], wykladnik);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * @return szerokość obrazu
+     */
+    public int szerokosc()
+    {
+        return szerokosc;
+    }
+
+    /**
+     * @return wysokość obrazu (pasa)
+     */
+    public int wysokosc()
+    {
+        return wysokosc;
+    }
+
+    /**
+     * @return liczba pasm
+     */
+    public int liczbaPasm()
+    {
+        return pasma.length;
+    }
+
+    /**
+     * @return numer pasma alfa lub -1
+     */
+    public int pasmoAlfa()
+    {
+        return pasmoAlfa;
+    }
+
+    /**
+     * Daje bezpośredni dostęp do danych pasma - do własnych operacji
+     *
+     * @param pasmo numer pasma
+     * @return tablica próbek pasma (nie kopia!), wiersz po wierszu
+     */
+    public float [] pasmo(int pasmo)
+    {
+        return pasma[pasmo];
+    }
+}
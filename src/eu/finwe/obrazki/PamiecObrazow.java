@@ -0,0 +1,270 @@
+package eu.finwe.obrazki;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import javax.imageio.ImageIO;
+
+/**
+ * Pamięć podręczna zdekodowanych obrazów, dla obrazów czytanych wielokrotnie
+ * (znaki wodne, maski dla Util.mnoz() itp.).
+ *
+ * Kluczem jest kanoniczna ścieżka pliku razem z datą modyfikacji i
+ * rozmiarem, więc zmieniony plik zostanie przeczytany ponownie. Rozmiar
+ * pamięci ograniczony jest liczbą bajtów danych obrazów; po jej
+ * przekroczeniu usuwane są najdawniej używane obrazy.
+ *
+ * Klasa jest bezpieczna dla wątków. Jeśli kilka wątków jednocześnie
+ * poprosi o ten sam nieobecny obraz, zdekoduje go tylko jeden z nich,
+ * a pozostałe poczekają na wynik.
+ *
+ * Obrazy w pamięci są wspólne, więc nigdy nie są wydawane na zewnątrz:
+ * daj() zwraca prywatną kopię (kopiowanie danych jest wielokrotnie
+ * tańsze od czytania i dekodowania pliku). Widok bez kopiowania nie
+ * chroniłby pamięci - każdy Raster udostępnia swój DataBuffer do zapisu.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public final class PamiecObrazow {
+
+    /** klucz: plik w konkretnej wersji */
+    private static final class Klucz
+    {
+        final String sciezka;
+        final long zmodyfikowany;
+        final long rozmiar;
+
+        Klucz(File plik)
+        {
+            sciezka = plik.getPath();
+            zmodyfikowany = plik.lastModified();
+            rozmiar = plik.length();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Klucz))
+                return false;
+            Klucz k = (Klucz) o;
+            return sciezka.equals(k.sciezka) && zmodyfikowany == k.zmodyfikowany
+                    && rozmiar == k.rozmiar;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return sciezka.hashCode() * 31 + (int) (zmodyfikowany ^ rozmiar);
+        }
+    }
+
+    private final long maksBajtow;
+
+    /** obrazy w kolejności użycia (najdawniej używany pierwszy); chronione przez this */
+    private final LinkedHashMap<Klucz, BufferedImage> obrazy =
+            new LinkedHashMap<Klucz, BufferedImage>(16, 0.75f, true);
+    private long zajete = 0;
+    private long trafienia = 0;
+    private long chybienia = 0;
+
+    /** obrazy właśnie dekodowane przez któryś z wątków */
+    private final ConcurrentHashMap<Klucz, CompletableFuture<BufferedImage>> ladowane =
+            new ConcurrentHashMap<Klucz, CompletableFuture<BufferedImage>>();
+
+    /**
+     * Tworzy pustą pamięć
+     *
+     * @param maksBajtow największa łączna wielkość danych przechowywanych obrazów
+     */
+    public PamiecObrazow(long maksBajtow)
+    {
+        if (maksBajtow <= 0)
+            throw new IllegalArgumentException("rozmiar pamięci powinien być dodatni");
+        this.maksBajtow = maksBajtow;
+    }
+
+    /**
+     * Zwraca prywatną kopię obrazu z pliku, czytając go tylko wtedy, gdy
+     * nie ma go w pamięci
+     *
+     * @param nazwa nazwa pliku z obrazem
+     * @return kopia obrazu, którą można dowolnie modyfikować
+     * @throws IOException gdy pliku nie da się przeczytać lub zdekodować
+     */
+    public BufferedImage daj(String nazwa) throws IOException
+    {
+        return Util.kopiuj(wspolny(nazwa));
+    }
+
+    /**
+     * Wspólny, przechowywany w pamięci obraz - nie może wyjść poza klasę
+     */
+    private BufferedImage wspolny(String nazwa) throws IOException
+    {
+        File plik = new File(nazwa).getCanonicalFile();
+        Klucz k = new Klucz(plik);
+
+        synchronized (this)
+        {
+            BufferedImage im = obrazy.get(k);
+            if (im != null)
+            {
+                trafienia++;
+                return im;
+            }
+        }
+
+        CompletableFuture<BufferedImage> nowe = new CompletableFuture<BufferedImage>();
+        CompletableFuture<BufferedImage> istniejace = ladowane.putIfAbsent(k, nowe);
+
+        // ktoś już dekoduje ten plik - czekamy na jego wynik
+        if (istniejace != null)
+        {
+            synchronized (this)
+            {
+                trafienia++;
+            }
+            return czekaj(istniejace);
+        }
+
+        try {
+            BufferedImage im;
+            synchronized (this)
+            {
+                // mógł zostać wstawiony między sprawdzeniem a putIfAbsent()
+                im = obrazy.get(k);
+                if (im != null)
+                    trafienia++;
+                else
+                    chybienia++;
+            }
+
+            if (im == null)
+            {
+                im = ImageIO.read(plik);
+                if (im == null)
+                    throw new IOException("nieobsługiwany format pliku " + plik);
+                wstaw(k, im);
+            }
+
+            nowe.complete(im);
+            return im;
+        }
+        catch (Throwable t)
+        {
+            // także Error (np. OutOfMemoryError przy dużym pliku) - inaczej
+            // wątki czekające w czekaj() nie doczekałyby się nigdy
+            nowe.completeExceptionally(t);
+            throw t;
+        }
+        finally {
+            // dopiero po wstawieniu do obrazy, więc kolejni go tam znajdą
+            ladowane.remove(k, nowe);
+        }
+    }
+
+    private static BufferedImage czekaj(CompletableFuture<BufferedImage> f) throws IOException
+    {
+        try {
+            return f.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("przerwano oczekiwanie na obraz", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable t = e.getCause();
+            if (t instanceof IOException)
+                throw (IOException) t;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            throw new IOException(t);
+        }
+    }
+
+    private synchronized void wstaw(Klucz k, BufferedImage im)
+    {
+        long rozmiar = rozmiar(im);
+
+        // starsze wersje tego samego pliku nie będą już potrzebne
+        Iterator<Map.Entry<Klucz, BufferedImage>> it = obrazy.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Klucz, BufferedImage> e = it.next();
+            if (e.getKey().sciezka.equals(k.sciezka))
+            {
+                zajete -= rozmiar(e.getValue());
+                it.remove();
+            }
+        }
+
+        // za duży, żeby go przechowywać
+        if (rozmiar > maksBajtow)
+            return;
+
+        obrazy.put(k, im);
+        zajete += rozmiar;
+
+        it = obrazy.entrySet().iterator();
+        while (zajete > maksBajtow && it.hasNext())
+        {
+            zajete -= rozmiar(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    /**
+     * @return rozmiar danych obrazu w bajtach
+     */
+    private static long rozmiar(BufferedImage im)
+    {
+        DataBuffer db = im.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks()
+                * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+
+    /**
+     * Usuwa wszystkie obrazy z pamięci
+     */
+    public synchronized void wyczysc()
+    {
+        obrazy.clear();
+        zajete = 0;
+    }
+
+    /**
+     * @return łączny rozmiar danych przechowywanych obrazów w bajtach
+     */
+    public synchronized long zajete()
+    {
+        return zajete;
+    }
+
+    /**
+     * @return liczba żądań obsłużonych bez czytania pliku
+     */
+    public synchronized long trafienia()
+    {
+        return trafienia;
+    }
+
+    /**
+     * @return liczba żądań, które wymagały przeczytania pliku
+     */
+    public synchronized long chybienia()
+    {
+        return chybienia;
+    }
+}
@@ -0,0 +1,900 @@
+package eu.finwe.obrazki;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Eksport obrazu do piramidy kafli Deep Zoom (DZI) dla przeglądarek
+ * dużych obrazów: plik nazwa.dzi z opisem piramidy i katalog nazwa_files
+ * z kaflami nazwa_files/poziom/kolumna_wiersz.format. Poziom o największym
+ * numerze ma wymiary obrazu, każdy poprzedni - połowę (w górę) wymiarów
+ * następnego, aż do poziomu 0 o wymiarach 1x1. Kafle mają bok kafel
+ * i zachodzą na sąsiednie o zakladka pikseli z każdej strony.
+ *
+ * Wszystko liczone jest w jednym przebiegu z góry na dół obrazu: wiersze
+ * obrazu trafiają do najwyższego poziomu, a każda para wierszy poziomu
+ * daje (przez uśrednienie pikseli 2x2) wiersz poziomu niższego. Każdy
+ * poziom trzyma tylko wiersze potrzebne do bieżącego wiersza kafli
+ * (kafel + 2 * zakladka), więc pamięć nie zależy od wysokości obrazu.
+ *
+ * Obraz z pliku nie musi się mieścić w pamięci. PNG bez przeplotu i JPEG
+ * sekwencyjny dekodowane są jednym wywołaniem read() do obrazu, którego
+ * DataBuffer trzyma tylko kilka ostatnich wierszy (pierścień); każdy
+ * zdekodowany wiersz przekazywany jest dalej z IIOReadUpdateListener.
+ * PNG z przeplotem i JPEG progresywny zapisują wiersze wiele razy, więc
+ * są dekodowane raz w całości. Pozostałe formaty czytane są pasami
+ * (ImageReadParam.setSourceRegion()) - TIFF z pasami lub kaflami czyta
+ * przy tym tylko potrzebne fragmenty.
+ *
+ * Raster obrazu docelowego read() nie może mieć więcej niż
+ * Integer.MAX_VALUE próbek (np. 30000x30000 RGB ma ich 2,7 mld). Większe
+ * obrazy czytane są w jak najmniejszej liczbie części (setSourceRegion()
+ * z tym samym pierścieniem), z których każda dekoduje plik od początku;
+ * takich PNG z przeplotem i JPEG progresywnych nie da się zdekodować
+ * w całości, więc czytane są pasami.
+ *
+ * Kafle zapisywane są równolegle przez Util.zapisz(); liczba kafli
+ * czekających na zapis lub zapisywanych jest ograniczona (wToku).
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public final class PiramidaKafli {
+
+    /** wysokość pasa czytanego z pliku, w wierszach */
+    private static final int WIERSZY_W_PASIE = 256;
+    /**
+     * liczba wierszy pierścienia przy czytaniu w jednym przebiegu; czytnik
+     * zapisuje wiersz i od razu go zgłasza, więc wystarczy kilka
+     */
+    private static final int WIERSZY_W_PIERSCIENIU = 16;
+
+    /** sposoby czytania pliku, zob. sposobOdczytu() */
+    static final int PASAMI = 0;
+    static final int W_PRZEBIEGU = 1;
+    static final int W_CALOSCI = 2;
+
+    private PiramidaKafli()
+    {
+    }
+
+    /**
+     * Jak eksportuj(obraz, plikDzi, format, kafel, zakladka, commonPool,
+     * 2 * liczba wątków puli)
+     *
+     * @param obraz obraz źródłowy
+     * @param plikDzi plik opisu piramidy, np. new File("wynik/mapa.dzi")
+     * @param format "jpg" lub "png"
+     * @param kafel bok kafla, np. 254
+     * @param zakladka zachodzenie kafli na siebie, np. 1
+     * @return liczba zapisanych kafli
+     * @throws IOException w przypadku błędu zapisu
+     */
+    public static int eksportuj(BufferedImage obraz, File plikDzi, String format,
+            int kafel, int zakladka) throws IOException
+    {
+        return eksportuj(obraz, plikDzi, format, kafel, zakladka,
+                ForkJoinPool.commonPool(), 2 * ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    /**
+     * Eksportuje obraz obecny w pamięci do piramidy kafli
+     *
+     * @param obraz obraz źródłowy
+     * @param plikDzi plik opisu piramidy; kafle trafiają do katalogu obok
+     * @param format "jpg" lub "png"
+     * @param kafel bok kafla
+     * @param zakladka zachodzenie kafli na siebie
+     * @param executor wykonawca zapisu kafli
+     * @param wToku największa liczba kafli czekających na zapis
+     * @return liczba zapisanych kafli
+     * @throws IOException w przypadku błędu zapisu
+     */
+    public static int eksportuj(BufferedImage obraz, File plikDzi, String format,
+            int kafel, int zakladka, Executor executor, int wToku) throws IOException
+    {
+        int w = obraz.getWidth();
+        int h = obraz.getHeight();
+        boolean alfa = obraz.getColorModel().hasAlpha();
+
+        Eksport e = new Eksport(plikDzi, format, kafel, zakladka, w, h, alfa, executor, wToku);
+        boolean udane = false;
+        try {
+            dodajWiersze(obraz, h, e, new int[w]);
+            udane = true;
+        }
+        finally {
+            // błąd zapisu nie może przykryć wyjątku, który już leci
+            if (udane)
+                e.zakoncz();
+            else
+                e.poczekaj();
+        }
+
+        return e.liczbaKafli;
+    }
+
+    /**
+     * Jak eksportuj(wejscie, plikDzi, format, kafel, zakladka, commonPool,
+     * 2 * liczba wątków puli)
+     *
+     * @param wejscie plik z obrazem źródłowym
+     * @param plikDzi plik opisu piramidy
+     * @param format "jpg" lub "png"
+     * @param kafel bok kafla
+     * @param zakladka zachodzenie kafli na siebie
+     * @return liczba zapisanych kafli
+     * @throws IOException w przypadku błędu odczytu lub zapisu
+     */
+    public static int eksportuj(File wejscie, File plikDzi, String format,
+            int kafel, int zakladka) throws IOException
+    {
+        return eksportuj(wejscie, plikDzi, format, kafel, zakladka,
+                ForkJoinPool.commonPool(), 2 * ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    /**
+     * Eksportuje obraz z pliku do piramidy kafli, czytając go wierszami
+     * lub pasami wierszy, więc obraz może być większy niż dostępna pamięć
+     * (poza PNG z przeplotem i JPEG progresywnym)
+     *
+     * @param wejscie plik z obrazem źródłowym (pierwszy obraz pliku)
+     * @param plikDzi plik opisu piramidy; kafle trafiają do katalogu obok
+     * @param format "jpg" lub "png"
+     * @param kafel bok kafla
+     * @param zakladka zachodzenie kafli na siebie
+     * @param executor wykonawca zapisu kafli
+     * @param wToku największa liczba kafli czekających na zapis
+     * @return liczba zapisanych kafli
+     * @throws IOException w przypadku błędu odczytu lub zapisu
+     */
+    public static int eksportuj(File wejscie, File plikDzi, String format,
+            int kafel, int zakladka, Executor executor, int wToku) throws IOException
+    {
+        ImageInputStream we = ImageIO.createImageInputStream(wejscie);
+        if (we == null)
+            throw new IOException("nie można otworzyć pliku " + wejscie);
+
+        ImageReader czytnik = null;
+        try {
+            Iterator<ImageReader> czytniki = ImageIO.getImageReaders(we);
+            if (!czytniki.hasNext())
+                throw new IOException("nieznany format pliku " + wejscie);
+            czytnik = czytniki.next();
+            czytnik.setInput(we, true, true);
+
+            int w = czytnik.getWidth(0);
+            int h = czytnik.getHeight(0);
+            boolean alfa = czytnik.getRawImageType(0) == null
+                    || czytnik.getRawImageType(0).getColorModel().hasAlpha();
+
+            ImageTypeSpecifier typ = czytnik.getRawImageType(0);
+            int wierszy = wierszyNaOdczyt(typ, w, h);
+            int sposob = sposobOdczytu(czytnik, wierszy, h);
+
+            Eksport e = new Eksport(plikDzi, format, kafel, zakladka, w, h, alfa, executor, wToku);
+            int [] wiersz = new int[w];
+            boolean udane = false;
+            try {
+                if (sposob == W_PRZEBIEGU)
+                    czytajWPrzebiegu(czytnik, typ, wierszy, e, wiersz);
+                else if (sposob == W_CALOSCI)
+                    dodajWiersze(czytnik.read(0), h, e, wiersz);
+                else
+                {
+                    ImageReadParam param = czytnik.getDefaultReadParam();
+                    for (int y = 0; y < h && e.bladZapisu() == null; y += WIERSZY_W_PASIE)
+                    {
+                        int n = Math.min(WIERSZY_W_PASIE, h - y);
+                        param.setSourceRegion(new Rectangle(0, y, w, n));
+                        dodajWiersze(czytnik.read(0, param), n, e, wiersz);
+                    }
+                }
+                udane = true;
+            }
+            finally {
+                // błąd zapisu nie może przykryć wyjątku, który już leci
+                if (udane)
+                    e.zakoncz();
+                else
+                    e.poczekaj();
+            }
+
+            return e.liczbaKafli;
+        }
+        finally {
+            if (czytnik != null)
+                czytnik.dispose();
+            we.close();
+        }
+    }
+
+    /**
+     * Przekazuje wiersze 0..n-1 obrazu do eksportu; przerywa po błędzie zapisu
+     */
+    private static void dodajWiersze(BufferedImage obraz, int n, Eksport e, int [] wiersz)
+            throws IOException
+    {
+        DostepBufora d = DostepBufora.z(obraz);
+        for (int y = 0; y < n && e.bladZapisu() == null; y++)
+        {
+            d.wierszArgb(y, wiersz);
+            e.dodajWiersz(wiersz);
+        }
+    }
+
+    /**
+     * Dobiera sposób czytania pliku. PNG i JPEG nie pozwalają przeskoczyć
+     * do fragmentu obrazu, więc są dekodowane raz: wierszami, jeśli każdy
+     * wiersz zapisywany jest raz i po kolei, a w całości dla PNG
+     * z przeplotem (Adam7) i JPEG progresywnego.
+     *
+     * @param wierszy wynik wierszyNaOdczyt() dla surowego typu obrazu
+     * @param h wysokość obrazu
+     * @return PASAMI, W_PRZEBIEGU lub W_CALOSCI
+     */
+    private static int sposobOdczytu(ImageReader czytnik, int wierszy, int h) throws IOException
+    {
+        IIOMetadata md = czytnik.getImageMetadata(0);
+        String nazwa = (md == null) ? null : md.getNativeMetadataFormatName();
+
+        boolean sekwencyjny;
+        if ("javax_imageio_png_1.0".equals(nazwa))
+            sekwencyjny = "none".equals(atrybut(md.getAsTree(nazwa), "IHDR", "interlaceMethod"));
+        else if ("javax_imageio_jpeg_image_1.0".equals(nazwa))
+        {
+            // 0 - podstawowy, 1 - rozszerzony sekwencyjny, 2 - progresywny
+            String proces = atrybut(md.getAsTree(nazwa), "sof", "process");
+            sekwencyjny = "0".equals(proces) || "1".equals(proces);
+        }
+        else
+            return PASAMI;
+
+        return sposobOdczytu(sekwencyjny, wierszy, h);
+    }
+
+    /**
+     * Sposób czytania PNG lub JPEG
+     *
+     * @param sekwencyjny czy czytnik zapisuje każdy wiersz raz i po kolei
+     * @param wierszy wynik wierszyNaOdczyt()
+     * @param h wysokość obrazu
+     * @return PASAMI, W_PRZEBIEGU lub W_CALOSCI
+     */
+    static int sposobOdczytu(boolean sekwencyjny, int wierszy, int h)
+    {
+        if (sekwencyjny && wierszy > 0)
+            return W_PRZEBIEGU;
+        // obrazu za dużego na jeden raster nie da się zdekodować w całości
+        if (wierszy > 0 && wierszy < h)
+            return PASAMI;
+        return W_CALOSCI;
+    }
+
+    /**
+     * Dobiera liczbę wierszy czytanych jednym read() do pierścienia tak,
+     * żeby raster obrazu docelowego miał najwyżej Integer.MAX_VALUE próbek,
+     * przy jak najmniejszej liczbie odczytów
+     *
+     * @param typ surowy typ obrazu z czytnika lub null
+     * @param w szerokość obrazu
+     * @param h wysokość obrazu
+     * @return h, jeśli cały obraz mieści się w jednym rastrze, mniej dla
+     *         większych obrazów, 0 - układ próbek, którego nie obsługuje pierscien()
+     */
+    static int wierszyNaOdczyt(ImageTypeSpecifier typ, int w, int h)
+    {
+        if (typ == null)
+            return 0;
+
+        int krok = krokWiersza(typ.getSampleModel(w, 1));
+        if (krok <= 0)
+            return 0;
+
+        long najwiecej = Integer.MAX_VALUE / krok;
+        if (najwiecej >= h)
+            return h;
+        if (najwiecej < 1)
+            return 0;
+
+        long czesci = (h + najwiecej - 1) / najwiecej;
+        return (int) ((h + czesci - 1) / czesci);
+    }
+
+    /**
+     * @return odległość między wierszami w elementach DataBuffer albo 0 dla
+     *         układu próbek, którego nie obsługuje pierscien()
+     */
+    private static int krokWiersza(SampleModel sm)
+    {
+        int t = sm.getDataType();
+        if (t != DataBuffer.TYPE_BYTE && t != DataBuffer.TYPE_USHORT && t != DataBuffer.TYPE_INT)
+            return 0;
+
+        if (sm instanceof ComponentSampleModel)
+        {
+            for (int b : ((ComponentSampleModel) sm).getBankIndices())
+                if (b != 0)
+                    return 0;
+            return ((ComponentSampleModel) sm).getScanlineStride();
+        }
+        if (sm instanceof MultiPixelPackedSampleModel)
+            return ((MultiPixelPackedSampleModel) sm).getScanlineStride();
+        if (sm instanceof SinglePixelPackedSampleModel)
+            return ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+        return 0;
+    }
+
+    /**
+     * @return wartość atrybutu pierwszego węzła o podanej nazwie w drzewie lub null
+     */
+    private static String atrybut(Node wezel, String nazwaWezla, String nazwaAtrybutu)
+    {
+        if (nazwaWezla.equals(wezel.getNodeName()))
+        {
+            NamedNodeMap atrybuty = wezel.getAttributes();
+            Node a = (atrybuty == null) ? null : atrybuty.getNamedItem(nazwaAtrybutu);
+            return (a == null) ? null : a.getNodeValue();
+        }
+
+        for (Node n = wezel.getFirstChild(); n != null; n = n.getNextSibling())
+        {
+            String ret = atrybut(n, nazwaWezla, nazwaAtrybutu);
+            if (ret != null)
+                return ret;
+        }
+        return null;
+    }
+
+    /**
+     * Tworzy obraz docelowy odczytu o wymiarach w x h, w którym miejsce
+     * zajmuje tylko WIERSZY_W_PIERSCIENIU wierszy - wiersz y trafia tam,
+     * gdzie wiersz y - WIERSZY_W_PIERSCIENIU; h z wierszyNaOdczyt() > 0
+     */
+    private static BufferedImage pierscien(ImageTypeSpecifier typ, int w, int h)
+    {
+        SampleModel sm = typ.getSampleModel(w, h);
+        int krok = krokWiersza(sm);
+        int t = sm.getDataType();
+
+        int rozmiar = (int) Math.min(Integer.MAX_VALUE, (long) krok * h);
+        DataBuffer db = new BuforPierscieniowy(t, rozmiar,
+                krok * Math.min(h, WIERSZY_W_PIERSCIENIU));
+        // własna podklasa - Raster.createWritableRaster() chce standardowych DataBuffer
+        WritableRaster r = new WritableRaster(sm, db, new Point()) {};
+        ColorModel cm = typ.getColorModel();
+
+        return new BufferedImage(cm, r, cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Dekoduje obraz do pierścienia, przekazując każdy wiersz do eksportu
+     * zaraz po zdekodowaniu - jednym wywołaniem read(), a obraz większy niż
+     * jeden raster kilkoma, po wierszy wierszy
+     */
+    private static void czytajWPrzebiegu(ImageReader czytnik, ImageTypeSpecifier typ,
+            int wierszy, Eksport e, int [] wiersz) throws IOException
+    {
+        int w = czytnik.getWidth(0);
+        int h = czytnik.getHeight(0);
+        BufferedImage pierscien = pierscien(typ, w, wierszy);
+        ImageReadParam param = czytnik.getDefaultReadParam();
+        param.setDestination(pierscien);
+        WierszePliku wiersze = new WierszePliku(e, pierscien, wiersz);
+
+        czytnik.addIIOReadUpdateListener(wiersze);
+        try {
+            for (int y = 0; y < h && e.bladZapisu() == null; y += wierszy)
+            {
+                int n = Math.min(wierszy, h - y);
+                if (wierszy < h)
+                    param.setSourceRegion(new Rectangle(0, y, w, n));
+                wiersze.nastepny = 0;
+
+                czytnik.read(0, param);
+
+                if (wiersze.nastepny < n)
+                    throw new IOException("odczytano tylko " + (y + wiersze.nastepny)
+                            + " z " + h + " wierszy obrazu");
+            }
+        }
+        catch (PrzerwanyOdczyt p)
+        {
+            if (p.getCause() != null)
+                throw (IOException) p.getCause();
+            // błąd zapisu przekaże Eksport.zakoncz()
+        }
+        finally {
+            czytnik.removeIIOReadUpdateListener(wiersze);
+        }
+    }
+
+    /**
+     * Wyjątek przerywający odczyt z wnętrza IIOReadUpdateListener, którego
+     * metody nie mogą rzucać IOException; przyczyna null - błąd zapisu kafli
+     */
+    private static final class PrzerwanyOdczyt extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        PrzerwanyOdczyt(IOException przyczyna)
+        {
+            super(przyczyna);
+        }
+    }
+
+    /**
+     * Przekazuje do eksportu wiersze zgłaszane przez czytnik; wymaga, żeby
+     * każdy wiersz był zgłoszony raz, w całości i po kolei
+     */
+    private static final class WierszePliku implements IIOReadUpdateListener
+    {
+        final Eksport eksport;
+        final DostepBufora dostep;
+        final int [] wiersz;
+        /** numer następnego oczekiwanego wiersza obrazu docelowego read() */
+        int nastepny = 0;
+
+        WierszePliku(Eksport eksport, BufferedImage pierscien, int [] wiersz)
+        {
+            this.eksport = eksport;
+            this.dostep = DostepBufora.z(pierscien);
+            this.wiersz = wiersz;
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY,
+                int width, int height, int periodX, int periodY, int[] bands)
+        {
+            if (minY != nastepny || periodY != 1 || minX != 0 || periodX != 1
+                    || width != dostep.szerokosc)
+                throw new PrzerwanyOdczyt(new IOException(
+                        "czytnik nie zgłasza wierszy obrazu po kolei"));
+
+            for (int y = minY; y < minY + height; y++)
+            {
+                if (eksport.bladZapisu() != null)
+                    throw new PrzerwanyOdczyt(null);
+
+                dostep.wierszArgb(y, wiersz);
+                try {
+                    eksport.dodajWiersz(wiersz);
+                }
+                catch (IOException e)
+                {
+                    throw new PrzerwanyOdczyt(e);
+                }
+                nastepny = y + 1;
+            }
+        }
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage theImage, int pass,
+                int minPass, int maxPass, int minX, int minY, int periodX, int periodY,
+                int[] bands)
+        {
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage theImage)
+        {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail,
+                int pass, int minPass, int maxPass, int minX, int minY, int periodX,
+                int periodY, int[] bands)
+        {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX,
+                int minY, int width, int height, int periodX, int periodY, int[] bands)
+        {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail)
+        {
+        }
+    }
+
+    /**
+     * DataBuffer, w którym element i zajmuje miejsce i % dlugosc - przy
+     * dlugosc będącej wielokrotnością kroku wiersza trzyma ostatnie wiersze
+     */
+    private static final class BuforPierscieniowy extends DataBuffer
+    {
+        private final int [] dane;
+        private final int maska;
+
+        BuforPierscieniowy(int typ, int rozmiar, int dlugosc)
+        {
+            super(typ, rozmiar);
+            dane = new int[dlugosc];
+            maska = (typ == TYPE_BYTE) ? 0xff : (typ == TYPE_USHORT) ? 0xffff : -1;
+        }
+
+        @Override
+        public int getElem(int bank, int i)
+        {
+            return dane[i % dane.length];
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val)
+        {
+            dane[i % dane.length] = val & maska;
+        }
+    }
+
+    /**
+     * @return liczba poziomów piramidy dla obrazu o podanych wymiarach
+     */
+    static int liczbaPoziomow(int szerokosc, int wysokosc)
+    {
+        int ret = 1;
+        for (int d = Math.max(szerokosc, wysokosc); d > 1; d = (d + 1) / 2)
+            ret++;
+        return ret;
+    }
+
+    /**
+     * Jeden eksport: poziomy piramidy i równoległy zapis kafli
+     */
+    private static final class Eksport
+    {
+        final File katalog;
+        final String format;
+        final int kafel;
+        final int zakladka;
+        final boolean alfa;
+        final Executor executor;
+        final int wToku;
+        final Semaphore wolne;
+        final AtomicReference<Throwable> blad = new AtomicReference<Throwable>();
+        /** poziomy od najwyższego (wymiary obrazu) do 0 (1x1) */
+        final Poziom [] poziomy;
+        int liczbaKafli = 0;
+
+        Eksport(File plikDzi, String format, int kafel, int zakladka, int w, int h,
+                boolean alfa, Executor executor, int wToku) throws IOException
+        {
+            format = format.toLowerCase();
+            if (format.equals("jpeg"))
+                format = "jpg";
+            if (!format.equals("jpg") && !format.equals("png"))
+                throw new IllegalArgumentException("nieobsługiwany format kafli " + format);
+            if (kafel < 1 || zakladka < 0)
+                throw new IllegalArgumentException("Podano zły rozmiar kafla lub zakładki");
+            if (wToku < 1)
+                throw new IllegalArgumentException("liczba kafli w toku powinna być dodatnia");
+            if (w < 1 || h < 1)
+                throw new IllegalArgumentException("pusty obraz");
+
+            String nazwa = plikDzi.getName();
+            if (nazwa.lastIndexOf('.') > 0)
+                nazwa = nazwa.substring(0, nazwa.lastIndexOf('.'));
+            File rodzic = plikDzi.getAbsoluteFile().getParentFile();
+
+            this.katalog = new File(rodzic, nazwa + "_files");
+            this.format = format;
+            this.kafel = kafel;
+            this.zakladka = zakladka;
+            // JPEG nie ma kanału alfa
+            this.alfa = alfa && format.equals("png");
+            this.executor = executor;
+            this.wToku = wToku;
+            wolne = new Semaphore(wToku);
+
+            int n = liczbaPoziomow(w, h);
+            poziomy = new Poziom[n];
+            for (int i = 0; i < n; i++)
+            {
+                int nr = n - 1 - i;
+                poziomy[i] = new Poziom(this, nr, w, h, (i + 1 < n) ? i + 1 : -1);
+                File k = new File(katalog, Integer.toString(nr));
+                if (!k.isDirectory() && !k.mkdirs())
+                    throw new IOException("nie można utworzyć katalogu " + k);
+                w = (w + 1) / 2;
+                h = (h + 1) / 2;
+            }
+
+            zapiszOpis(plikDzi, poziomy[0].szerokosc, poziomy[0].wysokosc);
+        }
+
+        private void zapiszOpis(File plikDzi, int w, int h) throws IOException
+        {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(plikDzi), "UTF-8"));
+            try {
+                out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+                out.println("<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\""
+                        + " Format=\"" + format + "\" Overlap=\"" + zakladka
+                        + "\" TileSize=\"" + kafel + "\">");
+                out.println("  <Size Width=\"" + w + "\" Height=\"" + h + "\"/>");
+                out.println("</Image>");
+            }
+            finally {
+                out.close();
+            }
+            if (out.checkError())
+                throw new IOException("błąd zapisu pliku " + plikDzi);
+        }
+
+        Throwable bladZapisu()
+        {
+            return blad.get();
+        }
+
+        /** kolejny wiersz obrazu (ARGB) */
+        void dodajWiersz(int [] wiersz) throws IOException
+        {
+            poziomy[0].dodajWiersz(wiersz);
+        }
+
+        /**
+         * Zleca zapis kafla; czeka, jeśli wToku kafli czeka już na zapis
+         */
+        void zapisz(final BufferedImage obraz, int poziom, int kolumna, int wiersz)
+                throws IOException
+        {
+            final String nazwa = new File(new File(katalog, Integer.toString(poziom)),
+                    kolumna + "_" + wiersz + "." + format).getPath();
+
+            try {
+                wolne.acquire();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("przerwano zapis kafli", e);
+            }
+
+            Runnable zadanie = new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        Util.zapisz(obraz, nazwa);
+                    }
+                    catch (Throwable t)
+                    {
+                        blad.compareAndSet(null, t);
+                    }
+                    finally {
+                        wolne.release();
+                    }
+                }
+            };
+
+            try {
+                executor.execute(zadanie);
+            }
+            catch (RejectedExecutionException e)
+            {
+                wolne.release();
+                throw new IOException("nie można zlecić zapisu kafla", e);
+            }
+            liczbaKafli++;
+        }
+
+        /**
+         * Czeka na zapis wszystkich kafli bez przekazywania błędów - po
+         * błędzie odczytu, który ma dotrzeć do wołającego
+         */
+        void poczekaj()
+        {
+            wolne.acquireUninterruptibly(wToku);
+            wolne.release(wToku);
+        }
+
+        /**
+         * Czeka na zapis wszystkich kafli i przekazuje pierwszy błąd zapisu
+         */
+        void zakoncz() throws IOException
+        {
+            try {
+                wolne.acquire(wToku);
+                wolne.release(wToku);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("przerwano zapis kafli", e);
+            }
+
+            Throwable t = blad.get();
+            if (t instanceof IOException)
+                throw (IOException) t;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            if (t != null)
+                throw new IOException(t);
+        }
+    }
+
+    /**
+     * Jeden poziom piramidy: bufor wierszy bieżącego wiersza kafli
+     */
+    private static final class Poziom
+    {
+        final Eksport eksport;
+        final int numer;
+        final int szerokosc;
+        final int wysokosc;
+        /** indeks poziomu niższego w Eksport.poziomy lub -1 */
+        final int nizszy;
+
+        /** wiersze od pierwszy do pierwszy + liczba - 1 */
+        final BufferedImage bufor;
+        final int [] dane;
+        int pierwszy = 0;
+        int liczba = 0;
+        /** numer następnego wiersza kafli do zapisania */
+        int wierszKafli = 0;
+        final int wierszyKafli;
+        final int kolumnKafli;
+
+        /** wiersz parzysty czekający na parę (dla poziomu niższego) */
+        final int [] parzysty;
+        final int [] pomniejszony;
+
+        Poziom(Eksport eksport, int numer, int szerokosc, int wysokosc, int nizszy)
+        {
+            this.eksport = eksport;
+            this.numer = numer;
+            this.szerokosc = szerokosc;
+            this.wysokosc = wysokosc;
+            this.nizszy = nizszy;
+
+            int k = eksport.kafel;
+            int wysBufora = Math.min(wysokosc, k + 2 * eksport.zakladka);
+            bufor = new BufferedImage(szerokosc, wysBufora, eksport.alfa
+                    ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            dane = ((DataBufferInt) bufor.getRaster().getDataBuffer()).getData();
+            wierszyKafli = (wysokosc + k - 1) / k;
+            kolumnKafli = (szerokosc + k - 1) / k;
+
+            parzysty = (nizszy < 0) ? null : new int[szerokosc];
+            pomniejszony = (nizszy < 0) ? null : new int[(szerokosc + 1) / 2];
+        }
+
+        void dodajWiersz(int [] wiersz) throws IOException
+        {
+            int y = pierwszy + liczba;
+            System.arraycopy(wiersz, 0, dane, liczba * szerokosc, szerokosc);
+            liczba++;
+
+            int k = eksport.kafel;
+            int z = eksport.zakladka;
+            while (wierszKafli < wierszyKafli
+                    && pierwszy + liczba >= Math.min(wysokosc, (wierszKafli + 1) * k + z))
+            {
+                zapiszWierszKafli();
+                wierszKafli++;
+
+                // zostają wiersze zakładki dla następnego wiersza kafli
+                int nowyPierwszy = Math.min(pierwszy + liczba,
+                        Math.max(pierwszy, wierszKafli * k - z));
+                int przesuniecie = nowyPierwszy - pierwszy;
+                if (przesuniecie > 0)
+                {
+                    liczba -= przesuniecie;
+                    System.arraycopy(dane, przesuniecie * szerokosc, dane, 0, liczba * szerokosc);
+                    pierwszy = nowyPierwszy;
+                }
+            }
+
+            if (nizszy < 0)
+                return;
+
+            // para wierszy (lub ostatni, nieparzysty) - wiersz poziomu niższego
+            if ((y & 1) == 0 && y < wysokosc - 1)
+            {
+                System.arraycopy(wiersz, 0, parzysty, 0, szerokosc);
+                return;
+            }
+
+            pomniejsz((y & 1) == 0 ? wiersz : parzysty, wiersz, pomniejszony);
+            eksport.poziomy[nizszy].dodajWiersz(pomniejszony);
+        }
+
+        private void zapiszWierszKafli() throws IOException
+        {
+            int k = eksport.kafel;
+            int z = eksport.zakladka;
+            int y0 = Math.max(0, wierszKafli * k - z);
+            int y1 = Math.min(wysokosc, (wierszKafli + 1) * k + z);
+
+            for (int c = 0; c < kolumnKafli; c++)
+            {
+                int x0 = Math.max(0, c * k - z);
+                int x1 = Math.min(szerokosc, (c + 1) * k + z);
+
+                // kopia - bufor zmieni się, zanim kafel zostanie zapisany
+                BufferedImage obraz = new BufferedImage(x1 - x0, y1 - y0, bufor.getType());
+                obraz.getRaster().setDataElements(0, 0, bufor.getRaster().createChild(
+                        x0, y0 - pierwszy, x1 - x0, y1 - y0, 0, 0, null));
+
+                eksport.zapisz(obraz, numer, c, wierszKafli);
+            }
+        }
+
+        /**
+         * Uśrednia piksele 2x2 wierszy a i b (ostatnia nieparzysta kolumna -
+         * piksele 1x2); kolor ważony alfą, żeby przezroczyste piksele
+         * nie przebarwiały sąsiednich
+         */
+        private void pomniejsz(int [] a, int [] b, int [] wynik)
+        {
+            boolean alfa = eksport.alfa;
+
+            for (int x = 0, i = 0; x < wynik.length; x++, i += 2)
+            {
+                int j = Math.min(i + 1, szerokosc - 1);
+                int p0 = a[i], p1 = a[j], p2 = b[i], p3 = b[j];
+
+                if (!alfa)
+                {
+                    wynik[x] = 0xff000000
+                            | (((((p0 >> 16) & 0xff) + ((p1 >> 16) & 0xff) + ((p2 >> 16) & 0xff)
+                                + ((p3 >> 16) & 0xff) + 2) >> 2) << 16)
+                            | (((((p0 >> 8) & 0xff) + ((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff)
+                                + ((p3 >> 8) & 0xff) + 2) >> 2) << 8)
+                            | (((p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + 2) >> 2);
+                    continue;
+                }
+
+                int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+                int suma = a0 + a1 + a2 + a3;
+                if (suma == 0)
+                {
+                    wynik[x] = 0;
+                    continue;
+                }
+
+                int pol = suma >> 1;
+                int r = (a0 * ((p0 >> 16) & 0xff) + a1 * ((p1 >> 16) & 0xff)
+                        + a2 * ((p2 >> 16) & 0xff) + a3 * ((p3 >> 16) & 0xff) + pol) / suma;
+                int g = (a0 * ((p0 >> 8) & 0xff) + a1 * ((p1 >> 8) & 0xff)
+                        + a2 * ((p2 >> 8) & 0xff) + a3 * ((p3 >> 8) & 0xff) + pol) / suma;
+                int bl = (a0 * (p0 & 0xff) + a1 * (p1 & 0xff)
+                        + a2 * (p2 & 0xff) + a3 * (p3 & 0xff) + pol) / suma;
+
+                wynik[x] = (((suma + 2) >> 2) << 24) | (r << 16) | (g << 8) | bl;
+            }
+        }
+    }
+}
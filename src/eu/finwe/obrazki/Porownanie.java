@@ -0,0 +1,447 @@
+package eu.finwe.obrazki;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Porównanie dwóch obrazów o tych samych wymiarach: dokładna równość,
+ * największa różnica próbek, PSNR i SSIM. Służy do sprawdzania, czy
+ * szybsze, przybliżone wersje operacji dają wyniki dostatecznie bliskie
+ * dotychczasowym - zarówno w kodzie, jak i w testach regresyjnych
+ * (main() zwraca kod wyjścia 1, gdy PSNR jest za mały).
+ *
+ * Obrazy w tym samym modelu kolorów (bez palety) porównywane są próbka
+ * po próbce, w jednostkach próbek; pozostałe - po przekształceniu do
+ * 8-bitowego ARGB (jak getRGB()). PSNR i SSIM pomijają kanał alfa, a
+ * błędy pasm o różnej głębi bitowej (np. 565) są normalizowane do
+ * zakresu pasma. SSIM liczony jest dla jasności w kwadratowych kaflach
+ * 8x8 pikseli i uśredniany ze względu na liczbę pikseli kafli.
+ *
+ * Wszystko liczone jest w jednym, równoległym przebiegu po pasach kafli,
+ * dla typowych obrazów wprost z DataBuffer. rowne() przerywa pracę
+ * wszystkich pasów po znalezieniu pierwszej różnicy.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public final class Porownanie {
+
+    /** bok kafla dla SSIM */
+    private static final int KAFEL = 8;
+
+    /** stałe stabilizujące SSIM dla zakresu [0, 1] */
+    private static final double C1 = 0.01 * 0.01;
+    private static final double C2 = 0.03 * 0.03;
+
+    private final int maksRoznica;
+    private final double mse;
+    private final double ssim;
+
+    private Porownanie(int maksRoznica, double mse, double ssim)
+    {
+        this.maksRoznica = maksRoznica;
+        this.mse = mse;
+        this.ssim = ssim;
+    }
+
+    /**
+     * Czytanie wierszy obu obrazów jako próbek w tej samej postaci
+     */
+    private static final class Czytnik
+    {
+        final BufferedImage a;
+        final BufferedImage b;
+        final DostepBufora da;
+        final DostepBufora db;
+        /** true: próbki rastra, false: kanały ARGB */
+        final boolean probki;
+        final int pasma;
+        /** największa wartość próbki każdego pasma */
+        final int [] maks;
+        /** pasma koloru (bez alfy) */
+        final int pasmaKoloru;
+
+        Czytnik(BufferedImage a, BufferedImage b)
+        {
+            if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+                throw new IllegalArgumentException("wymiary obrazów nie pasują");
+
+            this.a = a;
+            this.b = b;
+            da = DostepBufora.z(a);
+            db = DostepBufora.z(b);
+
+            ColorModel cm = a.getColorModel();
+            probki = Util.tenSamModel(cm, b.getColorModel()) && !(cm instanceof IndexColorModel)
+                    && a.getRaster().getNumBands() == b.getRaster().getNumBands();
+
+            if (probki)
+            {
+                pasma = a.getRaster().getNumBands();
+                maks = new int[pasma];
+                for (int i = 0; i < pasma; i++)
+                    maks[i] = (1 << a.getSampleModel().getSampleSize(i)) - 1;
+                pasmaKoloru = Math.min(pasma, cm.getNumColorComponents());
+            }
+            else
+            {
+                // R, G, B, A
+                pasma = 4;
+                maks = new int[] { 255, 255, 255, 255 };
+                pasmaKoloru = 3;
+            }
+        }
+
+        /**
+         * Czyta wiersz y obrazu im (a lub b) do tablicy w * pasma próbek
+         */
+        void wiersz(BufferedImage im, DostepBufora d, int y, int [] wynik, int [] argb)
+        {
+            int w = d.szerokosc;
+
+            if (!probki)
+            {
+                d.wierszArgb(y, argb);
+                for (int x = 0, i = 0; x < w; x++, i += 4)
+                {
+                    int p = argb[x];
+                    wynik[i] = (p >> 16) & 0xff;
+                    wynik[i + 1] = (p >> 8) & 0xff;
+                    wynik[i + 2] = p & 0xff;
+                    wynik[i + 3] = p >>> 24;
+                }
+                return;
+            }
+
+            if (d.rodzaj == DostepBufora.INT_PAKOWANY)
+            {
+                int [] m = d.maski;
+                int [] s = d.przesuniecia;
+                int j = d.indeks(0, y);
+                for (int x = 0, i = 0; x < w; x++, j++)
+                {
+                    int p = d.daneInt[j];
+                    for (int k = 0; k < pasma; k++)
+                        wynik[i++] = (p & m[k]) >>> s[k];
+                }
+                return;
+            }
+
+            if (d.rodzaj == DostepBufora.BAJT_PRZEPLATANY)
+            {
+                int [] pp = d.przesunieciaPasm;
+                int j = d.indeks(0, y);
+                for (int x = 0, i = 0; x < w; x++, j += d.krokPiksela)
+                    for (int k = 0; k < pasma; k++)
+                        wynik[i++] = d.daneBajt[j + pp[k]] & 0xff;
+                return;
+            }
+
+            im.getRaster().getPixels(0, y, w, 1, wynik);
+        }
+    }
+
+    /**
+     * Sprawdza, czy obrazy są identyczne: te same wymiary i te same
+     * próbki (dla tego samego modelu kolorów) lub te same kolory ARGB.
+     * Kończy pracę po znalezieniu pierwszej różnicy.
+     *
+     * @param a pierwszy obraz
+     * @param b drugi obraz
+     * @return true, jeśli obrazy są identyczne
+     */
+    public static boolean rowne(final BufferedImage a, final BufferedImage b)
+    {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+            return false;
+
+        final Czytnik c = new Czytnik(a, b);
+        final int w = a.getWidth();
+        int h = a.getHeight();
+        // ten sam model kolorów i rodzaj układu - wystarczy porównać elementy
+        // tablic (próbki pasma mogą leżeć w pikselach w innej kolejności)
+        final boolean surowe = c.probki && c.da.rodzaj == c.db.rodzaj
+                && c.da.rodzaj != DostepBufora.INNY;
+        final AtomicBoolean rozne = new AtomicBoolean(false);
+
+        Rownolegle.wykonaj(Rownolegle.liczbaPasow(w, h), h, new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odWiersza, int doWiersza)
+            {
+                DostepBufora da = c.da;
+                DostepBufora db = c.db;
+                int [] wa = null;
+                int [] wb = null;
+                int [] argb = null;
+
+                for (int y = odWiersza; y < doWiersza; y++)
+                {
+                    // któryś pas znalazł już różnicę
+                    if (rozne.get())
+                        return;
+
+                    boolean ok = true;
+                    if (surowe && da.rodzaj == DostepBufora.INT_PAKOWANY)
+                    {
+                        // bity spoza masek pasm nie należą do piksela
+                        int maska = 0;
+                        for (int m : da.maski)
+                            maska |= m;
+                        int i = da.indeks(0, y);
+                        int j = db.indeks(0, y);
+                        for (int x = 0; x < w && ok; x++)
+                            ok = ((da.daneInt[i++] ^ db.daneInt[j++]) & maska) == 0;
+                    }
+                    else if (surowe)
+                    {
+                        int [] pa = da.przesunieciaPasm;
+                        int [] pb = db.przesunieciaPasm;
+                        int i = da.indeks(0, y);
+                        int j = db.indeks(0, y);
+                        for (int x = 0; x < w && ok; x++, i += da.krokPiksela, j += db.krokPiksela)
+                            for (int k = 0; k < pa.length; k++)
+                                ok &= da.daneBajt[i + pa[k]] == db.daneBajt[j + pb[k]];
+                    }
+                    else
+                    {
+                        if (wa == null)
+                        {
+                            wa = new int[w * c.pasma];
+                            wb = new int[w * c.pasma];
+                            argb = new int[w];
+                        }
+                        c.wiersz(c.a, da, y, wa, argb);
+                        c.wiersz(c.b, db, y, wb, argb);
+                        for (int i = 0; i < wa.length && ok; i++)
+                            ok = wa[i] == wb[i];
+                    }
+
+                    if (!ok)
+                    {
+                        rozne.set(true);
+                        return;
+                    }
+                }
+            }
+        });
+
+        return !rozne.get();
+    }
+
+    /**
+     * Porównuje obrazy, licząc wszystkie miary naraz
+     *
+     * @param a pierwszy obraz (np. wynik wzorcowy)
+     * @param b drugi obraz
+     * @return wynik porównania
+     * @throws IllegalArgumentException gdy wymiary obrazów się różnią
+     */
+    public static Porownanie licz(final BufferedImage a, final BufferedImage b)
+    {
+        final Czytnik c = new Czytnik(a, b);
+        final int w = a.getWidth();
+        final int h = a.getHeight();
+        final int pasma = c.pasma;
+        final int kafliPoziomo = (w + KAFEL - 1) / KAFEL;
+        int kafliPionowo = (h + KAFEL - 1) / KAFEL;
+
+        // pasy obejmują całe wiersze kafli
+        int n = Math.max(1, Math.min(Rownolegle.liczbaPasow(w, h), kafliPionowo));
+        final int [] maks = new int[n];
+        final double [] sumaKw = new double[n];
+        final double [] sumaSsim = new double[n];
+
+        // udział pasma w jasności i odwrotność zakresu pasma
+        final double [] waga = new double[pasma];
+        final double [] skala = new double[pasma];
+        for (int k = 0; k < pasma; k++)
+            skala[k] = 1.0 / c.maks[k];
+        if (c.pasmaKoloru >= 3)
+        {
+            waga[0] = 0.299;
+            waga[1] = 0.587;
+            waga[2] = 0.114;
+        }
+        else
+            waga[0] = 1;
+
+        Rownolegle.wykonaj(n, kafliPionowo, new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odKafla, int doKafla)
+            {
+                int [] wa = new int[w * pasma];
+                int [] wb = new int[w * pasma];
+                int [] argb = new int[w];
+                // sumy jasności w kaflach bieżącego wiersza kafli
+                double [] sa = new double[kafliPoziomo];
+                double [] sb = new double[kafliPoziomo];
+                double [] saa = new double[kafliPoziomo];
+                double [] sbb = new double[kafliPoziomo];
+                double [] sab = new double[kafliPoziomo];
+
+                int najwieksza = 0;
+                double kw = 0;
+                double ssim = 0;
+
+                for (int ky = odKafla; ky < doKafla; ky++)
+                {
+                    int odY = ky * KAFEL;
+                    int doY = Math.min(h, odY + KAFEL);
+
+                    Arrays.fill(sa, 0);
+                    Arrays.fill(sb, 0);
+                    Arrays.fill(saa, 0);
+                    Arrays.fill(sbb, 0);
+                    Arrays.fill(sab, 0);
+
+                    for (int y = odY; y < doY; y++)
+                    {
+                        c.wiersz(c.a, c.da, y, wa, argb);
+                        c.wiersz(c.b, c.db, y, wb, argb);
+
+                        for (int x = 0, i = 0; x < w; x++, i += pasma)
+                        {
+                            double ya = 0;
+                            double yb = 0;
+                            for (int k = 0; k < pasma; k++)
+                            {
+                                int d = Math.abs(wa[i + k] - wb[i + k]);
+                                if (d > najwieksza)
+                                    najwieksza = d;
+                                if (k < c.pasmaKoloru)
+                                {
+                                    double e = d * skala[k];
+                                    kw += e * e;
+                                    ya += waga[k] * wa[i + k] * skala[k];
+                                    yb += waga[k] * wb[i + k] * skala[k];
+                                }
+                            }
+
+                            int kx = x / KAFEL;
+                            sa[kx] += ya;
+                            sb[kx] += yb;
+                            saa[kx] += ya * ya;
+                            sbb[kx] += yb * yb;
+                            sab[kx] += ya * yb;
+                        }
+                    }
+
+                    for (int kx = 0; kx < kafliPoziomo; kx++)
+                    {
+                        int ile = (Math.min(w, (kx + 1) * KAFEL) - kx * KAFEL) * (doY - odY);
+                        double ma = sa[kx] / ile;
+                        double mb = sb[kx] / ile;
+                        double va = Math.max(0, saa[kx] / ile - ma * ma);
+                        double vb = Math.max(0, sbb[kx] / ile - mb * mb);
+                        double kow = sab[kx] / ile - ma * mb;
+
+                        double s = ((2 * ma * mb + C1) * (2 * kow + C2))
+                                / ((ma * ma + mb * mb + C1) * (va + vb + C2));
+                        ssim += s * ile;
+                    }
+                }
+
+                maks[nrPasa] = najwieksza;
+                sumaKw[nrPasa] = kw;
+                sumaSsim[nrPasa] = ssim;
+            }
+        });
+
+        int najwieksza = 0;
+        double kw = 0;
+        double ssim = 0;
+        for (int i = 0; i < n; i++)
+        {
+            najwieksza = Math.max(najwieksza, maks[i]);
+            kw += sumaKw[i];
+            ssim += sumaSsim[i];
+        }
+
+        long piksele = (long) w * h;
+        if (piksele == 0)
+            return new Porownanie(0, 0, 1);
+
+        return new Porownanie(najwieksza, kw / (piksele * c.pasmaKoloru), ssim / piksele);
+    }
+
+    /**
+     * @return true, jeśli obrazy są identyczne
+     */
+    public boolean rowne()
+    {
+        return maksRoznica == 0;
+    }
+
+    /**
+     * @return największa bezwzględna różnica odpowiadających sobie próbek
+     *         (razem z alfą), w jednostkach próbek
+     */
+    public int maksRoznica()
+    {
+        return maksRoznica;
+    }
+
+    /**
+     * @return błąd średniokwadratowy pasm koloru, dla próbek
+     *         znormalizowanych do [0, 1]
+     */
+    public double mse()
+    {
+        return mse;
+    }
+
+    /**
+     * @return szczytowy stosunek sygnału do szumu w dB;
+     *         Double.POSITIVE_INFINITY dla identycznych kolorów
+     */
+    public double psnr()
+    {
+        if (mse == 0)
+            return Double.POSITIVE_INFINITY;
+        return 10 * Math.log10(1 / mse);
+    }
+
+    /**
+     * @return średni wskaźnik SSIM jasności, od -1 do 1 (1 - obrazy identyczne)
+     */
+    public double ssim()
+    {
+        return ssim;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("maksRoznica=%d, PSNR=%.2f dB, SSIM=%.5f", maksRoznica, psnr(), ssim);
+    }
+
+    /**
+     * Porównuje dwa pliki z obrazami; kod wyjścia 1 oznacza PSNR mniejszy
+     * od podanego (domyślnie: obrazy nie są identyczne)
+     *
+     * Uruchomienie: java eu.finwe.obrazki.Porownanie wzorzec obraz [minPSNR]
+     */
+    public static void main(String args[])
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Uruchomienie: java eu.finwe.obrazki.Porownanie wzorzec obraz [minPSNR]");
+            System.exit(2);
+        }
+
+        BufferedImage a = Util.czytaj(args[0]);
+        BufferedImage b = Util.czytaj(args[1]);
+        if (a == null || b == null)
+            System.exit(2);
+
+        double minPsnr = (args.length > 2) ? Double.parseDouble(args[2]) : Double.POSITIVE_INFINITY;
+
+        Porownanie p = licz(a, b);
+        System.out.println(p);
+
+        System.exit(p.psnr() >= minPsnr ? 0 : 1);
+    }
+}
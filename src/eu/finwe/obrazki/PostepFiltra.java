@@ -0,0 +1,22 @@
+package eu.finwe.obrazki;
+
+/**
+ * Odbiorca informacji o postępie filtracji asynchronicznej
+ * (zob. Filtr.filterAsync() oraz Util.filtrujAsynchronicznie())
+ *
+ * Metoda wywoływana jest w wątku wykonującym filtrację, więc powinna
+ * wracać szybko.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public interface PostepFiltra {
+
+    /**
+     * Informuje o liczbie gotowych wierszy obrazu wynikowego
+     *
+     * @param gotoweWiersze liczba wierszy obrazu wynikowego już policzonych
+     * @param wszystkieWiersze wysokość obrazu wynikowego
+     */
+    void postep(int gotoweWiersze, int wszystkieWiersze);
+}
@@ -0,0 +1,114 @@
+package eu.finwe.obrazki;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Pomocnicza klasa do równoległego przetwarzania obrazów pasami wierszy
+ * we wspólnej puli wątków (ForkJoinPool.commonPool()).
+ *
+ * Pasy numerowane są od 0, więc metody zbierające wyniki (np. histogramy)
+ * mogą przygotować osobny akumulator dla każdego pasa i połączyć je po
+ * zakończeniu wykonaj() - bez żadnej synchronizacji w pętlach.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+final class Rownolegle {
+
+    /** poniżej tej liczby pikseli nie opłaca się dzielić pracy */
+    private static final int MIN_PIKSELI_NA_PAS = 1 << 16;
+    /** największa liczba pasów z liczbaPasowStala() */
+    private static final int MAX_PASOW_STALYCH = 64;
+
+    /**
+     * Praca do wykonania dla jednego pasa wierszy
+     */
+    interface Pas
+    {
+        /**
+         * @param nrPasa numer pasa, od 0 do liczbaPasow - 1
+         * @param odWiersza pierwszy wiersz pasa
+         * @param doWiersza wiersz za ostatnim wierszem pasa
+         */
+        void licz(int nrPasa, int odWiersza, int doWiersza);
+    }
+
+    private Rownolegle()
+    {
+    }
+
+    /**
+     * Dobiera liczbę pasów dla obrazu o podanych wymiarach
+     *
+     * @param szerokosc szerokość obrazu
+     * @param wysokosc wysokość obrazu
+     * @return liczba pasów, co najmniej 1
+     */
+    static int liczbaPasow(int szerokosc, int wysokosc)
+    {
+        long piksele = (long) szerokosc * wysokosc;
+        int watki = ForkJoinPool.getCommonPoolParallelism();
+
+        // kilka pasów na wątek wyrównuje nierówne tempo pracy wątków
+        long n = Math.min(piksele / MIN_PIKSELI_NA_PAS, 4L * watki);
+        n = Math.min(n, wysokosc);
+
+        return (int) Math.max(1, n);
+    }
+
+    /**
+     * Dobiera liczbę pasów zależną tylko od wymiarów obrazu, nie od liczby
+     * wątków puli - dla operacji, których wynik zależy od granic pasów
+     * (np. zaokrągleń AffineTransformOp), żeby był taki sam na każdej maszynie
+     *
+     * @param szerokosc szerokość obrazu
+     * @param wysokosc wysokość obrazu
+     * @return liczba pasów, co najmniej 1
+     */
+    static int liczbaPasowStala(int szerokosc, int wysokosc)
+    {
+        long n = Math.min((long) szerokosc * wysokosc / MIN_PIKSELI_NA_PAS, MAX_PASOW_STALYCH);
+        n = Math.min(n, wysokosc);
+
+        return (int) Math.max(1, n);
+    }
+
+    /**
+     * Dzieli wiersze [0, wysokosc) na liczbaPasow równych pasów i wykonuje
+     * pas.licz() dla każdego z nich równolegle. Wraca po zakończeniu
+     * wszystkich pasów; wyjątek z któregokolwiek pasa jest przekazywany dalej.
+     *
+     * @param liczbaPasow liczba pasów (zob. liczbaPasow())
+     * @param wysokosc liczba wierszy
+     * @param pas praca do wykonania
+     */
+    static void wykonaj(int liczbaPasow, int wysokosc, final Pas pas)
+    {
+        if (liczbaPasow <= 1)
+        {
+            pas.licz(0, 0, wysokosc);
+            return;
+        }
+
+        ForkJoinTask<?> [] zadania = new ForkJoinTask<?>[liczbaPasow];
+        for (int i = 0; i < liczbaPasow; i++)
+        {
+            final int nr = i;
+            final int od = (int) ((long) wysokosc * i / liczbaPasow);
+            final int doW = (int) ((long) wysokosc * (i + 1) / liczbaPasow);
+
+            zadania[i] = ForkJoinPool.commonPool().submit(new Runnable() {
+                @Override
+                public void run()
+                {
+                    pas.licz(nr, od, doW);
+                }
+            });
+        }
+
+        // join() przekazuje dalej wyjątki niekontrolowane z zadań
+        for (ForkJoinTask<?> z : zadania)
+            z.join();
+    }
+}
@@ -0,0 +1,279 @@
+package eu.finwe.obrazki;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * Statystyki próbek obrazu liczone osobno dla każdego pasma rastra:
+ * histogram, minimum, maksimum, średnia i wariancja.
+ *
+ * Wszystko liczone jest w jednym, równoległym przebiegu po danych obrazu:
+ * każdy pas wierszy zbiera własne histogramy, które na końcu są sumowane,
+ * a pozostałe wielkości wyznaczane są z histogramu. Dla typowych obrazów
+ * (int upakowane, bajty przeplatane) dane czytane są wprost z DataBuffer.
+ *
+ * Pasma to pasma rastra, a nie kolory - dla obrazów z paletą jest to
+ * jedno pasmo indeksów, dla obrazów z kanałem alfa alfa jest osobnym
+ * pasmem (zwykle ostatnim).
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public final class Statystyki {
+
+    private final long [][] histogramy;
+    private final int [] minimum;
+    private final int [] maksimum;
+    private final double [] srednia;
+    private final double [] wariancja;
+    private final long liczbaPikseli;
+
+    private Statystyki(long [][] histogramy, long liczbaPikseli)
+    {
+        int pasma = histogramy.length;
+
+        this.histogramy = histogramy;
+        this.liczbaPikseli = liczbaPikseli;
+
+        minimum = new int[pasma];
+        maksimum = new int[pasma];
+        srednia = new double[pasma];
+        wariancja = new double[pasma];
+
+        for (int b = 0; b < pasma; b++)
+        {
+            long [] h = histogramy[b];
+            double suma = 0;
+            double sumaKw = 0;
+            int min = -1;
+            int max = -1;
+
+            for (int v = 0; v < h.length; v++)
+            {
+                if (h[v] == 0)
+                    continue;
+                if (min < 0)
+                    min = v;
+                max = v;
+                suma += (double) v * h[v];
+                sumaKw += (double) v * v * h[v];
+            }
+
+            minimum[b] = Math.max(min, 0);
+            maksimum[b] = Math.max(max, 0);
+
+            if (liczbaPikseli > 0)
+            {
+                srednia[b] = suma / liczbaPikseli;
+                // wariancja populacji; max() chroni przed -0.0000001 z zaokrągleń
+                wariancja[b] = Math.max(0, sumaKw / liczbaPikseli - srednia[b] * srednia[b]);
+            }
+        }
+    }
+
+    /**
+     * Liczy statystyki obrazu
+     *
+     * @param im obraz
+     * @return statystyki wszystkich pasm rastra obrazu
+     * @throws IllegalArgumentException gdy próbki mają więcej niż 16 bitów
+     */
+    public static Statystyki licz(final BufferedImage im)
+    {
+        final WritableRaster r = im.getRaster();
+        final int pasma = r.getNumBands();
+        final int [] rozmiary = new int[pasma];
+
+        for (int b = 0; b < pasma; b++)
+        {
+            int bity = r.getSampleModel().getSampleSize(b);
+            if (bity > 16)
+                throw new IllegalArgumentException("obsługiwane są próbki do 16 bitów");
+            rozmiary[b] = 1 << bity;
+        }
+
+        final int w = im.getWidth();
+        final int h = im.getHeight();
+        final DostepBufora bufor = DostepBufora.z(im);
+
+        int n = Rownolegle.liczbaPasow(w, h);
+
+        // osobne histogramy dla każdego pasa - wątki niczego nie współdzielą
+        final long [][][] czesciowe = new long[n][pasma][];
+        for (int i = 0; i < n; i++)
+            for (int b = 0; b < pasma; b++)
+                czesciowe[i][b] = new long[rozmiary[b]];
+
+        Rownolegle.wykonaj(n, h, new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odWiersza, int doWiersza)
+            {
+                long [][] hist = czesciowe[nrPasa];
+
+                switch (bufor.rodzaj)
+                {
+                    case DostepBufora.INT_PAKOWANY:
+                        liczInt(bufor, hist, odWiersza, doWiersza);
+                        break;
+                    case DostepBufora.BAJT_PRZEPLATANY:
+                        liczBajt(bufor, hist, odWiersza, doWiersza);
+                        break;
+                    default:
+                        liczRaster(r, w, hist, odWiersza, doWiersza);
+                }
+            }
+        });
+
+        // scalanie
+        long [][] wynik = czesciowe[0];
+        for (int i = 1; i < n; i++)
+            for (int b = 0; b < pasma; b++)
+            {
+                long [] cel = wynik[b];
+                long [] zrodlo = czesciowe[i][b];
+                for (int v = 0; v < cel.length; v++)
+                    cel[v] += zrodlo[v];
+            }
+
+        return new Statystyki(wynik, (long) w * h);
+    }
+
+    private static void liczInt(DostepBufora bufor, long [][] hist,
+            int odWiersza, int doWiersza)
+    {
+        int [] dane = bufor.daneInt;
+        int [] maski = bufor.maski;
+        int [] przes = bufor.przesuniecia;
+        int pasma = bufor.liczbaPasm;
+        int w = bufor.szerokosc;
+
+        for (int y = odWiersza; y < doWiersza; y++)
+        {
+            int i = bufor.indeks(0, y);
+            for (int x = 0; x < w; x++, i++)
+            {
+                int p = dane[i];
+                for (int b = 0; b < pasma; b++)
+                    hist[b][(p & maski[b]) >>> przes[b]]++;
+            }
+        }
+    }
+
+    private static void liczBajt(DostepBufora bufor, long [][] hist,
+            int odWiersza, int doWiersza)
+    {
+        byte [] dane = bufor.daneBajt;
+        int [] pp = bufor.przesunieciaPasm;
+        int pasma = bufor.liczbaPasm;
+        int krok = bufor.krokPiksela;
+        int w = bufor.szerokosc;
+
+        for (int y = odWiersza; y < doWiersza; y++)
+        {
+            int i = bufor.indeks(0, y);
+            for (int x = 0; x < w; x++, i += krok)
+                for (int b = 0; b < pasma; b++)
+                    hist[b][dane[i + pp[b]] & 0xff]++;
+        }
+    }
+
+    private static void liczRaster(WritableRaster r, int w, long [][] hist,
+            int odWiersza, int doWiersza)
+    {
+        int pasma = hist.length;
+        int [] wiersz = new int[w * pasma];
+
+        for (int y = odWiersza; y < doWiersza; y++)
+        {
+            r.getPixels(0, y, w, 1, wiersz);
+            for (int i = 0; i < wiersz.length; i += pasma)
+                for (int b = 0; b < pasma; b++)
+                    hist[b][wiersz[i + b]]++;
+        }
+    }
+
+    /**
+     * @return liczba pasm, dla których policzono statystyki
+     */
+    public int liczbaPasm()
+    {
+        return histogramy.length;
+    }
+
+    /**
+     * @return liczba pikseli obrazu
+     */
+    public long liczbaPikseli()
+    {
+        return liczbaPikseli;
+    }
+
+    /**
+     * @param pasmo numer pasma rastra
+     * @return histogram pasma (kopia); indeks to wartość próbki
+     */
+    public long [] histogram(int pasmo)
+    {
+        return histogramy[pasmo].clone();
+    }
+
+    /**
+     * @param pasmo numer pasma rastra
+     * @return najmniejsza wartość próbki w paśmie
+     */
+    public int minimum(int pasmo)
+    {
+        return minimum[pasmo];
+    }
+
+    /**
+     * @param pasmo numer pasma rastra
+     * @return największa wartość próbki w paśmie
+     */
+    public int maksimum(int pasmo)
+    {
+        return maksimum[pasmo];
+    }
+
+    /**
+     * @param pasmo numer pasma rastra
+     * @return średnia wartość próbki w paśmie
+     */
+    public double srednia(int pasmo)
+    {
+        return srednia[pasmo];
+    }
+
+    /**
+     * @param pasmo numer pasma rastra
+     * @return wariancja (populacji) wartości próbek w paśmie
+     */
+    public double wariancja(int pasmo)
+    {
+        return wariancja[pasmo];
+    }
+
+    /**
+     * Wyznacza wartość próbki, poniżej której leży podana część pikseli
+     * (np. 0.01 - dolny 1% histogramu)
+     *
+     * @param pasmo numer pasma rastra
+     * @param czesc część pikseli, od 0 do 1
+     * @return najmniejsza wartość v, dla której co najmniej czesc pikseli
+     *         ma próbkę <= v
+     */
+    public int kwantyl(int pasmo, double czesc)
+    {
+        long [] h = histogramy[pasmo];
+        long prog = (long) Math.ceil(czesc * liczbaPikseli);
+        long suma = 0;
+
+        for (int v = 0; v < h.length; v++)
+        {
+            suma += h[v];
+            if (suma >= prog && suma > 0)
+                return v;
+        }
+        return maksimum[pasmo];
+    }
+}
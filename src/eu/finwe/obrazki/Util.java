@@ -4,15 +4,19 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.image.*;
-import java.awt.Image;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.font.FontRenderContext;
 import java.awt.Point;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.io.*;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import javax.imageio.*;
 
 /**
@@ -27,6 +31,9 @@ public class Util {
     /**
      * Użyteczna metoda do szybkiego czytania plików graficznych
      * 
+     * Z plików wieloklatkowych (GIF, TIFF) czytana jest tylko pierwsza
+     * klatka; do przetwarzania wszystkich klatek służy klasa Klatki.
+     * 
      * @param nazwa nazwa pliku z obrazem
      * @return obiekt BufferedImage zawierający dane obrazu lub null w przypadku niepowodzenia
      * 
@@ -43,6 +50,29 @@ public class Util {
         }
         return ret;
     }
+
+    /**
+     * Jak czytaj(nazwa), ale korzysta z pamięci podręcznej zdekodowanych
+     * obrazów - plik czytany jest tylko wtedy, gdy nie ma go w pamięci lub
+     * zmienił się od ostatniego czytania
+     *
+     * @param nazwa nazwa pliku z obrazem
+     * @param pamiec pamięć podręczna obrazów
+     * @return prywatna kopia obrazu lub null w przypadku niepowodzenia
+     * @since 0.4
+     */
+    public static BufferedImage czytaj(String nazwa, PamiecObrazow pamiec)
+    {
+        BufferedImage ret = null;
+        try{
+            ret = pamiec.daj(nazwa);
+        }
+        catch (IOException e)
+        {
+
+        }
+        return ret;
+    }
     
     
     /**
@@ -110,11 +140,12 @@ public class Util {
      * @param wysokosc wysokość obrazka
      * @return
      */
-    private static BufferedImage czystyObraz(ColorModel cm, int szerokosc, int wysokosc)
+    static BufferedImage czystyObraz(ColorModel cm, int szerokosc, int wysokosc)
     {
         WritableRaster wr = cm.createCompatibleWritableRaster(szerokosc, wysokosc);
-     
-        return new BufferedImage(cm, wr, false, null);
+
+        // false dla modelu z alfą przemnożoną zmieniłoby model kolorów kopii
+        return new BufferedImage(cm, wr, cm.isAlphaPremultiplied(), null);
     }
     
            
@@ -127,14 +158,11 @@ public class Util {
     public static BufferedImage kopiuj(final BufferedImage src)
     {
         BufferedImage dst = czystyObraz(src);
-        /** obiekt graphics zapewnia podstawowe operacje graficzne na 
-         * przypisanym mu "płótnie".
-         */
-        Graphics2D g = dst.createGraphics();
-        /* Tutaj płótnem jest obrazek, więc
-         * rysujemy obrazek na obrazku
+        /* model kolorów jest ten sam, więc kopiujW() przepisze surowe dane
+         * pikseli; rysowanie obrazka na obrazku (Graphics2D.drawImage())
+         * dla części typów obrazów zużywa kilkukrotnie więcej pamięci
          */
-        g.drawImage(src, null, 0, 0);
+        kopiujW(src, dst);
         return dst;
     }
     
@@ -147,17 +175,102 @@ public class Util {
      * @throws może rzucić IllegalArgumentException(), gdy wymiary się nie zgadzają
      */
     private static void kopiujW(final BufferedImage src, BufferedImage dst)
+    {
+        kopiujW(src, dst, null);
+    }
+
+    /**
+     * Jak kopiujW(src, dst), ale konwersja do obrazu z paletą korzysta
+     * z rozpraszania błędu wybranego wskazówką KEY_DITHERING
+     *
+     * @param src obraz źródłowy
+     * @param dst obraz docelowy
+     * @param wskazowki wskazówki lub null
+     */
+    static void kopiujW(final BufferedImage src, BufferedImage dst,
+            RenderingHints wskazowki)
     {
         int w = src.getWidth();
         int h = src.getHeight();
         
         if (w != dst.getWidth() || h != dst.getHeight())
             throw new IllegalArgumentException("wymiary obrazów nie pasują");
-        
-        int [] bufor = src.getRGB(0, 0, w, h, null, 0, w);
-        dst.setRGB(0, 0, w, h, bufor, 0, w);
+
+        // ten sam model kolorów - bez konwersji, surowe dane wiersz po wierszu
+        if (tenSamModel(src.getColorModel(), dst.getColorModel()))
+        {
+            dst.getRaster().setDataElements(0, 0, src.getRaster());
+            return;
+        }
+
+        // paleta - setRGB() szukałby najbliższego koloru osobno dla każdego piksela
+        if (dst.getColorModel() instanceof IndexColorModel)
+        {
+            Kwantyzator.mapuj(src, dst, Wskazowki.rozpraszanie(wskazowki));
+            return;
+        }
+
+        // wiersz po wierszu - bufor na cały obraz kosztowałby 4 bajty na piksel
+        int [] bufor = new int[w];
+        for (int y = 0; y < h; y++)
+        {
+            src.getRGB(0, y, w, 1, bufor, 0, w);
+            dst.setRGB(0, y, w, 1, bufor, 0, w);
+        }
     }
     
+    /**
+     * @param src obraz źródłowy
+     * @param dst obraz docelowy
+     * @return true, jeśli dst ma paletę kolorów inną niż model kolorów src;
+     *         wynik operacji trzeba wtedy policzyć w modelu src
+     *         i skwantyzować (kopiujW()), zamiast zapisywać piksele przez
+     *         setRGB() bez rozpraszania błędu
+     */
+    static boolean przezPalete(BufferedImage src, BufferedImage dst)
+    {
+        return dst.getColorModel() instanceof IndexColorModel
+                && !tenSamModel(src.getColorModel(), dst.getColorModel());
+    }
+
+    /**
+     * Porównuje modele kolorów na potrzeby kopiowania surowych danych pikseli.
+     * ColorModel.equals() w Javie 8 nie porównuje palet IndexColorModel,
+     * przestrzeni barw ani typu danych - dwa obrazy TYPE_BYTE_INDEXED
+     * z różnymi paletami są dla niego równe.
+     *
+     * @param a pierwszy model kolorów
+     * @param b drugi model kolorów
+     * @return true, jeśli surowe dane pikseli znaczą w obu modelach to samo
+     */
+    static boolean tenSamModel(ColorModel a, ColorModel b)
+    {
+        if (a == b)
+            return true;
+        if (!a.equals(b) || a.getTransferType() != b.getTransferType()
+                || !a.getColorSpace().equals(b.getColorSpace()))
+            return false;
+
+        if (a instanceof IndexColorModel)
+        {
+            if (!(b instanceof IndexColorModel))
+                return false;
+
+            IndexColorModel pa = (IndexColorModel) a;
+            IndexColorModel pb = (IndexColorModel) b;
+            if (pa.getMapSize() != pb.getMapSize())
+                return false;
+
+            int [] ka = new int[pa.getMapSize()];
+            int [] kb = new int[pb.getMapSize()];
+            pa.getRGBs(ka);
+            pb.getRGBs(kb);
+            return Arrays.equals(ka, kb);
+        }
+
+        return true;
+    }
+
     /**
      * Tworzy obraz odbity względem pionowej osi obrazu oryginalnego.
      * Zwraca wynik jako nowy obraz.
@@ -168,13 +281,9 @@ public class Util {
     public static BufferedImage odbijPoziomo(final BufferedImage src)
     {
         BufferedImage ret = czystyObraz(src);
-        int w = src.getWidth();
-        int h = src.getHeight();
-        
-        Graphics2D g = ret.createGraphics();
-        g.drawImage(src, 0, 0, w, h, 
-                         w, 0, 0, h, null);
-        
+
+        odbijW(src, ret, true, 0, src.getHeight());
+
         return ret;
     }
     
@@ -188,16 +297,405 @@ public class Util {
     public static BufferedImage odbijPionowo(final BufferedImage src)
     {
         BufferedImage ret = czystyObraz(src);
-        int w = src.getWidth();
-        int h = src.getHeight();
-        
-        Graphics2D g = ret.createGraphics();
-        g.drawImage(src, 0, 0, w, h, 
-                         0, h, w, 0, null);
+
+        odbijW(src, ret, false, 0, src.getHeight());
+
         return ret;
-                
     }
     
+    /**
+     * Wypełnia wiersze [odWiersza, doWiersza) obrazu dst (o wymiarach src)
+     * odbiciem obrazu src. Dla tych samych modeli kolorów przepisuje surowe
+     * dane pikseli, dla różnych konwertuje kolory jak kopiujW().
+     *
+     * @param src obraz źródłowy
+     * @param dst obraz docelowy
+     * @param poziomo true - odbicie względem osi pionowej, false - poziomej
+     * @param odWiersza pierwszy wiersz obrazu dst
+     * @param doWiersza wiersz za ostatnim wierszem obrazu dst
+     */
+    private static void odbijW(final BufferedImage src, BufferedImage dst,
+            boolean poziomo, int odWiersza, int doWiersza)
+    {
+        int w = src.getWidth();
+        int h = src.getHeight();
+
+        if (tenSamModel(src.getColorModel(), dst.getColorModel()))
+        {
+            Raster sr = src.getRaster();
+            WritableRaster dr = dst.getRaster();
+            int n = sr.getNumDataElements();
+            Object wiersz = null;
+            Object odbity = null;
+
+            for (int y = odWiersza; y < doWiersza; y++)
+            {
+                if (!poziomo)
+                {
+                    wiersz = sr.getDataElements(0, h - 1 - y, w, 1, wiersz);
+                    dr.setDataElements(0, y, w, 1, wiersz);
+                    continue;
+                }
+
+                wiersz = sr.getDataElements(0, y, w, 1, wiersz);
+                if (odbity == null)
+                    odbity = sr.getDataElements(0, y, w, 1, null);
+                for (int x = 0; x < w; x++)
+                    System.arraycopy(wiersz, x * n, odbity, (w - 1 - x) * n, n);
+                dr.setDataElements(0, y, w, 1, odbity);
+            }
+            return;
+        }
+
+        int [] wiersz = new int[w];
+
+        for (int y = odWiersza; y < doWiersza; y++)
+        {
+            if (poziomo)
+            {
+                src.getRGB(0, y, w, 1, wiersz, 0, w);
+                for (int i = 0, j = w - 1; i < j; i++, j--)
+                {
+                    int t = wiersz[i];
+                    wiersz[i] = wiersz[j];
+                    wiersz[j] = t;
+                }
+            }
+            else
+                src.getRGB(0, h - 1 - y, w, 1, wiersz, 0, w);
+
+            dst.setRGB(0, y, w, 1, wiersz, 0, w);
+        }
+    }
+
+    /**
+     * Wypełnia wiersze [odWiersza, doWiersza) obrazu dst przeskalowanym
+     * obrazem src. Skalowanie przez powielanie pikseli - tak samo, jak robi
+     * to getScaledInstance(..., Image.SCALE_DEFAULT). Dla tych samych modeli
+     * kolorów przepisuje surowe dane pikseli, dla różnych konwertuje kolory
+     * jak kopiujW().
+     *
+     * @param src obraz źródłowy
+     * @param dst obraz docelowy
+     * @param odWiersza pierwszy wiersz obrazu dst
+     * @param doWiersza wiersz za ostatnim wierszem obrazu dst
+     */
+    private static void skalujW(final BufferedImage src, BufferedImage dst,
+            int odWiersza, int doWiersza)
+    {
+        int sw = src.getWidth();
+        int sh = src.getHeight();
+        int dw = dst.getWidth();
+        int dh = dst.getHeight();
+
+        // kolumny źródła odpowiadające kolumnom wyniku
+        int [] kolumny = new int[dw];
+        for (int x = 0; x < dw; x++)
+            kolumny[x] = (int)((2L * x * sw + sw) / (2L * dw));
+
+        boolean surowe = tenSamModel(src.getColorModel(), dst.getColorModel());
+        Raster sr = src.getRaster();
+        WritableRaster dr = dst.getRaster();
+        int n = sr.getNumDataElements();
+
+        Object surowyZrodla = null;
+        Object surowyWyniku = null;
+        int [] wierszZrodla = null;
+        int [] wierszWyniku = null;
+        int ostatni = -1;
+
+        for (int y = odWiersza; y < doWiersza; y++)
+        {
+            int sy = (int)((2L * y * sh + sh) / (2L * dh));
+
+            // kolejne wiersze wyniku często pochodzą z tego samego wiersza źródła
+            if (surowe)
+            {
+                if (sy != ostatni)
+                {
+                    surowyZrodla = sr.getDataElements(0, sy, sw, 1, surowyZrodla);
+                    if (surowyWyniku == null)
+                        surowyWyniku = dr.getDataElements(0, y, dw, 1, null);
+                    for (int x = 0; x < dw; x++)
+                        System.arraycopy(surowyZrodla, kolumny[x] * n, surowyWyniku, x * n, n);
+                    ostatni = sy;
+                }
+                dr.setDataElements(0, y, dw, 1, surowyWyniku);
+            }
+            else
+            {
+                if (sy != ostatni)
+                {
+                    if (wierszZrodla == null)
+                    {
+                        wierszZrodla = new int[sw];
+                        wierszWyniku = new int[dw];
+                    }
+                    src.getRGB(0, sy, sw, 1, wierszZrodla, 0, sw);
+                    for (int x = 0; x < dw; x++)
+                        wierszWyniku[x] = wierszZrodla[kolumny[x]];
+                    ostatni = sy;
+                }
+                dst.setRGB(0, y, dw, 1, wierszWyniku, 0, dw);
+            }
+        }
+    }
+
+    /** bok kwadratowego kafla przy obracaniu - kafel źródła mieści się w L1 */
+    private static final int KAFEL = 32;
+
+    /**
+     * Współczynniki przekształcenia współrzędnych piksela obrazu wynikowego
+     * (dx, dy) na współrzędne piksela źródła dla obrotów i transpozycji:
+     * sx = a[0] * dx + a[1] * dy + a[2], sy = a[3] * dx + a[4] * dy + a[5]
+     *
+     * @param typ OBROC_90, OBROC_180, OBROC_270 lub TRANSPONUJ
+     * @param w szerokość obrazu źródłowego
+     * @param h wysokość obrazu źródłowego
+     */
+    private static int [] wspolczynnikiObrotu(typFiltra typ, int w, int h)
+    {
+        switch (typ)
+        {
+            // zgodnie z ruchem wskazówek zegara
+            case OBROC_90:
+                return new int[] { 0, 1, 0, -1, 0, h - 1 };
+            case OBROC_180:
+                return new int[] { -1, 0, w - 1, 0, -1, h - 1 };
+            case OBROC_270:
+                return new int[] { 0, -1, w - 1, 1, 0, 0 };
+            case TRANSPONUJ:
+                return new int[] { 0, 1, 0, 1, 0, 0 };
+            default:
+                throw new IllegalArgumentException("Nieznany typ obrotu");
+        }
+    }
+
+    /**
+     * Wypełnia wiersze [odWiersza, doWiersza) obrazu dst obrazem src
+     * obróconym lub transponowanym. Obraz przetwarzany jest kwadratowymi
+     * kaflami, więc kolumny źródła czytane są po kilka wierszy naraz
+     * zamiast przechodzenia przez cały obraz dla każdego piksela wyniku.
+     * Dla identycznych układów pikseli (DostepBufora.zgodne()) elementy
+     * przepisywane są wprost między tablicami danych, dla tych samych
+     * modeli kolorów - surowe dane przez raster, dla różnych - z konwersją
+     * kolorów jak kopiujW().
+     *
+     * @param src obraz źródłowy
+     * @param dst obraz docelowy o wymiarach zgodnych z typem obrotu
+     * @param typ OBROC_90, OBROC_180, OBROC_270 lub TRANSPONUJ
+     * @param odWiersza pierwszy wiersz obrazu dst
+     * @param doWiersza wiersz za ostatnim wierszem obrazu dst
+     */
+    private static void obrocW(final BufferedImage src, BufferedImage dst,
+            typFiltra typ, int odWiersza, int doWiersza)
+    {
+        int dw = dst.getWidth();
+        int [] a = wspolczynnikiObrotu(typ, src.getWidth(), src.getHeight());
+
+        DostepBufora we = DostepBufora.z(src);
+        DostepBufora wy = DostepBufora.z(dst);
+
+        // ten sam model kolorów, więc pasmo b znaczy to samo w obu obrazach,
+        // nawet jeśli próbki leżą w pikselu w innej kolejności
+        if (tenSamModel(src.getColorModel(), dst.getColorModel())
+                && we.rodzaj == wy.rodzaj && we.rodzaj != DostepBufora.INNY)
+        {
+            // przesunięcie w tablicy źródła przy przejściu do następnej kolumny wyniku
+            int krok = a[0] * we.krokPiksela + a[3] * we.krokWiersza;
+            int [] pz = we.przesunieciaPasm;
+            int [] pw = wy.przesunieciaPasm;
+            int pasma = we.liczbaPasm;
+
+            for (int ky = odWiersza; ky < doWiersza; ky += KAFEL)
+            {
+                int doY = Math.min(doWiersza, ky + KAFEL);
+                for (int kx = 0; kx < dw; kx += KAFEL)
+                {
+                    int doX = Math.min(dw, kx + KAFEL);
+                    for (int y = ky; y < doY; y++)
+                    {
+                        int i = we.indeks(a[0] * kx + a[1] * y + a[2], a[3] * kx + a[4] * y + a[5]);
+                        int j = wy.indeks(kx, y);
+
+                        if (we.rodzaj == DostepBufora.INT_PAKOWANY)
+                        {
+                            for (int x = kx; x < doX; x++, i += krok)
+                                wy.daneInt[j++] = we.daneInt[i];
+                        }
+                        else if (pasma == 1)
+                        {
+                            i += pz[0];
+                            j += pw[0];
+                            for (int x = kx; x < doX; x++, i += krok, j += wy.krokPiksela)
+                                wy.daneBajt[j] = we.daneBajt[i];
+                        }
+                        else
+                        {
+                            for (int x = kx; x < doX; x++, i += krok, j += wy.krokPiksela)
+                                for (int b = 0; b < pasma; b++)
+                                    wy.daneBajt[j + pw[b]] = we.daneBajt[i + pz[b]];
+                        }
+                    }
+                }
+            }
+            return;
+        }
+
+        boolean surowe = tenSamModel(src.getColorModel(), dst.getColorModel());
+        Raster sr = src.getRaster();
+        WritableRaster dr = dst.getRaster();
+        int n = sr.getNumDataElements();
+        Object kafelZrodla = null;
+        Object kafelWyniku = null;
+        int [] rgbZrodla = null;
+        int [] rgbWyniku = null;
+
+        for (int ky = odWiersza; ky < doWiersza; ky += KAFEL)
+        {
+            int th = Math.min(doWiersza, ky + KAFEL) - ky;
+            for (int kx = 0; kx < dw; kx += KAFEL)
+            {
+                int tw = Math.min(dw, kx + KAFEL) - kx;
+
+                // prostokąt źródła odpowiadający kaflowi wyniku
+                int sx0 = a[0] * kx + a[1] * ky + a[2];
+                int sy0 = a[3] * kx + a[4] * ky + a[5];
+                int sx1 = a[0] * (kx + tw - 1) + a[1] * (ky + th - 1) + a[2];
+                int sy1 = a[3] * (kx + tw - 1) + a[4] * (ky + th - 1) + a[5];
+                int zx = Math.min(sx0, sx1);
+                int zy = Math.min(sy0, sy1);
+                int zw = Math.abs(sx1 - sx0) + 1;
+                int zh = Math.abs(sy1 - sy0) + 1;
+
+                if (surowe)
+                {
+                    // dane ostatniego kafla mają zwykle ten sam rozmiar - tablice
+                    // zwrócone przez raster używamy ponownie tylko w pełnych kaflach
+                    boolean pelny = (tw == KAFEL && th == KAFEL);
+                    Object z = sr.getDataElements(zx, zy, zw, zh, pelny ? kafelZrodla : null);
+                    Object k = dr.getDataElements(kx, ky, tw, th, pelny ? kafelWyniku : null);
+                    if (pelny)
+                    {
+                        kafelZrodla = z;
+                        kafelWyniku = k;
+                    }
+
+                    for (int y = 0; y < th; y++)
+                        for (int x = 0; x < tw; x++)
+                        {
+                            int sx = a[0] * (kx + x) + a[1] * (ky + y) + a[2] - zx;
+                            int sy = a[3] * (kx + x) + a[4] * (ky + y) + a[5] - zy;
+                            System.arraycopy(z, (sy * zw + sx) * n, k, (y * tw + x) * n, n);
+                        }
+                    dr.setDataElements(kx, ky, tw, th, k);
+                }
+                else
+                {
+                    if (rgbZrodla == null)
+                    {
+                        rgbZrodla = new int[KAFEL * KAFEL];
+                        rgbWyniku = new int[KAFEL * KAFEL];
+                    }
+                    src.getRGB(zx, zy, zw, zh, rgbZrodla, 0, zw);
+
+                    for (int y = 0; y < th; y++)
+                        for (int x = 0; x < tw; x++)
+                        {
+                            int sx = a[0] * (kx + x) + a[1] * (ky + y) + a[2] - zx;
+                            int sy = a[3] * (kx + x) + a[4] * (ky + y) + a[5] - zy;
+                            rgbWyniku[y * tw + x] = rgbZrodla[sy * zw + sx];
+                        }
+                    dst.setRGB(kx, ky, tw, th, rgbWyniku, 0, tw);
+                }
+            }
+        }
+    }
+
+    /**
+     * Obraca obraz o 180 stopni w miejscu: zamienia wiersze y i h - 1 - y
+     * (odwrócone) dla y z [odWiersza, doWiersza) należących do górnej
+     * połowy obrazu; środkowy wiersz obrazu o nieparzystej wysokości jest
+     * tylko odwracany. Wiersze dolnej połowy są pomijane, więc kolejne
+     * pasy [0, h) można przetwarzać niezależnie.
+     *
+     * @param im obraz
+     * @param odWiersza pierwszy wiersz
+     * @param doWiersza wiersz za ostatnim wierszem
+     */
+    private static void obroc180WMiejscu(BufferedImage im, int odWiersza, int doWiersza)
+    {
+        int w = im.getWidth();
+        int h = im.getHeight();
+        doWiersza = Math.min(doWiersza, (h + 1) / 2);
+
+        DostepBufora d = DostepBufora.z(im);
+        if (d.rodzaj == DostepBufora.INT_PAKOWANY)
+        {
+            int [] dane = d.daneInt;
+            for (int y = odWiersza; y < doWiersza; y++)
+            {
+                int i = d.indeks(0, y);
+                int j = d.indeks(w - 1, h - 1 - y);
+                // środkowy wiersz - tylko do połowy
+                int ile = (y == h - 1 - y) ? w / 2 : w;
+                for (int x = 0; x < ile; x++, i++, j--)
+                {
+                    int t = dane[i];
+                    dane[i] = dane[j];
+                    dane[j] = t;
+                }
+            }
+            return;
+        }
+
+        if (d.rodzaj == DostepBufora.BAJT_PRZEPLATANY)
+        {
+            byte [] dane = d.daneBajt;
+            int [] pp = d.przesunieciaPasm;
+            int k = d.krokPiksela;
+            for (int y = odWiersza; y < doWiersza; y++)
+            {
+                int i = d.indeks(0, y);
+                int j = d.indeks(w - 1, h - 1 - y);
+                int ile = (y == h - 1 - y) ? w / 2 : w;
+                for (int x = 0; x < ile; x++, i += k, j -= k)
+                    for (int b = 0; b < pp.length; b++)
+                    {
+                        byte t = dane[i + pp[b]];
+                        dane[i + pp[b]] = dane[j + pp[b]];
+                        dane[j + pp[b]] = t;
+                    }
+            }
+            return;
+        }
+
+        WritableRaster r = im.getRaster();
+        int n = r.getNumDataElements();
+        Object gora = null;
+        Object dol = null;
+        Object odwrocony = null;
+
+        for (int y = odWiersza; y < doWiersza; y++)
+        {
+            gora = r.getDataElements(0, y, w, 1, gora);
+            dol = r.getDataElements(0, h - 1 - y, w, 1, dol);
+            if (odwrocony == null)
+                odwrocony = r.getDataElements(0, y, w, 1, null);
+
+            for (int x = 0; x < w; x++)
+                System.arraycopy(dol, x * n, odwrocony, (w - 1 - x) * n, n);
+            r.setDataElements(0, y, w, 1, odwrocony);
+
+            if (y != h - 1 - y)
+            {
+                for (int x = 0; x < w; x++)
+                    System.arraycopy(gora, x * n, odwrocony, (w - 1 - x) * n, n);
+                r.setDataElements(0, h - 1 - y, w, 1, odwrocony);
+            }
+        }
+    }
+
     /**
      * Tworzy obraz w modelu kolorów obrazka źródłowego przeskalowany proporcjonalnie
      * zgodnie ze podaną skalą.
@@ -208,6 +706,25 @@ public class Util {
      */    
     public static BufferedImage skaluj(final BufferedImage src, double skala) 
                                 throws IllegalArgumentException
+    {
+        return skaluj(src, skala, null);
+    }
+
+    /**
+     * Jak skaluj(src, skala), ale sposób skalowania wybierają wskazówki:
+     * KEY_INTERPOLATION (najbliższy sąsiad, dwuliniowa, dwusześcienna),
+     * KEY_RENDERING (VALUE_RENDER_QUALITY - interpolacja dwusześcienna
+     * i stopniowe pomniejszanie), KEY_ALPHA_INTERPOLATION i KEY_DITHERING
+     * (dla obrazów z paletą)
+     *
+     * @param src obraz źródłowy
+     * @param skala skala operacji, dodatni współczynnik
+     * @param wskazowki wskazówki lub null - powielanie pikseli jak w skaluj(src, skala)
+     * @return nowy obraz - wynik przeskalowania
+     * @since 0.4
+     */
+    public static BufferedImage skaluj(final BufferedImage src, double skala,
+            RenderingHints wskazowki) throws IllegalArgumentException
     {
         if (skala < 0)
             throw new IllegalArgumentException("skala powinna być nieujemna");
@@ -218,7 +735,7 @@ public class Util {
         w = (int)(w * skala);
         h = (int)(h * skala);
         
-        return skaluj(src, w, h);
+        return skaluj(src, w, h, wskazowki);
         
     }
     
@@ -234,17 +751,310 @@ public class Util {
      */    
     public static BufferedImage skaluj(final BufferedImage src, 
                 int szerokosc, int wysokosc) throws IllegalArgumentException
+    {
+        return skaluj(src, szerokosc, wysokosc, null);
+    }
+
+    /**
+     * Jak skaluj(src, szerokosc, wysokosc), ale sposób skalowania wybierają
+     * wskazówki (zob. skaluj(src, skala, wskazowki))
+     *
+     * @param src obraz źródłowy
+     * @param szerokosc szerokosc obrazu wynikowego (w pikselach)
+     * @param wysokosc wysokosc obrazu wynikowego (w pikselach)
+     * @param wskazowki wskazówki lub null
+     * @return nowy obraz - wynik przeskalowania
+     * @since 0.4
+     */
+    public static BufferedImage skaluj(final BufferedImage src, int szerokosc,
+            int wysokosc, RenderingHints wskazowki) throws IllegalArgumentException
     {
         if (szerokosc < 0 || wysokosc < 0)
             throw new IllegalArgumentException("wysokosc i szerokosc powinny byc liczbami dodatnimi");
         
         BufferedImage ret = czystyObraz(src.getColorModel(), szerokosc, wysokosc);
-        Image tmp = src.getScaledInstance(szerokosc, wysokosc, Image.SCALE_DEFAULT);
-        Graphics2D g = ret.createGraphics();
-        g.drawImage(tmp, 0, 0, null);
+
+        if (szerokosc > 0 && wysokosc > 0)
+            skalujW(src, ret, wskazowki);
+
         return ret;
     }
-    
+
+    /**
+     * Skaluje cały obraz src do obrazu dst sposobem wybranym przez
+     * wskazówki. Bez interpolacji - powielanie pikseli jak skalujW(src,
+     * dst, od, do), czyli to samo co getScaledInstance(...,
+     * Image.SCALE_DEFAULT), ale bez pośredniego obrazu ARGB.
+     *
+     * Z interpolacją korzysta z AffineTransformOp, równolegle dla pasów
+     * wierszy dst (każdy pas z przekształceniem przesuniętym o początek
+     * pasa; zaokrąglenia stałoprzecinkowe Java2D zależą od tego początku,
+     * więc dla skal innych niż całkowite piksele na różnych pasach mogą
+     * różnić się od liczonych w całości o 1). Granice pasów zależą tylko
+     * od wymiarów dst, więc wynik jest taki sam na każdej maszynie.
+     *
+     * Obraz z alfą nieprzemnożoną może być najpierw przemnożony -
+     * AffineTransformOp interpoluje go wprost, przez co kolor przezroczystych
+     * pikseli przebarwia sąsiednie. Obrazy z paletą interpolowane są w ARGB
+     * i kwantyzowane na końcu. Przemnożenie, konwersja i pierwsze
+     * pomniejszenie o połowę tworzą jedną roboczą kopię, kolejne połowy
+     * liczone są w jej buforze.
+     *
+     * @param src obraz źródłowy
+     * @param dst obraz docelowy
+     * @param wskazowki wskazówki lub null
+     */
+    private static void skalujW(final BufferedImage src, BufferedImage dst,
+            RenderingHints wskazowki)
+    {
+        Object interpolacja = Wskazowki.interpolacja(wskazowki);
+        if (interpolacja == RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR)
+        {
+            if (!przezPalete(src, dst))
+            {
+                skalujW(src, dst, 0, dst.getHeight());
+                return;
+            }
+
+            BufferedImage tmp = czystyObraz(src.getColorModel(), dst.getWidth(), dst.getHeight());
+            skalujW(src, tmp, 0, tmp.getHeight());
+            kopiujW(tmp, dst, wskazowki);
+            return;
+        }
+
+        final int typ = (interpolacja == RenderingHints.VALUE_INTERPOLATION_BICUBIC)
+                ? AffineTransformOp.TYPE_BICUBIC : AffineTransformOp.TYPE_BILINEAR;
+        final int dw = dst.getWidth();
+        final int dh = dst.getHeight();
+
+        // obraz, który będzie interpolowany: src albo jedna robocza kopia,
+        // od razu pomniejszona o połowę, jeśli trzeba; AffineTransformOp
+        // nie radzi sobie z obrazami typu TYPE_CUSTOM (np. z rastrem
+        // z createCompatibleWritableRaster())
+        ColorModel cm = src.getColorModel();
+        int typRoboczy = src.getType();
+        if (cm.hasAlpha() && !cm.isAlphaPremultiplied() && Wskazowki.przemnazanie(wskazowki))
+            typRoboczy = BufferedImage.TYPE_INT_ARGB_PRE;
+        else if (cm instanceof IndexColorModel || src.getType() == BufferedImage.TYPE_CUSTOM)
+            typRoboczy = cm.hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        // pomniejszanie po połowie - interpolacja z 2x2 pikseli nie gubi szczegółów
+        boolean stopniowo = Wskazowki.stopniowo(wskazowki);
+        boolean poziomo = stopniowo && src.getWidth() >= 2 * dw;
+        boolean pionowo = stopniowo && src.getHeight() >= 2 * dh;
+
+        // wymiary obrazu src w pikselach z; ostatnia kolumna (wiersz) połowy
+        // z nieparzystej szerokości (wysokości) pokrywa tylko jeden piksel
+        double zw = src.getWidth();
+        double zh = src.getHeight();
+
+        BufferedImage z = src;
+        if (typRoboczy != src.getType() || poziomo || pionowo)
+        {
+            z = new BufferedImage(poziomo ? (src.getWidth() + 1) / 2 : src.getWidth(),
+                    pionowo ? (src.getHeight() + 1) / 2 : src.getHeight(), typRoboczy);
+            polowaW(src, z, poziomo, pionowo);
+            zw = poziomo ? zw / 2 : zw;
+            zh = pionowo ? zh / 2 : zh;
+
+            // kolejne połowy w tym samym buforze
+            while (z.getWidth() >= 2 * dw || z.getHeight() >= 2 * dh)
+            {
+                poziomo = z.getWidth() >= 2 * dw;
+                pionowo = z.getHeight() >= 2 * dh;
+                z = polowaWMiejscu(z, poziomo, pionowo);
+                zw = poziomo ? zw / 2 : zw;
+                zh = pionowo ? zh / 2 : zh;
+            }
+        }
+
+        // AffineTransformOp nie kwantyzuje tak jak Kwantyzator i konwertuje
+        // modele kolorów przez rysowanie - wtedy liczymy w typie z
+        BufferedImage cel = dst;
+        if (dst.getType() != z.getType() || !tenSamModel(z.getColorModel(), dst.getColorModel()))
+            cel = new BufferedImage(dw, dh, z.getType());
+
+        interpolujW(z, cel, typ, zw, zh);
+
+        if (cel != dst)
+            kopiujW(cel, dst, wskazowki);
+    }
+
+    /**
+     * Skaluje src do dst (w tym samym modelu kolorów) przez AffineTransformOp,
+     * równolegle dla pasów wierszy dst. Granice pasów zależą tylko od
+     * wymiarów dst, więc wynik nie zależy od liczby wątków puli.
+     *
+     * @param szerokosc szerokość skalowanego obszaru src (może nie obejmować
+     *        całej ostatniej kolumny)
+     * @param wysokosc wysokość skalowanego obszaru src
+     */
+    private static void interpolujW(final BufferedImage src, final BufferedImage dst,
+            final int typ, double szerokosc, double wysokosc)
+    {
+        final int dw = dst.getWidth();
+        int dh = dst.getHeight();
+        final double sx = dw / szerokosc;
+        final double sy = dh / wysokosc;
+
+        Rownolegle.wykonaj(Rownolegle.liczbaPasowStala(dw, dh), dh, new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odWiersza, int doWiersza)
+            {
+                if (odWiersza >= doWiersza)
+                    return;
+
+                AffineTransform t = AffineTransform.getTranslateInstance(0, -odWiersza);
+                t.scale(sx, sy);
+                new AffineTransformOp(t, typ).filter(src,
+                        dst.getSubimage(0, odWiersza, dw, doWiersza - odWiersza));
+            }
+        });
+    }
+
+    /**
+     * Przepisuje src do nowego obrazu roboczego dst, uśredniając pary
+     * pikseli w poziomie (poziomo) i pary wierszy (pionowo). Obraz dst
+     * innego typu niż src dostaje kolory przez ARGB, przemnożone przez
+     * alfę, jeśli dst ma alfę przemnożoną - bez pośredniej kopii src.
+     */
+    private static void polowaW(final BufferedImage src, final BufferedImage dst,
+            final boolean poziomo, final boolean pionowo)
+    {
+        final int w = src.getWidth();
+        final int h = src.getHeight();
+        final int w2 = dst.getWidth();
+        int h2 = dst.getHeight();
+        final int n = dst.getRaster().getNumBands();
+        final DostepBufora d = (src.getType() == dst.getType()) ? null : DostepBufora.z(src);
+        final boolean przemnoz = dst.isAlphaPremultiplied();
+        final WritableRaster dr = dst.getRaster();
+
+        Rownolegle.wykonaj(Rownolegle.liczbaPasow(w2, h2), h2, new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odWiersza, int doWiersza)
+            {
+                int [] argb = (d == null) ? null : new int[w];
+                int [] a = new int[w * n];
+                int [] b = pionowo ? new int[w * n] : null;
+                int [] wynik = new int[w2 * n];
+
+                for (int y = odWiersza; y < doWiersza; y++)
+                {
+                    int y0 = pionowo ? 2 * y : y;
+                    a = probkiWiersza(src, d, y0, argb, n, przemnoz, a);
+                    if (pionowo)
+                        b = probkiWiersza(src, d, Math.min(y0 + 1, h - 1), argb, n, przemnoz, b);
+
+                    usrednijWiersze(a, b, w, n, poziomo, wynik);
+                    dr.setPixels(0, y, w2, 1, wynik);
+                }
+            }
+        });
+    }
+
+    /**
+     * Pomniejsza obraz roboczy o połowę w tym samym buforze danych: wiersz y
+     * wyniku zajmuje miejsce wcześniejsze niż wiersze źródła, z których
+     * powstaje następny, więc nic nie jest nadpisane przed przeczytaniem.
+     * Obraz z musi zaczynać się na początku swojego bufora (jak obrazy
+     * tworzone przez new BufferedImage()).
+     *
+     * @return obraz o wymiarach wyniku na buforze obrazu z
+     */
+    private static BufferedImage polowaWMiejscu(BufferedImage z, boolean poziomo, boolean pionowo)
+    {
+        int w = z.getWidth();
+        int h = z.getHeight();
+        int w2 = poziomo ? (w + 1) / 2 : w;
+        int h2 = pionowo ? (h + 1) / 2 : h;
+        WritableRaster r = z.getRaster();
+        int n = r.getNumBands();
+        WritableRaster r2 = Raster.createWritableRaster(
+                r.getSampleModel().createCompatibleSampleModel(w2, h2), r.getDataBuffer(), null);
+
+        int [] a = new int[w * n];
+        int [] b = pionowo ? new int[w * n] : null;
+        int [] wynik = new int[w2 * n];
+        for (int y = 0; y < h2; y++)
+        {
+            int y0 = pionowo ? 2 * y : y;
+            a = r.getPixels(0, y0, w, 1, a);
+            if (pionowo)
+                b = r.getPixels(0, Math.min(y0 + 1, h - 1), w, 1, b);
+
+            usrednijWiersze(a, b, w, n, poziomo, wynik);
+            r2.setPixels(0, y, w2, 1, wynik);
+        }
+
+        return new BufferedImage(z.getColorModel(), r2, z.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Czyta próbki wiersza y obrazu src w kolejności pasm Raster.getPixels():
+     * wprost z rastra (d == null) albo przez ARGB jako R, G, B (i A, jeśli
+     * n == 4), przemnożone przez alfę, jeśli przemnoz
+     */
+    private static int [] probkiWiersza(BufferedImage src, DostepBufora d, int y,
+            int [] argb, int n, boolean przemnoz, int [] probki)
+    {
+        if (d == null)
+            return src.getRaster().getPixels(0, y, src.getWidth(), 1, probki);
+
+        d.wierszArgb(y, argb);
+        for (int x = 0, i = 0; x < argb.length; x++, i += n)
+        {
+            int p = argb[x];
+            int alfa = p >>> 24;
+            int r = (p >> 16) & 0xff;
+            int g = (p >> 8) & 0xff;
+            int b = p & 0xff;
+            if (przemnoz)
+            {
+                r = (r * alfa + 127) / 255;
+                g = (g * alfa + 127) / 255;
+                b = (b * alfa + 127) / 255;
+            }
+
+            probki[i] = r;
+            probki[i + 1] = g;
+            probki[i + 2] = b;
+            if (n == 4)
+                probki[i + 3] = alfa;
+        }
+
+        return probki;
+    }
+
+    /**
+     * Uśrednia próbki wierszy a i b (b == null - tylko wiersza a) oraz, jeśli
+     * poziomo, pary sąsiednich pikseli; ostatni piksel nieparzystej
+     * szerokości uśredniany jest sam ze sobą
+     *
+     * @param w szerokość wierszy a i b
+     * @param n liczba pasm
+     * @param wynik próbki wiersza wyniku
+     */
+    private static void usrednijWiersze(int [] a, int [] b, int w, int n,
+            boolean poziomo, int [] wynik)
+    {
+        int w2 = poziomo ? (w + 1) / 2 : w;
+        for (int x = 0; x < w2; x++)
+        {
+            int i0 = (poziomo ? 2 * x : x) * n;
+            int i1 = (poziomo && 2 * x + 1 < w) ? i0 + n : i0;
+            int j = x * n;
+
+            for (int k = 0; k < n; k++)
+            {
+                if (b == null)
+                    wynik[j + k] = (a[i0 + k] + a[i1 + k] + 1) >> 1;
+                else
+                    wynik[j + k] = (a[i0 + k] + a[i1 + k] + b[i0 + k] + b[i1 + k] + 2) >> 2;
+            }
+        }
+    }
+
     /**
      * Tworzy nowy obraz zawierający dane obrazu _obraz_ przekształcone do 
      * modelu kolorów określonego przez obraz _wzorzec_
@@ -254,12 +1064,57 @@ public class Util {
      * @return nowy obraz zawierający wynik operacji
      */
     public static BufferedImage dopasujTyp(final BufferedImage wzorzec, BufferedImage obraz)
+    {
+        return dopasujTyp(wzorzec, obraz, null);
+    }
+
+    /**
+     * Jak dopasujTyp(wzorzec, obraz), ale konwersja do modelu z paletą
+     * rozprasza błąd, jeśli wskazówka KEY_DITHERING ma wartość
+     * VALUE_DITHER_ENABLE (dyfuzja Floyda-Steinberga, a przy
+     * VALUE_RENDER_SPEED - szybsze rozpraszanie uporządkowane)
+     *
+     * @param wzorzec obraz dostarczający informację o modelu kolorów
+     * @param obraz obraz do konwersji
+     * @param wskazowki wskazówki lub null
+     * @return nowy obraz zawierający wynik operacji
+     * @since 0.4
+     */
+    public static BufferedImage dopasujTyp(final BufferedImage wzorzec, BufferedImage obraz,
+            RenderingHints wskazowki)
     {
         BufferedImage ret = czystyObraz(wzorzec.getColorModel(), obraz.getWidth(), obraz.getHeight());
-        kopiujW(obraz, ret);
+        kopiujW(obraz, ret, wskazowki);
         return ret;
     }
-    
+
+    /**
+     * Zwraca fragment obrazu jako widok - bez kopiowania pikseli. Wynik
+     * dzieli dane z obrazem źródłowym, więc zmiany jednego są widoczne
+     * w drugim. Wszystkie metody tej klasy i filtry z dajFiltr() obsługują
+     * takie widoki bez ich kopiowania; samodzielną kopię fragmentu daje
+     * kopiuj(wytnij(...)).
+     *
+     * @param src obraz źródłowy
+     * @param x lewa krawędź fragmentu
+     * @param y górna krawędź fragmentu
+     * @param szerokosc szerokość fragmentu (w pikselach)
+     * @param wysokosc wysokość fragmentu (w pikselach)
+     * @return widok fragmentu obrazu src
+     * @since 0.4
+     */
+    public static BufferedImage wytnij(final BufferedImage src, int x, int y,
+            int szerokosc, int wysokosc)
+    {
+        if (szerokosc <= 0 || wysokosc <= 0)
+            throw new IllegalArgumentException("wysokosc i szerokosc powinny byc liczbami dodatnimi");
+        if (x < 0 || y < 0 || (long) x + szerokosc > src.getWidth()
+                || (long) y + wysokosc > src.getHeight())
+            throw new IllegalArgumentException("fragment wykracza poza obraz");
+
+        return src.getSubimage(x, y, szerokosc, wysokosc);
+    }
+
     /**
      * Zwraca obrazek będący wynikiem mnożenia (a właściwie średnią geometryczną) 
      * obrazów podanych jako argumenty
@@ -269,33 +1124,79 @@ public class Util {
      * @return wynik mnozenia - nowy obraz
      */
     public static BufferedImage mnoz(final BufferedImage im1, final BufferedImage im2)
+    {
+        return mnoz(im1, im2, null);
+    }
+
+    /**
+     * Jak mnoz(im1, im2), ale skalowanie i konwersja drugiego czynnika
+     * korzystają ze wskazówek (zob. skaluj(src, skala, wskazowki))
+     *
+     * @param im1 pierwszy czynnik
+     * @param im2 drugi czynnik
+     * @param wskazowki wskazówki lub null
+     * @return wynik mnozenia - nowy obraz
+     * @since 0.4
+     */
+    public static BufferedImage mnoz(final BufferedImage im1, final BufferedImage im2,
+            RenderingHints wskazowki)
     {
         BufferedImage ret = czystyObraz(im1);
         
         int w = im1.getWidth();
         int h = im1.getHeight();
         
-        BufferedImage tmp = dopasujTyp(im1, skaluj(im2, w, h));
-                
-        double [] piksele1;
-        double [] piksele2; 
-        piksele1 = im1.getRaster().getPixels(0, 0, w, h, (double []) null);
-        piksele2 = tmp.getRaster().getPixels(0, 0, w, h, (double []) null);
-        
-        double [] wynik = new double[piksele1.length];
-        for (int i = 0; i < piksele1.length; i++)
+        // drugi czynnik skalujemy i konwertujemy tylko wtedy, gdy trzeba
+        BufferedImage tmp = im2;
+        if (tmp.getWidth() != w || tmp.getHeight() != h)
+            tmp = skaluj(tmp, w, h, wskazowki);
+        if (!tenSamModel(tmp.getColorModel(), im1.getColorModel()))
+            tmp = dopasujTyp(im1, tmp, wskazowki);
+
+        // wiersz po wierszu, zamiast trzech tablic double na cały obraz
+        Raster r1 = im1.getRaster();
+        Raster r2 = tmp.getRaster();
+        WritableRaster r = ret.getRaster();
+
+        double [] piksele1 = null;
+        double [] piksele2 = null;
+        for (int y = 0; y < h; y++)
         {
-            wynik[i] = Math.sqrt(piksele1[i] * piksele2[i]);
+            piksele1 = r1.getPixels(0, y, w, 1, piksele1);
+            piksele2 = r2.getPixels(0, y, w, 1, piksele2);
+
+            for (int i = 0; i < piksele1.length; i++)
+            {
+                piksele1[i] = Math.sqrt(piksele1[i] * piksele2[i]);
+            }
+
+            r.setPixels(0, y, w, 1, piksele1);
         }
-        
-        WritableRaster r = ret.getRaster();
-        
-        r.setPixels(0, 0, w, h, wynik);
-        ret.setData(r);
-        
+
         return ret;
     }
 
+    /**
+     * Zwraca obrazek będący wynikiem nałożenia obrazu im2 na im1 w podanym
+     * trybie (zob. Mieszanie). W odróżnieniu od mnoz() uwzględnia kanał alfa.
+     * Obraz im2 o innych wymiarach jest skalowany do wymiarów im1.
+     *
+     * @param im1 obraz dolny
+     * @param im2 obraz górny
+     * @param tryb tryb mieszania
+     * @return wynik mieszania - nowy obraz w modelu kolorów im1
+     * @since 0.4
+     */
+    public static BufferedImage mieszaj(final BufferedImage im1, final BufferedImage im2,
+            Mieszanie.Tryb tryb)
+    {
+        BufferedImage tmp = im2;
+        if (tmp.getWidth() != im1.getWidth() || tmp.getHeight() != im1.getHeight())
+            tmp = skaluj(tmp, im1.getWidth(), im1.getHeight());
+
+        return Mieszanie.mieszaj(im1, tmp, tryb);
+    }
+
     /**
      * Zwraca kopię obrazka z dodanym napisem. Współrzędne podawane są
      * dla punktu 0,0 w lewym górnym rogu obrazka.
@@ -311,9 +1212,32 @@ public class Util {
      */
     public static BufferedImage drukujNapisLG(BufferedImage im, String napis,
             Font czcionka, Color kolor, int odLewej, int odGory)
+    {
+        return drukujNapisLG(im, napis, czcionka, kolor, odLewej, odGory, null);
+    }
+
+    /**
+     * Jak drukujNapisLG(im, napis, czcionka, kolor, odLewej, odGory), ale
+     * napis rysowany jest z podanymi wskazówkami (np. KEY_TEXT_ANTIALIASING,
+     * KEY_FRACTIONALMETRICS, KEY_RENDERING)
+     *
+     * @param im obrazek oryginalny
+     * @param napis napis do dodania
+     * @param czcionka wybrana czcionka napisu
+     * @param kolor wybrany kolor
+     * @param odLewej pozycja od lewej (piksele)
+     * @param odGory pozycja od góry (piksele)
+     * @param wskazowki wskazówki rysowania lub null
+     * @return nowy obrazek z dodanym napisem
+     * @since 0.4
+     */
+    public static BufferedImage drukujNapisLG(BufferedImage im, String napis,
+            Font czcionka, Color kolor, int odLewej, int odGory, RenderingHints wskazowki)
     {
         BufferedImage ret = kopiuj(im);
         Graphics2D g = ret.createGraphics();
+        if (wskazowki != null)
+            g.addRenderingHints(wskazowki);
         g.setFont(czcionka);
         g.setColor(kolor);
         
@@ -337,6 +1261,27 @@ public class Util {
      */
     public static BufferedImage drukujNapisPD(BufferedImage im, String napis,
             Font czcionka, Color kolor, int odPrawej, int odDolu)
+    {
+        return drukujNapisPD(im, napis, czcionka, kolor, odPrawej, odDolu, null);
+    }
+
+    /**
+     * Jak drukujNapisPD(im, napis, czcionka, kolor, odPrawej, odDolu), ale
+     * napis mierzony i rysowany jest z podanymi wskazówkami (np.
+     * KEY_TEXT_ANTIALIASING, KEY_FRACTIONALMETRICS)
+     *
+     * @param im obrazek oryginalny
+     * @param napis napis do dodania
+     * @param czcionka wybrana czcionka napisu
+     * @param kolor wybrany kolor
+     * @param odPrawej pozycja od prawej (piksele)
+     * @param odDolu pozycja od dołu (piksele)
+     * @param wskazowki wskazówki rysowania lub null
+     * @return nowy obrazek z dodanym napisem
+     * @since 0.4
+     */
+    public static BufferedImage drukujNapisPD(BufferedImage im, String napis,
+            Font czcionka, Color kolor, int odPrawej, int odDolu, RenderingHints wskazowki)
     {
         // wymiary obrazka
         int w = im.getWidth();
@@ -344,6 +1289,9 @@ public class Util {
 
         // potrzebne do pomiaru parametrów wymiaru nadrukowanego tekstu        
         Graphics2D g = im.createGraphics();
+        // wygładzanie i metryki ułamkowe zmieniają wymiary napisu
+        if (wskazowki != null)
+            g.addRenderingHints(wskazowki);
         FontRenderContext fr = g.getFontRenderContext();
         // "bounding box"
         Rectangle2D rec = czcionka.getStringBounds(napis, fr);
@@ -363,7 +1311,142 @@ public class Util {
         if (fromTop < 0)
             fromTop = 0;
         
-        return drukujNapisLG(im, napis, czcionka, kolor, fromLeft, fromTop);
+        return drukujNapisLG(im, napis, czcionka, kolor, fromLeft, fromTop, wskazowki);
+    }
+
+    /**
+     * Zwraca obraz o rozciągniętym kontraście ("auto-poziomy"): zakres
+     * próbek każdego pasma koloru wyznaczony z histogramu rozciągany jest
+     * na pełny zakres wartości. Kanał alfa pozostaje bez zmian.
+     *
+     * Statystyki mogą pochodzić z wcześniejszych obliczeń (np. tych, na
+     * podstawie których zdecydowano o normalizacji), dzięki czemu obraz nie
+     * jest analizowany po raz drugi.
+     *
+     * @param src obraz źródłowy (bez palety kolorów)
+     * @param statystyki statystyki obrazu src lub null, jeśli mają być policzone
+     * @param obciecie część pikseli pomijana na obu końcach histogramu, od 0 do 0.5
+     * @return nowy obraz w modelu kolorów obrazu źródłowego
+     * @since 0.4
+     */
+    public static BufferedImage rozciagnijKontrast(final BufferedImage src,
+            Statystyki statystyki, double obciecie)
+    {
+        BufferedImage ret = czystyObraz(src);
+        rozciagnijKontrastW(src, ret, statystyki, obciecie, null);
+        return ret;
+    }
+
+    /**
+     * Rozciąga kontrast obrazu src zapisując wynik w dst (o tych samych
+     * wymiarach); dst w innym modelu kolorów dostaje wynik po konwersji.
+     */
+    private static void rozciagnijKontrastW(final BufferedImage src, BufferedImage dst,
+            Statystyki statystyki, double obciecie, RenderingHints wskazowki)
+    {
+        if (src.getColorModel() instanceof IndexColorModel)
+            throw new IllegalArgumentException("obrazy z paletą kolorów nie są obsługiwane");
+        if (obciecie < 0 || obciecie >= 0.5)
+            throw new IllegalArgumentException("obcięcie powinno należeć do [0, 0.5)");
+        if (src.getWidth() != dst.getWidth() || src.getHeight() != dst.getHeight())
+            throw new IllegalArgumentException("wymiary obrazów nie pasują");
+
+        if (statystyki == null)
+            statystyki = Statystyki.licz(src);
+
+        final WritableRaster zr = src.getRaster();
+        final int pasma = zr.getNumBands();
+        int pasmaKoloru = src.getColorModel().getNumColorComponents();
+
+        // tablice przekodowania próbek, dla alfy tożsamościowa
+        final int [][] lut = new int[pasma][];
+        for (int b = 0; b < pasma; b++)
+        {
+            int maks = (1 << zr.getSampleModel().getSampleSize(b)) - 1;
+            int lo = statystyki.kwantyl(b, obciecie);
+            int hi = statystyki.kwantyl(b, 1 - obciecie);
+
+            lut[b] = new int[maks + 1];
+            for (int v = 0; v <= maks; v++)
+            {
+                if (b >= pasmaKoloru || hi <= lo)
+                    lut[b][v] = v;
+                else
+                {
+                    long t = Math.round((double) (v - lo) * maks / (hi - lo));
+                    lut[b][v] = (int) Math.max(0, Math.min(maks, t));
+                }
+            }
+        }
+
+        // wynik w innym modelu kolorów - liczymy w kopii i konwertujemy
+        final BufferedImage cel;
+        if (tenSamModel(dst.getColorModel(), src.getColorModel())
+                && dst.getSampleModel().getNumBands() == pasma)
+            cel = dst;
+        else
+            cel = czystyObraz(src);
+
+        final DostepBufora we = DostepBufora.z(src);
+        final DostepBufora wy = DostepBufora.z(cel);
+        final boolean bezposrednio = DostepBufora.zgodne(we, wy);
+        final WritableRaster cr = cel.getRaster();
+        final int w = src.getWidth();
+        int h = src.getHeight();
+
+        Rownolegle.wykonaj(Rownolegle.liczbaPasow(w, h), h, new Rownolegle.Pas() {
+            @Override
+            public void licz(int nrPasa, int odWiersza, int doWiersza)
+            {
+                if (bezposrednio && we.rodzaj == DostepBufora.INT_PAKOWANY)
+                {
+                    int [] m = we.maski;
+                    int [] s = we.przesuniecia;
+                    for (int y = odWiersza; y < doWiersza; y++)
+                    {
+                        int i = we.indeks(0, y);
+                        int j = wy.indeks(0, y);
+                        for (int x = 0; x < w; x++)
+                        {
+                            int p = we.daneInt[i++];
+                            int q = 0;
+                            for (int b = 0; b < pasma; b++)
+                                q |= lut[b][(p & m[b]) >>> s[b]] << s[b];
+                            wy.daneInt[j++] = q;
+                        }
+                    }
+                }
+                else if (bezposrednio)
+                {
+                    int [] pp = we.przesunieciaPasm;
+                    int krok = we.krokPiksela;
+                    for (int y = odWiersza; y < doWiersza; y++)
+                    {
+                        int i = we.indeks(0, y);
+                        int j = wy.indeks(0, y);
+                        for (int x = 0; x < w; x++, i += krok, j += krok)
+                            for (int b = 0; b < pasma; b++)
+                                wy.daneBajt[j + pp[b]] =
+                                        (byte) lut[b][we.daneBajt[i + pp[b]] & 0xff];
+                    }
+                }
+                else
+                {
+                    int [] wiersz = new int[w * pasma];
+                    for (int y = odWiersza; y < doWiersza; y++)
+                    {
+                        zr.getPixels(0, y, w, 1, wiersz);
+                        for (int i = 0; i < wiersz.length; i += pasma)
+                            for (int b = 0; b < pasma; b++)
+                                wiersz[i + b] = lut[b][wiersz[i + b]];
+                        cr.setPixels(0, y, w, 1, wiersz);
+                    }
+                }
+            }
+        });
+
+        if (cel != dst)
+            kopiujW(cel, dst, wskazowki);
     }
     
 
@@ -378,7 +1461,8 @@ public class Util {
      */
     public static enum typFiltra
     {
-        SKALUJ, ODBIJ_POZIOMO, ODBIJ_PIONOWO, OPISZ, MNOZ, NIC;
+        SKALUJ, ODBIJ_POZIOMO, ODBIJ_PIONOWO, OPISZ, MNOZ, AUTO_POZIOMY, WYTNIJ,
+        OBROC_90, OBROC_180, OBROC_270, TRANSPONUJ, NIC;
     }
     
 
@@ -408,6 +1492,17 @@ public class Util {
      * Parametrów wymagają:
      * 1. Filtr skalujący typFiltra.SKALUJ: 
      *      "skala" => "1.0", gdzie 1.0 to współczynnik skalowania
+     * 2. Filtr rozciągający kontrast typFiltra.AUTO_POZIOMY (opcjonalnie):
+     *      "obciecie" => "0.005", część najciemniejszych i najjaśniejszych
+     *      pikseli każdego pasma pomijana przy wyznaczaniu zakresu
+     * 3. Filtr wycinający typFiltra.WYTNIJ (opcjonalnie):
+     *      "x" => "0", "y" => "0" - lewy górny róg fragmentu,
+     *      "szerokosc", "wysokosc" - wymiary fragmentu (domyślnie do
+     *      prawej i dolnej krawędzi obrazu)
+     * 4. Filtry obracające typFiltra.OBROC_90, OBROC_180, OBROC_270
+     *    (zgodnie z ruchem wskazówek zegara) i TRANSPONUJ (opcjonalnie):
+     *      "szerokosc", "wysokosc" - wymiary obrazu źródłowego, potrzebne
+     *      tylko do getPoint2D() dla obrotów
      * 
      * @return instancja klasy zgodnej z interfejsem BufferedimageOp implementująca
      *         wybrany filtr
@@ -429,7 +1524,19 @@ public class Util {
                  // ten filtr zależy od skali, więc za każdym razem 
                  // zwracany jest nowy                
                 return new FiltrSkalujacy(parametry);
-                
+
+            case AUTO_POZIOMY:
+                return new FiltrAutoPoziomy(parametry);
+
+            case WYTNIJ:
+                return new FiltrWycinajacy(parametry);
+
+            case OBROC_90:
+            case OBROC_180:
+            case OBROC_270:
+            case TRANSPONUJ:
+                return new FiltrObracajacy(typ, parametry);
+
             case NIC:
                 
                 //jeden nic
@@ -439,10 +1546,114 @@ public class Util {
                          
             default:
                 throw new IllegalArgumentException("Ten typ filtra nie jest dostępny");
-                    
+
+        }
+    }
+
+    /**
+     * Jak dajFiltr(typ, parametry), ale filtr stosuje podane wskazówki
+     * wyboru między szybkością a jakością (jeden potok może tak służyć
+     * i do szybkiego podglądu, i do eksportu w najwyższej jakości):
+     *
+     * 1. KEY_INTERPOLATION, KEY_RENDERING, KEY_ALPHA_INTERPOLATION -
+     *    sposób interpolacji filtra skalującego (zob. skaluj(src, skala,
+     *    wskazowki)); bez nich - powielanie pikseli
+     * 2. KEY_DITHERING - rozpraszanie błędu przy zapisie do obrazu
+     *    docelowego z paletą (wszystkie filtry)
+     *
+     * Wskazówki faktycznie stosowane przez filtr zwraca getRenderingHints().
+     *
+     * @param typ Util.typFiltra.{SKALUJ, ODBIJ_POZIOMO, ODBIJ_PIONOWO itd.}
+     * @param parametry filtra, jeśli takowych wymaga lub null, jeśli nie
+     * @param wskazowki wskazówki lub null
+     * @return instancja klasy zgodnej z interfejsem BufferedImageOp implementująca
+     *         wybrany filtr
+     * @since 0.4
+     */
+    public static BufferedImageOp dajFiltr(typFiltra typ, HashMap<String, String> parametry,
+            RenderingHints wskazowki)
+    {
+        BufferedImageOp op = dajFiltr(typ, parametry);
+        if (wskazowki == null)
+            return op;
+
+        // filtry wspólne (gotoweFiltry) nie mogą dostać cudzych wskazówek
+        Filtr f;
+        switch (typ)
+        {
+            case ODBIJ_PIONOWO:
+            case ODBIJ_POZIOMO:
+                f = new FiltrOdbijajacy(typ);
+                break;
+            case NIC:
+                f = new FiltrBezuzyteczny();
+                break;
+            default:
+                f = (Filtr) op;
+        }
+
+        f.ustawWskazowki(wskazowki);
+        return f;
+    }
+
+    /**
+     * Wykonuje op.filter(src, dest) asynchronicznie przy pomocy podanego
+     * wykonawcy. Dla filtrów zwróconych przez dajFiltr() praca dzielona jest
+     * na pasy wierszy, pomiędzy którymi sprawdzane jest anulowanie zadania
+     * i raportowany postęp; dla pozostałych filtrów (np. ConvolveOp)
+     * anulowanie sprawdzane jest przed rozpoczęciem pracy, a postęp
+     * raportowany raz, po jej zakończeniu.
+     *
+     * @param op filtr
+     * @param src obraz źródłowy
+     * @param dest obraz docelowy lub null
+     * @param executor wykonawca zadania filtracji
+     * @param postep odbiorca informacji o postępie lub null
+     * @return przyszły wynik filtracji; cancel() przerywa obliczenia
+     * @since 0.4
+     */
+    public static CompletableFuture<BufferedImage> filtrujAsynchronicznie(
+            final BufferedImageOp op, final BufferedImage src, final BufferedImage dest,
+            Executor executor, final PostepFiltra postep)
+    {
+        if (op instanceof Filtr)
+            return ((Filtr) op).filterAsync(src, dest, executor, postep);
+
+        final CompletableFuture<BufferedImage> wynik =
+                new CompletableFuture<BufferedImage>();
+
+        Runnable zadanie = new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    if (wynik.isDone())
+                        return;
+
+                    BufferedImage ret = op.filter(src, dest);
+                    if (postep != null)
+                        postep.postep(ret.getHeight(), ret.getHeight());
+
+                    wynik.complete(ret);
+                }
+                catch (Throwable t)
+                {
+                    wynik.completeExceptionally(t);
+                }
+            }
+        };
+
+        try {
+            executor.execute(zadanie);
+        }
+        catch (RejectedExecutionException e)
+        {
+            wynik.completeExceptionally(e);
         }
+
+        return wynik;
     }
-    
+
     
     
     // UWAGA: 
@@ -530,22 +1741,24 @@ public class Util {
         @Override
         public BufferedImage filter(BufferedImage src, BufferedImage dest)
         {
-            // skalowanie
-            BufferedImage tmp = Util.skaluj(src, skala);
-
             // jeśli dest jest dane, to _musimy_ skorzystać, jeśli nie, to
-            // może się zdarzyć, ze tmp ma inny ColorModel niż src, dlatego
-            // tak czy siak tworzymy dest
+            // tworzymy go w modelu kolorów src
             if (dest == null)
             {
                 ColorModel naszCM = src.getColorModel();
                 dest = createCompatibleDestImage(src, naszCM);
             }
-            
-            // kopiuj w obrazek dest; to przy okazji przekonwertuje kolory
-            // korzystamy zatem z metody PRYWATNEJ klasy zewnętrznej!
-            kopiujW(tmp, dest);
-            
+
+            Rectangle2D wymiary = getBounds2D(src);
+            if (dest.getWidth() != (int) wymiary.getWidth()
+                    || dest.getHeight() != (int) wymiary.getHeight())
+                throw new IllegalArgumentException("wymiary obrazów nie pasują");
+
+            // skalowanie wprost do dest, bez obrazu pośredniego (poza
+            // interpolacją z alfą przemnożoną i zapisem do obrazu z paletą);
+            // wynik jak Util.skaluj(src, ..., wskazowki) + kopiujW()
+            skalujW(src, dest, wskazowki());
+
             return dest;
         }
         
@@ -597,9 +1810,60 @@ public class Util {
             
             if (dstPt != null)
                 dstPt.setLocation(tmp);
-            
+
             return tmp;
-        }    
+        }
+
+        @Override
+        protected boolean przeprobkowuje()
+        {
+            return true;
+        }
+
+        /**
+         * Pasami liczone jest tylko powielanie pikseli; interpolacja
+         * (zwłaszcza stopniowa) liczona jest w całości przez filter()
+         */
+        @Override
+        protected boolean obslugujePasy()
+        {
+            return Wskazowki.interpolacja(wskazowki())
+                    == RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+        }
+
+        /**
+         * Powielanie pikseli: piksel wyniku zależy od jednego piksela
+         * źródła, więc wystarczy przeskalować prostokąt (z zapasem
+         * jednego piksela na zaokrąglenia)
+         */
+        @Override
+        protected Rectangle obszarWyniku(BufferedImage src, Rectangle zmiana)
+        {
+            if (!obslugujePasy())
+                return null;
+
+            Rectangle2D r = getBounds2D(src);
+            double sx = r.getWidth() / src.getWidth();
+            double sy = r.getHeight() / src.getHeight();
+            int x0 = (int) Math.floor(zmiana.x * sx) - 1;
+            int y0 = (int) Math.floor(zmiana.y * sy) - 1;
+            int x1 = (int) Math.ceil((zmiana.x + zmiana.width) * sx) + 1;
+            int y1 = (int) Math.ceil((zmiana.y + zmiana.height) * sy) + 1;
+
+            return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        }
+
+        /**
+         * Skalowanie przez powielanie pikseli, tak samo jak robi to
+         * getScaledInstance(..., Image.SCALE_DEFAULT) w skaluj(), ale
+         * tylko dla wybranych wierszy obrazu wynikowego
+         */
+        @Override
+        protected void filtrujPas(BufferedImage src, BufferedImage dest,
+                int odWiersza, int doWiersza)
+        {
+            skalujW(src, dest, odWiersza, doWiersza);
+        }
 
     }
     
@@ -618,29 +1882,27 @@ public class Util {
         @Override
         public BufferedImage filter(BufferedImage src, BufferedImage dest)
         {
-            
-            BufferedImage ret;
-
-            switch(this.typ)
-            {
-                case ODBIJ_POZIOMO:
-                    ret = Util.odbijPoziomo(src);
-                    break;
-                case ODBIJ_PIONOWO:
-                    ret = Util.odbijPionowo(src);
-                    break;
-                default:
-                    ret = src;
-            }
-            
             if (dest == null)
             {
                 ColorModel naszCM = src.getColorModel();
                 dest = createCompatibleDestImage(src, naszCM);
             }
-            
-            kopiujW(ret, dest);
-            
+
+            if (dest.getWidth() != src.getWidth() || dest.getHeight() != src.getHeight())
+                throw new IllegalArgumentException("wymiary obrazów nie pasują");
+
+            // odbicie wprost do dest (wiersz po wierszu, z konwersją kolorów
+            // jak w kopiujW()), bez pośredniej kopii z odbijPoziomo()/odbijPionowo()
+            if (!przezPalete(src, dest))
+            {
+                filtrujPas(src, dest, 0, dest.getHeight());
+                return dest;
+            }
+
+            BufferedImage tmp = czystyObraz(src);
+            filtrujPas(src, tmp, 0, tmp.getHeight());
+            kopiujW(tmp, dest, wskazowki());
+
             return dest;
         }
    
@@ -675,12 +1937,359 @@ public class Util {
             // korzystamy z metody pomocniczej klasy abstakcyjnej
             return Filtr.getPoint2D_same(srcPt, dstPt);
         }
-        
-    
-        
-        
+
+        @Override
+        protected boolean obslugujePasy()
+        {
+            return true;
+        }
+
+        @Override
+        protected Rectangle obszarWyniku(BufferedImage src, Rectangle zmiana)
+        {
+            Rectangle ret = new Rectangle(zmiana);
+            if (typ == typFiltra.ODBIJ_POZIOMO)
+                ret.x = src.getWidth() - zmiana.x - zmiana.width;
+            else
+                ret.y = src.getHeight() - zmiana.y - zmiana.height;
+
+            return ret;
+        }
+
+        @Override
+        protected void filtrujPas(BufferedImage src, BufferedImage dest,
+                int odWiersza, int doWiersza)
+        {
+            switch (typ)
+            {
+                case ODBIJ_POZIOMO:
+                    odbijW(src, dest, true, odWiersza, doWiersza);
+                    break;
+                case ODBIJ_PIONOWO:
+                    odbijW(src, dest, false, odWiersza, doWiersza);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Nieznany typ odbicia");
+            }
+        }
+
     }
     
+    /* obroty o wielokrotność kąta prostego i transpozycja */
+    static private class FiltrObracajacy extends Filtr
+    {
+        private final typFiltra typ;
+        /** wymiary obrazu źródłowego dla getPoint2D(); -1: nie podano */
+        private int szerokosc = -1;
+        private int wysokosc = -1;
+
+        /**
+         * Tworzy filtr obracający;
+         *
+         * @param typ OBROC_90, OBROC_180, OBROC_270 lub TRANSPONUJ
+         * @param parametry = new HashMap<String, String>{"szerokosc", "640"},
+         *        {"wysokosc", "480"} lub null
+         */
+        FiltrObracajacy(typFiltra typ, HashMap<String, String> parametry)
+        {
+            this.typ = typ;
+
+            if (parametry != null)
+                try {
+                    if (parametry.containsKey("szerokosc"))
+                        szerokosc = Integer.parseInt(parametry.get("szerokosc"));
+                    if (parametry.containsKey("wysokosc"))
+                        wysokosc = Integer.parseInt(parametry.get("wysokosc"));
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Podano zły parametr wymiarów");
+                }
+        }
+
+        /**
+         * Dla dest == src obrót o 180 stopni wykonywany jest w miejscu, bez
+         * żadnego obrazu pośredniego; pozostałe obroty wymagają osobnego
+         * obrazu docelowego (jak AffineTransformOp)
+         */
+        @Override
+        public BufferedImage filter(final BufferedImage src, BufferedImage dest)
+        {
+            if (dest == null)
+                dest = createCompatibleDestImage(src, null);
+
+            Rectangle r = (Rectangle) getBounds2D(src);
+            if (dest.getWidth() != r.width || dest.getHeight() != r.height)
+                throw new IllegalArgumentException("wymiary obrazów nie pasują");
+            if (dest == src && typ != typFiltra.OBROC_180)
+                throw new IllegalArgumentException("obraz docelowy nie może być obrazem źródłowym");
+
+            final BufferedImage cel = przezPalete(src, dest)
+                    ? czystyObraz(src.getColorModel(), r.width, r.height) : dest;
+            Rownolegle.wykonaj(Rownolegle.liczbaPasow(r.width, r.height), r.height,
+                    new Rownolegle.Pas() {
+                @Override
+                public void licz(int nrPasa, int odWiersza, int doWiersza)
+                {
+                    filtrujPas(src, cel, odWiersza, doWiersza);
+                }
+            });
+
+            if (cel != dest)
+                kopiujW(cel, dest, wskazowki());
+            return dest;
+        }
+
+        @Override
+        public Rectangle2D getBounds2D(BufferedImage src)
+        {
+            if (typ == typFiltra.OBROC_180)
+                return new Rectangle(src.getWidth(), src.getHeight());
+
+            return new Rectangle(src.getHeight(), src.getWidth());
+        }
+
+        @Override
+        public Point2D getPoint2D(Point2D srcPt, Point2D dstPt)
+        {
+            double x = srcPt.getX();
+            double y = srcPt.getY();
+
+            // współrzędne punktów (nie środków pikseli): prostokąt obrazu
+            // przechodzi na prostokąt wyniku, np. róg (0, 0) na (h, 0) dla OBROC_90
+            if (typ == typFiltra.TRANSPONUJ)
+            {
+                double t = x;
+                x = y;
+                y = t;
+            }
+            else if (szerokosc < 0 || wysokosc < 0)
+                throw new UnsupportedOperationException("Destination " +
+                        "point cannot be determined for this filter");
+            else if (typ == typFiltra.OBROC_90)
+            {
+                double t = x;
+                x = wysokosc - y;
+                y = t;
+            }
+            else if (typ == typFiltra.OBROC_180)
+            {
+                x = szerokosc - x;
+                y = wysokosc - y;
+            }
+            else
+            {
+                double t = y;
+                y = szerokosc - x;
+                x = t;
+            }
+
+            if (dstPt == null)
+                dstPt = (Point2D) srcPt.clone();
+            dstPt.setLocation(x, y);
+            return dstPt;
+        }
+
+        @Override
+        protected boolean obslugujePasy()
+        {
+            return true;
+        }
+
+        /** prostokąt przechodzi na prostokąt - jak w getPoint2D() */
+        @Override
+        protected Rectangle obszarWyniku(BufferedImage src, Rectangle zmiana)
+        {
+            int w = src.getWidth();
+            int h = src.getHeight();
+            Rectangle z = zmiana;
+
+            switch (typ)
+            {
+                case OBROC_90:
+                    return new Rectangle(h - z.y - z.height, z.x, z.height, z.width);
+                case OBROC_180:
+                    return new Rectangle(w - z.x - z.width, h - z.y - z.height, z.width, z.height);
+                case OBROC_270:
+                    return new Rectangle(z.y, w - z.x - z.width, z.height, z.width);
+                default:
+                    return new Rectangle(z.y, z.x, z.height, z.width);
+            }
+        }
+
+        @Override
+        protected void filtrujPas(BufferedImage src, BufferedImage dest,
+                int odWiersza, int doWiersza)
+        {
+            if (dest == src && typ != typFiltra.OBROC_180)
+                throw new IllegalArgumentException("obraz docelowy nie może być obrazem źródłowym");
+
+            if (dest == src)
+                obroc180WMiejscu(src, odWiersza, doWiersza);
+            else
+                obrocW(src, dest, typ, odWiersza, doWiersza);
+        }
+    }
+
+    /* filtr rozciągający kontrast na podstawie histogramu */
+    static private class FiltrAutoPoziomy extends Filtr
+    {
+        private double obciecie = 0.0;
+
+        /**
+         * Tworzy filtr rozciągający kontrast;
+         *
+         * @param parametry = new HashMap<String, String>{"obciecie", "0.005"} lub null
+         */
+        FiltrAutoPoziomy(HashMap<String, String> parametry)
+        {
+            if (!(parametry == null) && parametry.containsKey("obciecie"))
+                try {
+                    obciecie = Double.parseDouble(parametry.get("obciecie"));
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Podano zły parametr obcięcia");
+                }
+
+            if (obciecie < 0 || obciecie >= 0.5)
+                throw new IllegalArgumentException("Podano zły parametr obcięcia");
+        }
+
+        @Override
+        public BufferedImage filter(BufferedImage src, BufferedImage dest)
+        {
+            if (dest == null)
+                dest = createCompatibleDestImage(src, src.getColorModel());
+
+            rozciagnijKontrastW(src, dest, null, obciecie, wskazowki());
+
+            return dest;
+        }
+
+        @Override
+        public Rectangle2D getBounds2D(BufferedImage src)
+        {
+            return src.getRaster().getBounds();
+        }
+
+        @Override
+        public Point2D getPoint2D(Point2D srcPt, Point2D dstPt)
+        {
+            return Filtr.getPoint2D_same(srcPt, dstPt);
+        }
+    }
+
+    /* filtr wycinający fragment obrazu; bez dest zwraca widok, nie kopię */
+    static private class FiltrWycinajacy extends Filtr
+    {
+        private int x = 0;
+        private int y = 0;
+        /** -1: do krawędzi obrazu */
+        private int szerokosc = -1;
+        private int wysokosc = -1;
+
+        /**
+         * Tworzy filtr wycinający;
+         *
+         * @param parametry = new HashMap<String, String>{"x", "10"}, {"y", "20"},
+         *        {"szerokosc", "100"}, {"wysokosc", "50"} lub null
+         */
+        FiltrWycinajacy(HashMap<String, String> parametry)
+        {
+            if (parametry != null)
+                try {
+                    if (parametry.containsKey("x"))
+                        x = Integer.parseInt(parametry.get("x"));
+                    if (parametry.containsKey("y"))
+                        y = Integer.parseInt(parametry.get("y"));
+                    if (parametry.containsKey("szerokosc"))
+                        szerokosc = Integer.parseInt(parametry.get("szerokosc"));
+                    if (parametry.containsKey("wysokosc"))
+                        wysokosc = Integer.parseInt(parametry.get("wysokosc"));
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Podano zły parametr wycinka");
+                }
+
+            if (x < 0 || y < 0 || szerokosc == 0 || szerokosc < -1
+                    || wysokosc == 0 || wysokosc < -1)
+                throw new IllegalArgumentException("Podano zły parametr wycinka");
+        }
+
+        /**
+         * Bez obrazu docelowego zwraca widok fragmentu obrazu src (wytnij()),
+         * który dzieli z nim dane; z obrazem docelowym kopiuje do niego
+         * fragment, konwertując kolory jak kopiujW()
+         */
+        @Override
+        public BufferedImage filter(BufferedImage src, BufferedImage dest)
+        {
+            Rectangle r = obszar(src);
+            BufferedImage widok = wytnij(src, r.x, r.y, r.width, r.height);
+
+            if (dest == null)
+                return widok;
+
+            kopiujW(widok, dest, wskazowki());
+            return dest;
+        }
+
+        /** fragment obrazu src wycinany przez filtr */
+        private Rectangle obszar(BufferedImage src)
+        {
+            int w = (szerokosc < 0) ? src.getWidth() - x : szerokosc;
+            int h = (wysokosc < 0) ? src.getHeight() - y : wysokosc;
+            return new Rectangle(x, y, w, h);
+        }
+
+        @Override
+        public Rectangle2D getBounds2D(BufferedImage src)
+        {
+            Rectangle r = obszar(src);
+            if (r.width <= 0 || r.height <= 0 || r.x + r.width > src.getWidth()
+                    || r.y + r.height > src.getHeight())
+                throw new IllegalArgumentException("fragment wykracza poza obraz");
+
+            return new Rectangle(r.width, r.height);
+        }
+
+        @Override
+        public Point2D getPoint2D(Point2D srcPt, Point2D dstPt)
+        {
+            if (dstPt == null)
+                dstPt = (Point2D) srcPt.clone();
+            dstPt.setLocation(srcPt.getX() - x, srcPt.getY() - y);
+            return dstPt;
+        }
+
+        @Override
+        protected boolean obslugujePasy()
+        {
+            return true;
+        }
+
+        @Override
+        protected Rectangle obszarWyniku(BufferedImage src, Rectangle zmiana)
+        {
+            Rectangle ret = zmiana.intersection(obszar(src));
+            ret.translate(-x, -y);
+            return ret;
+        }
+
+        @Override
+        protected void filtrujPas(BufferedImage src, BufferedImage dest,
+                int odWiersza, int doWiersza)
+        {
+            Rectangle r = obszar(src);
+            int n = doWiersza - odWiersza;
+
+            kopiujW(wytnij(src, r.x, r.y + odWiersza, r.width, n),
+                    wytnij(dest, 0, odWiersza, dest.getWidth(), n));
+        }
+    }
+
     static private class FiltrBezuzyteczny extends Filtr{
         
         
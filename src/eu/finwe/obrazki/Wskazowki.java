@@ -0,0 +1,121 @@
+package eu.finwe.obrazki;
+
+import java.awt.RenderingHints;
+
+/**
+ * Odczytywanie wskazówek (RenderingHints) przekazanych operacjom Util
+ * i filtrom z dajFiltr() - wybór między szybkością a jakością.
+ *
+ * Brak wskazówki oznacza dotychczasowe, najszybsze zachowanie. Wskazówka
+ * KEY_RENDERING ustawia wartości domyślne pozostałych: VALUE_RENDER_QUALITY
+ * włącza interpolację dwusześcienną, skalowanie stopniowe i interpolację
+ * z alfą przemnożoną, VALUE_RENDER_SPEED wybiera szybsze rozpraszanie
+ * błędu. Wskazówki szczegółowe (KEY_INTERPOLATION, KEY_ALPHA_INTERPOLATION,
+ * KEY_DITHERING) mają pierwszeństwo.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+final class Wskazowki {
+
+    private Wskazowki()
+    {
+    }
+
+    private static Object wartosc(RenderingHints h, RenderingHints.Key k)
+    {
+        return (h == null) ? null : h.get(k);
+    }
+
+    private static boolean jakosc(RenderingHints h)
+    {
+        return wartosc(h, RenderingHints.KEY_RENDERING) == RenderingHints.VALUE_RENDER_QUALITY;
+    }
+
+    /**
+     * @param h wskazówki lub null
+     * @return VALUE_INTERPOLATION_NEAREST_NEIGHBOR, _BILINEAR lub _BICUBIC
+     */
+    static Object interpolacja(RenderingHints h)
+    {
+        Object v = wartosc(h, RenderingHints.KEY_INTERPOLATION);
+        if (v != null)
+            return v;
+
+        return jakosc(h) ? RenderingHints.VALUE_INTERPOLATION_BICUBIC
+                : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+    }
+
+    /**
+     * @param h wskazówki lub null
+     * @return true, jeśli obrazy z kanałem alfa mają być interpolowane
+     *         z alfą przemnożoną (bez przebarwień przy przezroczystych pikselach)
+     */
+    static boolean przemnazanie(RenderingHints h)
+    {
+        Object v = wartosc(h, RenderingHints.KEY_ALPHA_INTERPOLATION);
+        if (v != null && v != RenderingHints.VALUE_ALPHA_INTERPOLATION_DEFAULT)
+            return v == RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY;
+
+        return jakosc(h);
+    }
+
+    /**
+     * @param h wskazówki lub null
+     * @return true, jeśli duże pomniejszenia z interpolacją mają być
+     *         wykonywane stopniowo (po połowie), bez aliasingu
+     */
+    static boolean stopniowo(RenderingHints h)
+    {
+        return jakosc(h);
+    }
+
+    /**
+     * @param h wskazówki lub null
+     * @return sposób rozpraszania błędu przy konwersji do obrazu z paletą
+     */
+    static Kwantyzator.Rozpraszanie rozpraszanie(RenderingHints h)
+    {
+        if (wartosc(h, RenderingHints.KEY_DITHERING) != RenderingHints.VALUE_DITHER_ENABLE)
+            return Kwantyzator.Rozpraszanie.BRAK;
+
+        // Floyd-Steinberg liczy się tylko sekwencyjnie
+        if (wartosc(h, RenderingHints.KEY_RENDERING) == RenderingHints.VALUE_RENDER_SPEED)
+            return Kwantyzator.Rozpraszanie.UPORZADKOWANE;
+        return Kwantyzator.Rozpraszanie.FLOYD_STEINBERG;
+    }
+
+    /**
+     * Wskazówki faktycznie stosowane przez operację: podane wskazówki
+     * uzupełnione o rozstrzygnięte wartości KEY_RENDERING, KEY_DITHERING
+     * oraz, dla operacji przepróbkowujących obraz, KEY_INTERPOLATION
+     * i KEY_ALPHA_INTERPOLATION
+     *
+     * @param h wskazówki lub null
+     * @param przeprobkowanie true dla operacji interpolujących piksele
+     * @return nowy obiekt z wskazówkami
+     */
+    static RenderingHints skuteczne(RenderingHints h, boolean przeprobkowanie)
+    {
+        RenderingHints ret = new RenderingHints(null);
+        if (h != null)
+            ret.add(h);
+
+        Object r = wartosc(h, RenderingHints.KEY_RENDERING);
+        ret.put(RenderingHints.KEY_RENDERING,
+                (r == null) ? RenderingHints.VALUE_RENDER_DEFAULT : r);
+        ret.put(RenderingHints.KEY_DITHERING,
+                (rozpraszanie(h) == Kwantyzator.Rozpraszanie.BRAK)
+                ? RenderingHints.VALUE_DITHER_DISABLE : RenderingHints.VALUE_DITHER_ENABLE);
+
+        if (przeprobkowanie)
+        {
+            ret.put(RenderingHints.KEY_INTERPOLATION, interpolacja(h));
+            ret.put(RenderingHints.KEY_ALPHA_INTERPOLATION, przemnazanie(h)
+                    ? RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY
+                    : RenderingHints.VALUE_ALPHA_INTERPOLATION_SPEED);
+        }
+
+        return ret;
+    }
+}
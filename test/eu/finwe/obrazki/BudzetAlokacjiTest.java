@@ -0,0 +1,438 @@
+package eu.finwe.obrazki;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ConvolveOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Kernel;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pomiar pamięci alokowanej przez publiczne operacje Util i filtry
+ * z dajFiltr() - ochrona przed regresjami w rodzaju niepotrzebnych kopii
+ * całego obrazu.
+ *
+ * Dla każdej operacji zadeklarowany jest budżet: krotność rozmiaru danych
+ * obrazu wynikowego plus narzut na bufory wierszy, histogramy itp. Narzut
+ * rośnie z szerokością obrazu i liczbą pasów liczonych równolegle, zamiast
+ * być stały, więc operacje na małych obrazach też są ograniczone. Liczone
+ * są bajty zaalokowane przez wszystkie wątki (także wątki puli ForkJoinPool
+ * używanej do obliczeń równoległych) w trakcie jednego wywołania; z kilku
+ * pomiarów po rozgrzaniu JIT brany jest najmniejszy.
+ *
+ * Wyniki zapisywane są w pliku JSON (lista obiektów {operacja, typ,
+ * szerokosc, wysokosc, zaalokowano, budzet, wynik, ok}), który można
+ * porównywać między wersjami: build/test/results/budzet_alokacji.json
+ * lub plik podany we właściwości systemowej budzet.raport.
+ *
+ * Pominięte są czytaj(nazwa) i zapisz() - ich alokacje zależą głównie
+ * od wtyczek ImageIO, a nie od kodu tej biblioteki.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+@RunWith(Parameterized.class)
+public class BudzetAlokacjiTest {
+
+    /** powtórzenia przed pomiarem (rozgrzanie JIT, pamięci podręczne czcionek) */
+    private static final int ROZGRZEWKA = 5;
+    /** liczba pomiarów, z których brany jest najmniejszy */
+    private static final int POMIARY = 5;
+    /** stała część narzutu - drobne obiekty, zadania puli, obiekty Java2D */
+    private static final long NARZUT_STALY = 48 * 1024;
+    /** narzut na kolumnę obrazu i pas - bufory wierszy pasów liczonych równolegle */
+    private static final long NARZUT_KOLUMNY = 48;
+
+    /** wymiary mierzonych obrazów: typowe zdjęcie i mały obraz */
+    private static final int [][] WYMIARY = { { 1500, 1100 }, { 160, 120 } };
+
+    /** mierzona operacja; zwraca wynik, którego rozmiar wyznacza budżet */
+    private interface Operacja
+    {
+        Object wykonaj() throws Exception;
+    }
+
+    private static final class Pozycja
+    {
+        final String nazwa;
+        final double krotnosc;
+        final long narzut;
+        final Operacja operacja;
+
+        Pozycja(String nazwa, double krotnosc, long narzut, Operacja operacja)
+        {
+            this.nazwa = nazwa;
+            this.krotnosc = krotnosc;
+            this.narzut = narzut;
+            this.operacja = operacja;
+        }
+    }
+
+    /** wiersze raportu JSON, w kolejności wykonania testów */
+    private static final List<String> raport = new ArrayList<String>();
+
+    private final BufferedImage obraz;
+    private final Pozycja pozycja;
+
+    public BudzetAlokacjiTest(String nazwa, BufferedImage obraz, Pozycja pozycja)
+    {
+        this.obraz = obraz;
+        this.pozycja = pozycja;
+    }
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> dane() throws IOException
+    {
+        List<Object[]> ret = new ArrayList<Object[]>();
+
+        for (int [] wymiary : WYMIARY)
+        {
+            // obraz w formacie typowym dla JPEG oraz typowy obraz int ARGB
+            BufferedImage bgr = obrazTestowy(wymiary[0], wymiary[1], BufferedImage.TYPE_3BYTE_BGR);
+            BufferedImage argb = obrazTestowy(wymiary[0], wymiary[1], BufferedImage.TYPE_INT_ARGB);
+
+            for (BufferedImage x : new BufferedImage[] { bgr, argb })
+            {
+                File plik = File.createTempFile("budzet", ".png");
+                plik.deleteOnExit();
+                ImageIO.write(x, "png", plik);
+
+                for (Pozycja p : operacje(x, plik.getPath()))
+                    ret.add(new Object[] { p.nazwa + " typ " + x.getType() + " "
+                            + x.getWidth() + "x" + x.getHeight(), x, p });
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Obraz z gradientem, prostokątami i szumem - żeby histogramy, palety
+     * i porównania miały co liczyć
+     */
+    private static BufferedImage obrazTestowy(int w, int h, int typ)
+    {
+        BufferedImage ret = new BufferedImage(w, h, typ);
+        Graphics2D g = ret.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(30, 80, 160), w, h, new Color(240, 200, 40)));
+        g.fillRect(0, 0, w, h);
+        Random r = new Random(17);
+        for (int i = 0; i < 40; i++)
+        {
+            g.setColor(new Color(r.nextInt(256), r.nextInt(256), r.nextInt(256), 64 + r.nextInt(192)));
+            g.fillRect(r.nextInt(w), r.nextInt(h), 1 + r.nextInt(w / 4), 1 + r.nextInt(h / 4));
+        }
+        g.dispose();
+
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x += 1 + r.nextInt(8))
+                ret.setRGB(x, y, ret.getRGB(x, y) ^ r.nextInt(0x0f0f0f));
+
+        return ret;
+    }
+
+    /**
+     * @return domyślny narzut dla operacji na obrazie x
+     */
+    private static long narzut(BufferedImage x)
+    {
+        return NARZUT_STALY + NARZUT_KOLUMNY * x.getWidth()
+                * Rownolegle.liczbaPasow(x.getWidth(), x.getHeight());
+    }
+
+    /**
+     * Lista mierzonych operacji z budżetami dla obrazu x (zapisanego w pliku nazwaPliku)
+     */
+    private static List<Pozycja> operacje(final BufferedImage x, final String nazwaPliku)
+    {
+        final PamiecObrazow pamiec = new PamiecObrazow(Long.MAX_VALUE);
+        final BufferedImage maska = Util.odbijPoziomo(x);
+        final BufferedImage mniejsza = Util.skaluj(x, 0.5);
+        final Font czcionka = new Font(Font.SANS_SERIF, Font.BOLD, 24);
+        final Statystyki statystyki = Statystyki.licz(x);
+        final BufferedImage kopia = Util.kopiuj(x);
+        final BufferedImage tlo = Util.kopiuj(x);
+        final LancuchPrzyrostowy lancuch = new LancuchPrzyrostowy(
+                new ConvolveOp(new Kernel(3, 3, new float[] { 0, -1, 0, -1, 5, -1, 0, -1, 0 })),
+                Util.dajFiltr(Util.typFiltra.ODBIJ_POZIOMO, null));
+        lancuch.przelicz(Util.kopiuj(x));
+        final BufferedImage znak = Util.wytnij(maska, 0, 0,
+                Math.min(64, x.getWidth()), Math.min(64, x.getHeight()));
+        final BufferedImage zPaleta = Kwantyzator.kwantyzuj(x, 256, Kwantyzator.Rozpraszanie.BRAK);
+        // raster bez bezpośredniego dostępu do danych (DostepBufora.INNY)
+        final BufferedImage inny = Util.dopasujTyp(
+                new BufferedImage(1, 1, BufferedImage.TYPE_USHORT_565_RGB), x);
+        final BufferedImage innyCel = Util.kopiuj(inny);
+        final ObrazFloat roboczyInny = ObrazFloat.z(inny);
+        final HashMap<String, String> polowa = new HashMap<String, String>();
+        polowa.put("skala", "0.5");
+        final RenderingHints jakosc = new RenderingHints(RenderingHints.KEY_RENDERING,
+                RenderingHints.VALUE_RENDER_QUALITY);
+        final Executor wBiezacymWatku = new Executor() {
+            @Override
+            public void execute(Runnable r)
+            {
+                r.run();
+            }
+        };
+        final long narzut = narzut(x);
+
+        List<Pozycja> ret = new ArrayList<Pozycja>();
+
+        ret.add(new Pozycja("kopiuj", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.kopiuj(x); }
+        }));
+        ret.add(new Pozycja("odbijPoziomo", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.odbijPoziomo(x); }
+        }));
+        ret.add(new Pozycja("odbijPionowo", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.odbijPionowo(x); }
+        }));
+        ret.add(new Pozycja("skaluj(skala)", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.skaluj(x, 0.5); }
+        }));
+        ret.add(new Pozycja("skaluj(w, h)", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.skaluj(x, x.getWidth() * 2, x.getHeight()); }
+        }));
+        // jedna robocza kopia (przemnożona i pomniejszona o połowę), obraz
+        // w typie roboczym i wynik
+        ret.add(new Pozycja("skaluj(jakosc)", 3.5, narzut, new Operacja() {
+            public Object wykonaj() { return Util.skaluj(x, 0.5, jakosc); }
+        }));
+        ret.add(new Pozycja("dopasujTyp", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.dopasujTyp(x, maska); }
+        }));
+        // paleta z tablicą odwrotną już policzoną
+        ret.add(new Pozycja("dopasujTyp(paleta)", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.dopasujTyp(zPaleta, x); }
+        }));
+        ret.add(new Pozycja("Kwantyzator.mapuj(FS)", 1.1, narzut, new Operacja() {
+            public Object wykonaj()
+            {
+                BufferedImage ret = new BufferedImage(x.getWidth(), x.getHeight(),
+                        BufferedImage.TYPE_BYTE_INDEXED, (IndexColorModel) zPaleta.getColorModel());
+                Kwantyzator.mapuj(x, ret, Kwantyzator.Rozpraszanie.FLOYD_STEINBERG);
+                return ret;
+            }
+        }));
+        // nowa paleta: histogramy pasów (do 28 B na komórkę) i nowa tablica odwrotna
+        ret.add(new Pozycja("Kwantyzator.kwantyzuj", 1.1,
+                narzut + (1L << 18) + 28L * (1 << 15) * ForkJoinPool.getCommonPoolParallelism(),
+                new Operacja() {
+            public Object wykonaj() { return Kwantyzator.kwantyzuj(x, 256, Kwantyzator.Rozpraszanie.BRAK); }
+        }));
+        // widok fragmentu - bez kopiowania danych
+        ret.add(new Pozycja("wytnij", 0, NARZUT_STALY, new Operacja() {
+            public Object wykonaj() { return Util.wytnij(x, 1, 1, x.getWidth() - 2, x.getHeight() - 2); }
+        }));
+        ret.add(new Pozycja("mnoz", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.mnoz(x, maska); }
+        }));
+        // drugi czynnik trzeba przeskalować: wynik + przeskalowana kopia
+        ret.add(new Pozycja("mnoz(skalowanie)", 2.2, narzut, new Operacja() {
+            public Object wykonaj() { return Util.mnoz(x, mniejsza); }
+        }));
+        ret.add(new Pozycja("mieszaj", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.mieszaj(x, maska, Mieszanie.Tryb.NAKLADKA); }
+        }));
+        // mały obszar w miejscu - tylko bufory wierszy
+        ret.add(new Pozycja("Mieszanie.mieszajWMiejscu", 0, narzut, new Operacja() {
+            public Object wykonaj()
+            {
+                Mieszanie.mieszajWMiejscu(tlo, znak, Mieszanie.Tryb.EKRAN,
+                        new Rectangle(0, 0, znak.getWidth(), znak.getHeight()));
+                return null;
+            }
+        }));
+        // zmiana małego fragmentu - tylko splot fragmentu z marginesem
+        ret.add(new Pozycja("LancuchPrzyrostowy.przelicz", 0, narzut, new Operacja() {
+            public Object wykonaj() { return lancuch.przelicz(new Rectangle(10, 10, 32, 32)); }
+        }));
+        ret.add(new Pozycja("drukujNapisLG", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.drukujNapisLG(x, "test", czcionka, Color.RED, 10, 30); }
+        }));
+        ret.add(new Pozycja("drukujNapisPD", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.drukujNapisPD(x, "test", czcionka, Color.RED, 10, 30); }
+        }));
+        ret.add(new Pozycja("rozciagnijKontrast", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.rozciagnijKontrast(x, statystyki, 0.01); }
+        }));
+        ret.add(new Pozycja("Statystyki.licz", 0, narzut, new Operacja() {
+            public Object wykonaj() { return Statystyki.licz(x); }
+        }));
+        // równe obrazy - porównanie przechodzi przez cały obraz
+        ret.add(new Pozycja("Porownanie.rowne", 0, narzut, new Operacja() {
+            public Object wykonaj() { return Porownanie.rowne(x, kopia); }
+        }));
+        ret.add(new Pozycja("Porownanie.licz", 0, narzut, new Operacja() {
+            public Object wykonaj() { return Porownanie.licz(x, maska); }
+        }));
+        ret.add(new Pozycja("ObrazFloat.z", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return ObrazFloat.z(x); }
+        }));
+        ret.add(new Pozycja("ObrazFloat.z(inny)", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return ObrazFloat.z(inny); }
+        }));
+        ret.add(new Pozycja("ObrazFloat.zapisz(inny)", 0, narzut, new Operacja() {
+            public Object wykonaj() { return roboczyInny.zapisz(innyCel, 0); }
+        }));
+        ret.add(new Pozycja("filtrujAsynchronicznie", 1.1, narzut, new Operacja() {
+            public Object wykonaj() throws Exception
+            {
+                BufferedImageOp op = Util.dajFiltr(Util.typFiltra.ODBIJ_POZIOMO, null);
+                return Util.filtrujAsynchronicznie(op, x, null, wBiezacymWatku, null).get();
+            }
+        }));
+
+        // trafienie w pamięci podręcznej - tylko kopia obrazu
+        ret.add(new Pozycja("czytaj(pamiec)", 1.1, narzut, new Operacja() {
+            public Object wykonaj() { return Util.czytaj(nazwaPliku, pamiec); }
+        }));
+
+        for (final Util.typFiltra typ : Util.typFiltra.values())
+        {
+            // filtr NIC niczego nie liczy
+            if (typ == Util.typFiltra.NIC)
+                continue;
+
+            final BufferedImageOp op;
+            try {
+                op = Util.dajFiltr(typ, polowa);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // typ bez implementacji
+                continue;
+            }
+
+            // WYTNIJ bez obrazu docelowego zwraca widok
+            double krotnosc = (typ == Util.typFiltra.WYTNIJ) ? 0 : 1.1;
+            ret.add(new Pozycja("dajFiltr(" + typ + ")", krotnosc, narzut, new Operacja() {
+                public Object wykonaj() { return op.filter(x, null); }
+            }));
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return rozmiar danych wyniku w bajtach (0 dla wyników nie będących obrazami)
+     */
+    private static long rozmiar(Object wynik)
+    {
+        if (wynik instanceof BufferedImage)
+        {
+            DataBuffer db = ((BufferedImage) wynik).getRaster().getDataBuffer();
+            return (long) db.getSize() * db.getNumBanks()
+                    * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+        }
+        if (wynik instanceof ObrazFloat)
+        {
+            ObrazFloat f = (ObrazFloat) wynik;
+            return 4L * f.szerokosc() * f.wysokosc() * f.liczbaPasm();
+        }
+        return 0;
+    }
+
+    /**
+     * @return suma bajtów zaalokowanych dotąd przez wszystkie żyjące wątki
+     */
+    private static long zaalokowano(com.sun.management.ThreadMXBean mx)
+    {
+        long [] ile = mx.getThreadAllocatedBytes(mx.getAllThreadIds());
+        long suma = 0;
+        for (long i : ile)
+            if (i > 0)
+                suma += i;
+        return suma;
+    }
+
+    @Test
+    public void miesciSieWBudzecie() throws Exception
+    {
+        Assume.assumeTrue("ta maszyna wirtualna nie mierzy alokacji wątków",
+                ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < ROZGRZEWKA; i++)
+            pozycja.operacja.wykonaj();
+
+        long najmniej = Long.MAX_VALUE;
+        long wynik = 0;
+        for (int i = 0; i < POMIARY; i++)
+        {
+            long przed = zaalokowano(mx);
+            Object o = pozycja.operacja.wykonaj();
+            long po = zaalokowano(mx);
+
+            najmniej = Math.min(najmniej, po - przed);
+            wynik = rozmiar(o);
+        }
+
+        long budzet = (long) (pozycja.krotnosc * wynik) + pozycja.narzut;
+        boolean ok = najmniej <= budzet;
+
+        synchronized (raport)
+        {
+            raport.add(String.format("  {\"operacja\": \"%s\", \"typ\": %d, \"szerokosc\": %d, "
+                    + "\"wysokosc\": %d, \"zaalokowano\": %d, \"budzet\": %d, \"wynik\": %d, \"ok\": %b}",
+                    pozycja.nazwa, obraz.getType(), obraz.getWidth(), obraz.getHeight(),
+                    najmniej, budzet, wynik, ok));
+        }
+
+        assertTrue(String.format("%s typ %d %dx%d: zaalokowano %,d B, budżet %,d B, wynik %,d B",
+                pozycja.nazwa, obraz.getType(), obraz.getWidth(), obraz.getHeight(),
+                najmniej, budzet, wynik), ok);
+    }
+
+    @AfterClass
+    public static void zapiszRaport() throws IOException
+    {
+        File plik = new File(System.getProperty("budzet.raport",
+                "build/test/results/budzet_alokacji.json"));
+        if (plik.getParentFile() != null)
+            plik.getParentFile().mkdirs();
+
+        PrintWriter w = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(plik), "UTF-8"));
+        try {
+            w.println("[");
+            for (int i = 0; i < raport.size(); i++)
+                w.println(raport.get(i) + (i + 1 < raport.size() ? "," : ""));
+            w.println("]");
+        }
+        finally {
+            w.close();
+        }
+    }
+}
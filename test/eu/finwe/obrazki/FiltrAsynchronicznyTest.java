@@ -0,0 +1,189 @@
+package eu.finwe.obrazki;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Filtracja asynchroniczna: postęp, anulowanie między pasami i zgodność
+ * wyniku z filter()
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public class FiltrAsynchronicznyTest {
+
+    private static final int W = 100;
+    /** nie jest wielokrotnością Filtr.WIERSZY_W_PASIE */
+    private static final int H = 200;
+
+    /** wykonawca, który zapamiętuje zadania i wykonuje je na żądanie */
+    private static final class Kolejka implements Executor
+    {
+        final List<Runnable> zadania = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable zadanie)
+        {
+            zadania.add(zadanie);
+        }
+
+        void wykonaj()
+        {
+            for (Runnable r : zadania)
+                r.run();
+            zadania.clear();
+        }
+    }
+
+    /** zapamiętuje kolejne wywołania postep() jako pary {gotowe, wszystkie} */
+    private static class Zapis implements PostepFiltra
+    {
+        final List<int []> wywolania = new ArrayList<int []>();
+
+        @Override
+        public void postep(int gotoweWiersze, int wszystkieWiersze)
+        {
+            wywolania.add(new int [] { gotoweWiersze, wszystkieWiersze });
+        }
+    }
+
+    private static BufferedImage obraz()
+    {
+        Random los = new Random(5);
+        BufferedImage ret = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W; x++)
+                ret.setRGB(x, y, (x * 2) << 16 | y << 8 | los.nextInt(256));
+        return ret;
+    }
+
+    private static int [] piksele(BufferedImage im)
+    {
+        return im.getRGB(0, 0, im.getWidth(), im.getHeight(), null, 0, im.getWidth());
+    }
+
+    @Test
+    public void postepPasamiIWynikJakFilter() throws Exception
+    {
+        BufferedImage src = obraz();
+        BufferedImageOp op = Util.dajFiltr(Util.typFiltra.ODBIJ_POZIOMO, null);
+        Kolejka kolejka = new Kolejka();
+        Zapis zapis = new Zapis();
+
+        CompletableFuture<BufferedImage> f = Util.filtrujAsynchronicznie(op, src, null,
+                kolejka, zapis);
+        kolejka.wykonaj();
+
+        List<int []> oczekiwane = new ArrayList<int []>();
+        for (int y = Filtr.WIERSZY_W_PASIE; y < H; y += Filtr.WIERSZY_W_PASIE)
+            oczekiwane.add(new int [] { y, H });
+        oczekiwane.add(new int [] { H, H });
+        assertEquals(oczekiwane.size(), zapis.wywolania.size());
+        for (int i = 0; i < oczekiwane.size(); i++)
+            assertArrayEquals(oczekiwane.get(i), zapis.wywolania.get(i));
+
+        assertArrayEquals(piksele(op.filter(src, null)), piksele(f.get()));
+    }
+
+    @Test
+    public void anulowaniePoPierwszymPasie()
+    {
+        BufferedImage src = obraz();
+        BufferedImage dest = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        BufferedImageOp op = Util.dajFiltr(Util.typFiltra.ODBIJ_POZIOMO, null);
+        Kolejka kolejka = new Kolejka();
+        final AtomicReference<CompletableFuture<BufferedImage>> zadanie =
+                new AtomicReference<CompletableFuture<BufferedImage>>();
+
+        Zapis zapis = new Zapis() {
+            @Override
+            public void postep(int gotoweWiersze, int wszystkieWiersze)
+            {
+                super.postep(gotoweWiersze, wszystkieWiersze);
+                zadanie.get().cancel(true);
+            }
+        };
+
+        zadanie.set(Util.filtrujAsynchronicznie(op, src, dest, kolejka, zapis));
+        kolejka.wykonaj();
+
+        assertEquals(1, zapis.wywolania.size());
+        assertArrayEquals(new int [] { Filtr.WIERSZY_W_PASIE, H }, zapis.wywolania.get(0));
+        assertTrue(zadanie.get().isCancelled());
+        try {
+            zadanie.get().join();
+            fail("anulowane zadanie zwróciło wynik");
+        }
+        catch (CancellationException e)
+        {
+            // oczekiwane
+        }
+
+        // policzony tylko pierwszy pas, dalej obraz docelowy jest czysty
+        BufferedImage wzor = op.filter(src, null);
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W; x++)
+                assertEquals(y < Filtr.WIERSZY_W_PASIE ? wzor.getRGB(x, y) : 0xff000000,
+                        dest.getRGB(x, y));
+    }
+
+    @Test
+    public void zleWymiaryOdrzucaneOdRazu()
+    {
+        BufferedImageOp op = Util.dajFiltr(Util.typFiltra.OBROC_90, null);
+        Kolejka kolejka = new Kolejka();
+
+        try {
+            // obrót 90 stopni daje obraz H x W
+            Util.filtrujAsynchronicznie(op, obraz(),
+                    new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB), kolejka, null);
+            fail("przyjęto obraz docelowy o złych wymiarach");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // oczekiwane
+        }
+        assertTrue(kolejka.zadania.isEmpty());
+    }
+
+    @Test
+    public void obrazZPaletaJakFilter() throws Exception
+    {
+        BufferedImage src = obraz();
+        RenderingHints wskazowki = new RenderingHints(RenderingHints.KEY_DITHERING,
+                RenderingHints.VALUE_DITHER_ENABLE);
+
+        for (Util.typFiltra typ : Arrays.asList(Util.typFiltra.ODBIJ_PIONOWO,
+                Util.typFiltra.OBROC_180, Util.typFiltra.WYTNIJ, Util.typFiltra.SKALUJ))
+        {
+            BufferedImageOp op = Util.dajFiltr(typ, null, wskazowki);
+            BufferedImage wzor = op.filter(src, op.createCompatibleDestImage(src,
+                    new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_INDEXED).getColorModel()));
+            BufferedImage dest = op.createCompatibleDestImage(src, wzor.getColorModel());
+
+            Kolejka kolejka = new Kolejka();
+            CompletableFuture<BufferedImage> f = Util.filtrujAsynchronicznie(op, src, dest,
+                    kolejka, null);
+            kolejka.wykonaj();
+
+            assertSame(dest, f.get());
+            assertArrayEquals(typ.toString(), piksele(wzor), piksele(dest));
+        }
+    }
+}
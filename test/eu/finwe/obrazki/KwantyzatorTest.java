@@ -0,0 +1,164 @@
+package eu.finwe.obrazki;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mapowanie kolorów na paletę przez tablicę odwrotną Kwantyzatora
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public class KwantyzatorTest {
+
+    private static final int CZERWONY = 0xffff0000;
+    private static final int NIEBIESKI = 0xff0000ff;
+    private static final int CZARNY = 0xff000000;
+
+    /**
+     * Paleta, której equals() i hashCode() nie patrzą na kolory - jak
+     * IndexColorModel w Javie 8
+     */
+    private static final class PaletaJava8 extends IndexColorModel
+    {
+        PaletaJava8(int [] kolory)
+        {
+            super(1, kolory.length, kolory, 0, false, -1, DataBuffer.TYPE_BYTE);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return (o instanceof IndexColorModel)
+                    && ((IndexColorModel) o).getMapSize() == getMapSize();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return getMapSize();
+        }
+    }
+
+    private static IndexColorModel paleta(int ... kolory)
+    {
+        return new IndexColorModel(1, kolory.length, kolory, 0, false, -1,
+                DataBuffer.TYPE_BYTE);
+    }
+
+    private static BufferedImage jednolity(int w, int h, int argb)
+    {
+        BufferedImage ret = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                ret.setRGB(x, y, argb);
+        return ret;
+    }
+
+    private static BufferedImage mapuj(BufferedImage src, IndexColorModel icm,
+            Kwantyzator.Rozpraszanie rozpraszanie)
+    {
+        BufferedImage dst = new BufferedImage(src.getWidth(), src.getHeight(),
+                BufferedImage.TYPE_BYTE_BINARY, icm);
+        Kwantyzator.mapuj(src, dst, rozpraszanie);
+        return dst;
+    }
+
+    @Test
+    public void rozneKoloryTegoSamegoRozmiaruPalety()
+    {
+        BufferedImage niebieski = jednolity(8, 4, NIEBIESKI);
+
+        assertEquals(NIEBIESKI, mapuj(niebieski, paleta(CZERWONY, NIEBIESKI),
+                Kwantyzator.Rozpraszanie.BRAK).getRGB(3, 2));
+        assertEquals(CZARNY, mapuj(niebieski, paleta(CZARNY, CZERWONY),
+                Kwantyzator.Rozpraszanie.BRAK).getRGB(3, 2));
+    }
+
+    @Test
+    public void paletyRowneWedlugEqualsJava8()
+    {
+        BufferedImage niebieski = jednolity(8, 4, NIEBIESKI);
+
+        for (Kwantyzator.Rozpraszanie r : Kwantyzator.Rozpraszanie.values())
+        {
+            assertEquals(r.toString(), NIEBIESKI, mapuj(niebieski,
+                    new PaletaJava8(new int [] { CZERWONY, NIEBIESKI }), r).getRGB(0, 0));
+            assertEquals(r.toString(), CZARNY, mapuj(niebieski,
+                    new PaletaJava8(new int [] { CZARNY, CZERWONY }), r).getRGB(0, 0));
+        }
+
+        // ta sama ścieżka przez Util.dopasujTyp()
+        BufferedImage wzorzec = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_BINARY,
+                new PaletaJava8(new int [] { CZERWONY, NIEBIESKI }));
+        assertEquals(NIEBIESKI, Util.dopasujTyp(wzorzec, niebieski).getRGB(5, 1));
+        wzorzec = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_BINARY,
+                new PaletaJava8(new int [] { CZARNY, CZERWONY }));
+        assertEquals(CZARNY, Util.dopasujTyp(wzorzec, niebieski).getRGB(5, 1));
+    }
+
+    @Test
+    public void najblizszyKolorPalety()
+    {
+        // kolory palety daleko od siebie - komórki tablicy odwrotnej
+        // (4 poziomy na kanał) nie mogą zmienić wyniku
+        int [] kolory = new int[8];
+        for (int i = 0; i < 8; i++)
+            kolory[i] = 0xff000000 | ((i & 4) != 0 ? 0xff0000 : 0)
+                    | ((i & 2) != 0 ? 0xff00 : 0) | ((i & 1) != 0 ? 0xff : 0);
+        IndexColorModel icm = new IndexColorModel(8, 8, kolory, 0, false, -1,
+                DataBuffer.TYPE_BYTE);
+
+        Random los = new Random(1);
+        BufferedImage src = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < src.getHeight(); y++)
+            for (int x = 0; x < src.getWidth(); x++)
+            {
+                // składowe z dala od połowy zakresu - najbliższy kolor jest jednoznaczny
+                int r = los.nextBoolean() ? los.nextInt(100) : 155 + los.nextInt(100);
+                int g = los.nextBoolean() ? los.nextInt(100) : 155 + los.nextInt(100);
+                int b = los.nextBoolean() ? los.nextInt(100) : 155 + los.nextInt(100);
+                src.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+
+        BufferedImage dst = new BufferedImage(64, 48, BufferedImage.TYPE_BYTE_INDEXED, icm);
+        Kwantyzator.mapuj(src, dst, Kwantyzator.Rozpraszanie.BRAK);
+
+        for (int y = 0; y < src.getHeight(); y++)
+            for (int x = 0; x < src.getWidth(); x++)
+            {
+                int p = src.getRGB(x, y);
+                int oczekiwany = 0xff000000 | (((p >> 16) & 0xff) > 127 ? 0xff0000 : 0)
+                        | (((p >> 8) & 0xff) > 127 ? 0xff00 : 0) | ((p & 0xff) > 127 ? 0xff : 0);
+                assertEquals(oczekiwany, dst.getRGB(x, y));
+            }
+    }
+
+    @Test
+    public void kwantyzujNieWiecejKolorowNizZadano()
+    {
+        Random los = new Random(2);
+        BufferedImage src = new BufferedImage(100, 80, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < src.getHeight(); y++)
+            for (int x = 0; x < src.getWidth(); x++)
+                src.setRGB(x, y, los.nextInt(0x1000000));
+
+        BufferedImage wynik = Kwantyzator.kwantyzuj(src, 16, Kwantyzator.Rozpraszanie.FLOYD_STEINBERG);
+
+        assertTrue(wynik.getColorModel() instanceof IndexColorModel);
+        assertTrue(((IndexColorModel) wynik.getColorModel()).getMapSize() <= 16);
+        Set<Integer> kolory = new HashSet<Integer>();
+        for (int y = 0; y < wynik.getHeight(); y++)
+            for (int x = 0; x < wynik.getWidth(); x++)
+                kolory.add(wynik.getRGB(x, y));
+        assertTrue(kolory.size() <= 16);
+    }
+}
@@ -0,0 +1,176 @@
+package eu.finwe.obrazki;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.awt.image.RescaleOp;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Przeliczanie przyrostowe musi dać ten sam wynik co przeliczenie całego
+ * łańcucha, a zwrócony fragment musi obejmować wszystkie zmienione piksele
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public class LancuchPrzyrostowyTest {
+
+    private static final int W = 97;
+    private static final int H = 83;
+
+    private static BufferedImage losowy(long ziarno)
+    {
+        Random los = new Random(ziarno);
+        BufferedImage ret = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W; x++)
+                ret.setRGB(x, y, los.nextInt());
+        return ret;
+    }
+
+    /** zamalowuje fragment r obrazu losowymi kolorami */
+    private static void zmien(BufferedImage im, Rectangle r, long ziarno)
+    {
+        Random los = new Random(ziarno);
+        for (int y = r.y; y < r.y + r.height; y++)
+            for (int x = r.x; x < r.x + r.width; x++)
+                im.setRGB(x, y, los.nextInt());
+    }
+
+    /** nieparzyste jądro z niesymetrycznym środkiem */
+    private static ConvolveOp splot(int krawedz)
+    {
+        float [] dane = new float[5 * 3];
+        for (int i = 0; i < dane.length; i++)
+            dane[i] = 1f / dane.length;
+        return new ConvolveOp(new Kernel(5, 3, dane), krawedz, null);
+    }
+
+    /**
+     * Przelicza łańcuch po zmianach kolejnych fragmentów i porównuje
+     * z przeliczeniem całości
+     */
+    private static void sprawdz(BufferedImageOp ... ops)
+    {
+        Rectangle [] zmiany = {
+            new Rectangle(40, 30, 7, 5),
+            new Rectangle(0, 0, 3, 4),              // róg obrazu
+            new Rectangle(W - 2, H - 6, 2, 6),      // przeciwny róg
+            new Rectangle(-5, 20, 10, 3),           // częściowo poza obrazem
+        };
+
+        BufferedImage zrodlo = losowy(1);
+        LancuchPrzyrostowy lancuch = new LancuchPrzyrostowy(ops);
+        BufferedImage wynik = lancuch.przelicz(zrodlo);
+
+        long ziarno = 2;
+        for (Rectangle z : zmiany)
+        {
+            BufferedImage przed = Util.kopiuj(wynik);
+            zmien(zrodlo, z.intersection(new Rectangle(W, H)), ziarno++);
+            Rectangle o = lancuch.przelicz(z);
+
+            assertSame(wynik, lancuch.wynik());
+            BufferedImage cale = new LancuchPrzyrostowy(ops).przelicz(Util.kopiuj(zrodlo));
+            Porownanie p = Porownanie.licz(cale, wynik);
+            assertTrue("zmiana " + z + ": " + p, p.rowne());
+
+            for (int y = 0; y < wynik.getHeight(); y++)
+                for (int x = 0; x < wynik.getWidth(); x++)
+                    if (przed.getRGB(x, y) != wynik.getRGB(x, y))
+                        assertTrue("zmiana " + z + " poza " + o + " w (" + x + ", " + y + ")",
+                                o.contains(x, y));
+        }
+    }
+
+    @Test
+    public void operacjePunktowe()
+    {
+        sprawdz(new RescaleOp(1.5f, -20f, null), new RescaleOp(0.5f, 40f, null));
+    }
+
+    @Test
+    public void splot()
+    {
+        sprawdz(splot(ConvolveOp.EDGE_NO_OP));
+        sprawdz(splot(ConvolveOp.EDGE_ZERO_FILL), splot(ConvolveOp.EDGE_NO_OP));
+    }
+
+    @Test
+    public void przeksztalcenieCalkowite()
+    {
+        AffineTransform t = AffineTransform.getTranslateInstance(7, -3);
+        t.scale(2, 1);
+        sprawdz(new AffineTransformOp(t, AffineTransformOp.TYPE_NEAREST_NEIGHBOR));
+        sprawdz(new AffineTransformOp(AffineTransform.getTranslateInstance(5, 4),
+                AffineTransformOp.TYPE_BILINEAR));
+    }
+
+    @Test
+    public void filtryPasami()
+    {
+        for (Util.typFiltra typ : new Util.typFiltra [] { Util.typFiltra.ODBIJ_POZIOMO,
+                Util.typFiltra.ODBIJ_PIONOWO, Util.typFiltra.OBROC_90,
+                Util.typFiltra.OBROC_180, Util.typFiltra.TRANSPONUJ })
+            sprawdz(Util.dajFiltr(typ, null), splot(ConvolveOp.EDGE_NO_OP));
+    }
+
+    @Test
+    public void mieszanyLancuch()
+    {
+        sprawdz(new RescaleOp(1.2f, 0f, null), splot(ConvolveOp.EDGE_NO_OP),
+                Util.dajFiltr(Util.typFiltra.OBROC_270, null),
+                new AffineTransformOp(AffineTransform.getTranslateInstance(-4, 9),
+                        AffineTransformOp.TYPE_NEAREST_NEIGHBOR),
+                new RescaleOp(0.8f, 10f, null));
+    }
+
+    @Test
+    public void filtrZaleznyOdCalosci()
+    {
+        // AUTO_POZIOMY przeliczany w całości - kolejne filtry także
+        sprawdz(Util.dajFiltr(Util.typFiltra.AUTO_POZIOMY, null), splot(ConvolveOp.EDGE_NO_OP));
+    }
+
+    @Test
+    public void zmianaPozaObrazem()
+    {
+        LancuchPrzyrostowy lancuch = new LancuchPrzyrostowy(splot(ConvolveOp.EDGE_NO_OP));
+        lancuch.przelicz(losowy(1));
+
+        assertTrue(lancuch.przelicz(new Rectangle(W + 10, 0, 5, 5)).isEmpty());
+    }
+
+    @Test
+    public void pustyLancuch()
+    {
+        BufferedImage zrodlo = losowy(1);
+        LancuchPrzyrostowy lancuch = new LancuchPrzyrostowy();
+
+        assertSame(zrodlo, lancuch.przelicz(zrodlo));
+        assertEquals(new Rectangle(1, 2, 3, 4), lancuch.przelicz(new Rectangle(1, 2, 3, 4)));
+    }
+
+    @Test
+    public void bezPrzeliczeniaCalosci()
+    {
+        try {
+            new LancuchPrzyrostowy(new RescaleOp(1f, 0f, null)).przelicz(new Rectangle(1, 1));
+            fail("przeliczono fragment przed przeliczeniem całości");
+        }
+        catch (IllegalStateException e)
+        {
+            // oczekiwane
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package eu.finwe.obrazki;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Wzory trybów mieszania i kompozycji source-over sprawdzane z tymi samymi
+ * wzorami liczonymi w liczbach zmiennoprzecinkowych, a także obszar, maska
+ * i mieszanie w miejscu do obrazu z paletą
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public class MieszanieTest {
+
+    private static final int W = 61;
+    private static final int H = 37;
+
+    private static BufferedImage losowy(int typ, long ziarno)
+    {
+        Random los = new Random(ziarno);
+        BufferedImage ret = new BufferedImage(W, H, typ);
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W; x++)
+                ret.setRGB(x, y, los.nextInt());
+        return ret;
+    }
+
+    /** TYPE_INT_ARGB_PRE z losową alfą, w tym 0 i 255 */
+    private static BufferedImage losowyPrzemnozony(long ziarno)
+    {
+        Random los = new Random(ziarno);
+        BufferedImage ret = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB_PRE);
+        int [] dane = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < dane.length; i++)
+        {
+            int a;
+            switch (los.nextInt(4))
+            {
+                case 0:
+                    a = 0;
+                    break;
+                case 1:
+                    a = 255;
+                    break;
+                default:
+                    a = los.nextInt(256);
+            }
+            int p = a << 24;
+            for (int s = 0; s < 24; s += 8)
+                p |= los.nextInt(a + 1) << s;
+            dane[i] = p;
+        }
+        return ret;
+    }
+
+    /** B(Cb, Cs) dla kolorów z [0, 1] */
+    private static double b(Mieszanie.Tryb tryb, double cb, double cs)
+    {
+        switch (tryb)
+        {
+            case MNOZENIE:
+                return cb * cs;
+            case EKRAN:
+                return cb + cs - cb * cs;
+            case NAKLADKA:
+                return (cb <= 0.5) ? 2 * cb * cs : 1 - 2 * (1 - cb) * (1 - cs);
+            case CIEMNIEJSZE:
+                return Math.min(cb, cs);
+            case JASNIEJSZE:
+                return Math.max(cb, cs);
+            default:
+                return Math.sqrt(cb * cs);
+        }
+    }
+
+    @Test
+    public void trybyDlaObrazowNieprzezroczystych()
+    {
+        BufferedImage dol = losowy(BufferedImage.TYPE_INT_RGB, 1);
+        BufferedImage gora = losowy(BufferedImage.TYPE_INT_RGB, 2);
+
+        for (Mieszanie.Tryb tryb : Mieszanie.Tryb.values())
+        {
+            BufferedImage wynik = Mieszanie.mieszaj(dol, gora, tryb);
+            assertEquals(BufferedImage.TYPE_INT_RGB, wynik.getType());
+
+            for (int y = 0; y < H; y++)
+                for (int x = 0; x < W; x++)
+                {
+                    int pb = dol.getRGB(x, y);
+                    int ps = gora.getRGB(x, y);
+                    int po = wynik.getRGB(x, y);
+                    for (int s = 0; s < 24; s += 8)
+                    {
+                        double oczekiwany = 255 * b(tryb, ((pb >> s) & 0xff) / 255.0,
+                                ((ps >> s) & 0xff) / 255.0);
+                        assertEquals(tryb + " (" + x + ", " + y + ")", oczekiwany,
+                                (po >> s) & 0xff, 1);
+                    }
+                }
+        }
+    }
+
+    @Test
+    public void kompozycjaZAlfa()
+    {
+        BufferedImage dol = losowyPrzemnozony(3);
+        BufferedImage gora = losowyPrzemnozony(4);
+        int [] db = ((DataBufferInt) dol.getRaster().getDataBuffer()).getData();
+        int [] ds = ((DataBufferInt) gora.getRaster().getDataBuffer()).getData();
+
+        for (Mieszanie.Tryb tryb : Mieszanie.Tryb.values())
+        {
+            BufferedImage wynik = Mieszanie.mieszaj(dol, gora, tryb);
+            assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, wynik.getType());
+            int [] dw = ((DataBufferInt) wynik.getRaster().getDataBuffer()).getData();
+
+            for (int i = 0; i < dw.length; i++)
+            {
+                int pb = db[i], ps = ds[i], po = dw[i];
+                double ab = (pb >>> 24) / 255.0;
+                double as = (ps >>> 24) / 255.0;
+                double ao = as + ab - as * ab;
+                String gdzie = tryb + " " + Integer.toHexString(pb) + " "
+                        + Integer.toHexString(ps) + " -> " + Integer.toHexString(po);
+
+                // piksel przezroczysty nie zmienia drugiego
+                if (as == 0)
+                {
+                    assertEquals(gdzie, pb, po);
+                    continue;
+                }
+                if (ab == 0)
+                {
+                    assertEquals(gdzie, ps, po);
+                    continue;
+                }
+
+                assertEquals(gdzie, 255 * ao, po >>> 24, 1);
+                for (int s = 0; s < 24; s += 8)
+                {
+                    double cb = ((pb >> s) & 0xff) / 255.0;
+                    double cs = ((ps >> s) & 0xff) / 255.0;
+                    double co = cs * (1 - ab) + cb * (1 - as)
+                            + as * ab * b(tryb, cb / ab, cs / as);
+                    assertEquals(gdzie, 255 * co, (po >> s) & 0xff, 2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void ukladyPikseliDajaTenSamWynik()
+    {
+        BufferedImage dol = losowy(BufferedImage.TYPE_INT_RGB, 5);
+        BufferedImage gora = losowy(BufferedImage.TYPE_INT_ARGB, 6);
+
+        for (Mieszanie.Tryb tryb : Mieszanie.Tryb.values())
+        {
+            BufferedImage wzor = Mieszanie.mieszaj(dol, gora, tryb);
+            // czytane wierszami przez DostepBufora zamiast wprost z tablicy
+            BufferedImage dol3 = Util.dopasujTyp(
+                    new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR), dol);
+            BufferedImage gora4 = Util.dopasujTyp(
+                    new BufferedImage(1, 1, BufferedImage.TYPE_4BYTE_ABGR), gora);
+
+            assertTrue(tryb.toString(), Porownanie.rowne(wzor, Mieszanie.mieszaj(dol3, gora, tryb)));
+            assertTrue(tryb.toString(), Porownanie.rowne(wzor, Mieszanie.mieszaj(dol, gora4, tryb)));
+        }
+    }
+
+    @Test
+    public void obszar()
+    {
+        BufferedImage dol = losowy(BufferedImage.TYPE_INT_RGB, 7);
+        BufferedImage gora = losowy(BufferedImage.TYPE_INT_ARGB, 8);
+        Rectangle r = new Rectangle(10, 5, 30, 20);
+        BufferedImage gora2 = Util.kopiuj(Util.wytnij(gora, 0, 0, r.width, r.height));
+
+        BufferedImage wynik = Mieszanie.mieszaj(dol, gora2, Mieszanie.Tryb.NAKLADKA, r);
+        BufferedImage cale = Mieszanie.mieszaj(Util.kopiuj(Util.wytnij(dol, r.x, r.y,
+                r.width, r.height)), gora2, Mieszanie.Tryb.NAKLADKA);
+
+        assertTrue(Porownanie.rowne(cale, Util.wytnij(wynik, r.x, r.y, r.width, r.height)));
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W; x++)
+                if (!r.contains(x, y))
+                    assertEquals(dol.getRGB(x, y), wynik.getRGB(x, y));
+
+        // w miejscu - to samo
+        BufferedImage wMiejscu = Util.kopiuj(dol);
+        Mieszanie.mieszajWMiejscu(wMiejscu, gora2, Mieszanie.Tryb.NAKLADKA, r);
+        assertTrue(Porownanie.rowne(wynik, wMiejscu));
+    }
+
+    @Test
+    public void maska()
+    {
+        BufferedImage dol = losowy(BufferedImage.TYPE_INT_RGB, 9);
+        BufferedImage gora = losowy(BufferedImage.TYPE_INT_ARGB, 10);
+        Rectangle r = new Rectangle(W, H);
+        Mieszanie.Tryb tryb = Mieszanie.Tryb.EKRAN;
+
+        BufferedImage alfa = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage jasnosc = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W; x++)
+            {
+                int m = (x < 20) ? 0 : (x < 40) ? 255 : 100;
+                alfa.setRGB(x, y, (m << 24) | 0x123456);
+                jasnosc.setRGB(x, y, (m << 16) | (m << 8) | m);
+            }
+
+        BufferedImage bezMaski = Mieszanie.mieszaj(dol, gora, tryb);
+        BufferedImage zAlfa = Mieszanie.mieszaj(dol, gora, tryb, r, alfa);
+        BufferedImage zJasnoscia = Mieszanie.mieszaj(dol, gora, tryb, r, jasnosc);
+
+        // maska bez alfy działa jasnością tak jak alfa maski z alfą
+        assertTrue(Porownanie.rowne(zAlfa, zJasnoscia));
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W; x++)
+            {
+                if (x < 20)
+                    assertEquals(dol.getRGB(x, y), zAlfa.getRGB(x, y));
+                else if (x < 40)
+                    assertEquals(bezMaski.getRGB(x, y), zAlfa.getRGB(x, y));
+                else
+                    // krycie górnego razy 100 / 255 - wynik między dolnym a pełnym
+                    for (int s = 0; s < 24; s += 8)
+                    {
+                        int d = (dol.getRGB(x, y) >> s) & 0xff;
+                        int p = (bezMaski.getRGB(x, y) >> s) & 0xff;
+                        int v = (zAlfa.getRGB(x, y) >> s) & 0xff;
+                        assertTrue(v >= Math.min(d, p) - 1 && v <= Math.max(d, p) + 1);
+                    }
+            }
+    }
+
+    @Test
+    public void wMiejscuZPaleta()
+    {
+        BufferedImage dol = Kwantyzator.kwantyzuj(losowy(BufferedImage.TYPE_INT_RGB, 11), 64,
+                Kwantyzator.Rozpraszanie.BRAK);
+        BufferedImage gora = losowy(BufferedImage.TYPE_INT_ARGB, 12);
+        // część górnego całkiem przezroczysta
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W / 2; x++)
+                gora.setRGB(x, y, 0);
+
+        for (Mieszanie.Tryb tryb : Mieszanie.Tryb.values())
+        {
+            BufferedImage kopia = Mieszanie.mieszaj(dol, gora, tryb);
+            BufferedImage wMiejscu = Util.kopiuj(dol);
+            Mieszanie.mieszajWMiejscu(wMiejscu, gora, tryb, null);
+
+            assertTrue(tryb.toString(), wMiejscu.getColorModel() == dol.getColorModel());
+            assertTrue(tryb + ": " + Porownanie.licz(kopia, wMiejscu),
+                    Porownanie.rowne(kopia, wMiejscu));
+            // pod przezroczystymi pikselami te same indeksy
+            for (int y = 0; y < H; y++)
+                for (int x = 0; x < W / 2; x++)
+                    assertEquals(dol.getRaster().getSample(x, y, 0),
+                            wMiejscu.getRaster().getSample(x, y, 0));
+        }
+    }
+
+    @Test
+    public void zleWymiary()
+    {
+        BufferedImage dol = losowy(BufferedImage.TYPE_INT_RGB, 1);
+        BufferedImage gora = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+
+        sprawdzWyjatek(dol, gora, null, null);
+        sprawdzWyjatek(dol, gora, new Rectangle(W - 5, 0, 10, 10), null);
+        sprawdzWyjatek(dol, gora, new Rectangle(0, 0, 10, 10),
+                new BufferedImage(10, 11, BufferedImage.TYPE_BYTE_GRAY));
+    }
+
+    private static void sprawdzWyjatek(BufferedImage dol, BufferedImage gora, Rectangle r,
+            BufferedImage maska)
+    {
+        try {
+            if (r == null)
+                Mieszanie.mieszaj(dol, gora, Mieszanie.Tryb.MNOZENIE);
+            else
+                Mieszanie.mieszaj(dol, gora, Mieszanie.Tryb.MNOZENIE, r, maska);
+            fail("przyjęto złe wymiary");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // oczekiwane
+        }
+    }
+}
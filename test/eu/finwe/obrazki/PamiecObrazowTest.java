@@ -0,0 +1,294 @@
+package eu.finwe.obrazki;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Jednokrotne dekodowanie obrazu przy równoczesnych żądaniach, także gdy
+ * dekodowanie się nie uda. Pliki czytane są przez testowy czytnik ImageIO,
+ * który czeka na zwolnienie zatrzasku i dopiero wtedy zwraca obraz albo
+ * rzuca błąd.
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public class PamiecObrazowTest {
+
+    /** liczba wątków proszących o ten sam plik */
+    private static final int WATKI = 4;
+    /** najdłuższe oczekiwanie na wątki, w sekundach */
+    private static final int LIMIT = 10;
+
+    private static final byte [] NAGLOWEK = { 'T', 'E', 'S', 'T' };
+
+    /** liczba wywołań read() testowego czytnika */
+    static final AtomicInteger dekodowania = new AtomicInteger();
+    /** read() czeka na zwolnienie tego zatrzasku */
+    static volatile CountDownLatch start = new CountDownLatch(0);
+    /** błąd rzucany przez read() lub null - poprawny obraz */
+    static volatile Error blad = null;
+
+    private final TestowySpi spi = new TestowySpi();
+    private File plik;
+
+    private static final class TestowySpi extends ImageReaderSpi
+    {
+        TestowySpi()
+        {
+            vendorName = "test";
+            version = "1";
+            names = new String [] { "test" };
+            pluginClassName = TestowyCzytnik.class.getName();
+            inputTypes = new Class<?> [] { ImageInputStream.class };
+        }
+
+        @Override
+        public boolean canDecodeInput(Object source) throws IOException
+        {
+            if (!(source instanceof ImageInputStream))
+                return false;
+            ImageInputStream we = (ImageInputStream) source;
+            byte [] b = new byte[NAGLOWEK.length];
+            we.mark();
+            try {
+                we.readFully(b);
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+            finally {
+                we.reset();
+            }
+            return Arrays.equals(b, NAGLOWEK);
+        }
+
+        @Override
+        public ImageReader createReaderInstance(Object extension)
+        {
+            return new TestowyCzytnik(this);
+        }
+
+        @Override
+        public String getDescription(Locale locale)
+        {
+            return "czytnik testowy";
+        }
+    }
+
+    private static final class TestowyCzytnik extends ImageReader
+    {
+        TestowyCzytnik(ImageReaderSpi spi)
+        {
+            super(spi);
+        }
+
+        @Override
+        public int getNumImages(boolean allowSearch)
+        {
+            return 1;
+        }
+
+        @Override
+        public int getWidth(int imageIndex)
+        {
+            return 2;
+        }
+
+        @Override
+        public int getHeight(int imageIndex)
+        {
+            return 2;
+        }
+
+        @Override
+        public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex)
+        {
+            return Collections.singletonList(ImageTypeSpecifier.createFromBufferedImageType(
+                    BufferedImage.TYPE_INT_RGB)).iterator();
+        }
+
+        @Override
+        public IIOMetadata getStreamMetadata()
+        {
+            return null;
+        }
+
+        @Override
+        public IIOMetadata getImageMetadata(int imageIndex)
+        {
+            return null;
+        }
+
+        @Override
+        public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException
+        {
+            dekodowania.incrementAndGet();
+            try {
+                start.await();
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException(e);
+            }
+            if (blad != null)
+                throw blad;
+            return new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        }
+    }
+
+    @Before
+    public void przygotuj() throws IOException
+    {
+        IIORegistry.getDefaultInstance().registerServiceProvider(spi);
+        dekodowania.set(0);
+        blad = null;
+        start = new CountDownLatch(0);
+
+        plik = File.createTempFile("pamiec", ".test");
+        FileOutputStream out = new FileOutputStream(plik);
+        try {
+            out.write(NAGLOWEK);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void sprzataj()
+    {
+        start.countDown();
+        IIORegistry.getDefaultInstance().deregisterServiceProvider(spi);
+        plik.delete();
+    }
+
+    /**
+     * Uruchamia WATKI wątków proszących o plik i czeka, aż wszystkie
+     * poza dekodującym zatrzymają się w oczekiwaniu na wynik
+     *
+     * @param wyniki obraz lub wyjątek z każdego wątku
+     */
+    private List<Thread> uruchom(final PamiecObrazow pamiec, final List<Object> wyniki)
+            throws InterruptedException
+    {
+        List<Thread> watki = new ArrayList<Thread>();
+        for (int i = 0; i < WATKI; i++)
+        {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    Object wynik;
+                    try {
+                        wynik = pamiec.daj(plik.getPath());
+                    }
+                    catch (Throwable e)
+                    {
+                        wynik = e;
+                    }
+                    synchronized (wyniki)
+                    {
+                        wyniki.add(wynik);
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            watki.add(t);
+        }
+
+        // jeden wątek w read(), pozostałe zaparkowane w czekaj()
+        long koniec = System.nanoTime() + TimeUnit.SECONDS.toNanos(LIMIT);
+        while (System.nanoTime() < koniec)
+        {
+            int czekajace = 0;
+            for (Thread t : watki)
+                if (t.getState() == Thread.State.WAITING)
+                    czekajace++;
+            if (czekajace == WATKI)
+                break;
+            Thread.sleep(5);
+        }
+        return watki;
+    }
+
+    private static void dolacz(List<Thread> watki) throws InterruptedException
+    {
+        for (Thread t : watki)
+        {
+            t.join(TimeUnit.SECONDS.toMillis(LIMIT));
+            assertFalse("wątek nie doczekał się wyniku", t.isAlive());
+        }
+    }
+
+    @Test
+    public void jednoDekodowanieDlaWieluWatkow() throws Exception
+    {
+        PamiecObrazow pamiec = new PamiecObrazow(1 << 20);
+        List<Object> wyniki = new ArrayList<Object>();
+        start = new CountDownLatch(1);
+
+        List<Thread> watki = uruchom(pamiec, wyniki);
+        start.countDown();
+        dolacz(watki);
+
+        assertEquals(1, dekodowania.get());
+        assertEquals(WATKI, wyniki.size());
+        for (Object w : wyniki)
+            assertTrue(String.valueOf(w), w instanceof BufferedImage);
+        // każdy dostaje własną kopię
+        assertNotSame(wyniki.get(0), wyniki.get(1));
+        assertEquals(1, pamiec.chybienia());
+        assertEquals(WATKI - 1, pamiec.trafienia());
+    }
+
+    @Test
+    public void bladDekodowaniaBudziCzekajacych() throws Exception
+    {
+        PamiecObrazow pamiec = new PamiecObrazow(1 << 20);
+        List<Object> wyniki = new ArrayList<Object>();
+        start = new CountDownLatch(1);
+        blad = new OutOfMemoryError("testowy brak pamięci");
+
+        List<Thread> watki = uruchom(pamiec, wyniki);
+        start.countDown();
+        dolacz(watki);
+
+        assertEquals(1, dekodowania.get());
+        assertEquals(WATKI, wyniki.size());
+        for (Object w : wyniki)
+            assertTrue(String.valueOf(w), w instanceof OutOfMemoryError);
+
+        // nieudane dekodowanie nie zostaje w pamięci - kolejne żądanie czyta plik
+        blad = null;
+        assertEquals(2, pamiec.daj(plik.getPath()).getWidth());
+        assertEquals(2, dekodowania.get());
+    }
+}
@@ -0,0 +1,298 @@
+package eu.finwe.obrazki;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Eksport piramidy kafli DZI: wybór sposobu czytania pliku, opis
+ * piramidy, układ kafli i ich zawartość porównana z poziomami liczonymi
+ * wprost z obrazu
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public class PiramidaKafliTest {
+
+    private static ImageTypeSpecifier typ(int typObrazu)
+    {
+        return ImageTypeSpecifier.createFromBufferedImageType(typObrazu);
+    }
+
+    @Test
+    public void wierszyNaOdczytMalegoObrazu()
+    {
+        assertEquals(1100, PiramidaKafli.wierszyNaOdczyt(typ(BufferedImage.TYPE_3BYTE_BGR), 1500, 1100));
+        assertEquals(1100, PiramidaKafli.wierszyNaOdczyt(typ(BufferedImage.TYPE_BYTE_BINARY), 1500, 1100));
+        assertEquals(0, PiramidaKafli.wierszyNaOdczyt(null, 1500, 1100));
+    }
+
+    @Test
+    public void wierszyNaOdczytPonadLimitProbek()
+    {
+        // 30000 x 30000 x 3 = 2,7 mld próbek - dwie części po 15000 wierszy
+        ImageTypeSpecifier rgb = typ(BufferedImage.TYPE_3BYTE_BGR);
+        int wierszy = PiramidaKafli.wierszyNaOdczyt(rgb, 30000, 30000);
+        assertEquals(15000, wierszy);
+        // raster części da się utworzyć
+        assertEquals(15000, rgb.getSampleModel(30000, wierszy).getHeight());
+
+        // 16-bitowe RGBA: 8 mln próbek w wierszu - jak najmniej części
+        ImageTypeSpecifier rgba16 = ImageTypeSpecifier.createInterleaved(
+                ColorSpace.getInstance(ColorSpace.CS_sRGB), new int [] { 0, 1, 2, 3 },
+                DataBuffer.TYPE_USHORT, true, false);
+        int w = 2000000;
+        int h = 2000;
+        wierszy = PiramidaKafli.wierszyNaOdczyt(rgba16, w, h);
+        assertTrue((long) wierszy * w * 4 <= Integer.MAX_VALUE);
+        int czesci = (h + wierszy - 1) / wierszy;
+        assertTrue((long) (h + czesci - 2) / (czesci - 1) * w * 4 > Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void wierszyNaOdczytNieobslugiwanegoUkladu()
+    {
+        // osobne tablice dla pasm - pierścień ich nie obsługuje
+        ImageTypeSpecifier pasma = ImageTypeSpecifier.createBanded(
+                ColorSpace.getInstance(ColorSpace.CS_sRGB), new int [] { 0, 1, 2 },
+                new int [] { 0, 0, 0 }, DataBuffer.TYPE_BYTE, false, false);
+        assertEquals(0, PiramidaKafli.wierszyNaOdczyt(pasma, 100, 100));
+
+        ImageTypeSpecifier zmiennoprzecinkowy = ImageTypeSpecifier.createInterleaved(
+                ColorSpace.getInstance(ColorSpace.CS_sRGB), new int [] { 0, 1, 2 },
+                DataBuffer.TYPE_FLOAT, false, false);
+        assertEquals(0, PiramidaKafli.wierszyNaOdczyt(zmiennoprzecinkowy, 100, 100));
+    }
+
+    @Test
+    public void sposobOdczytu()
+    {
+        // mieści się w jednym rastrze
+        assertEquals(PiramidaKafli.W_PRZEBIEGU, PiramidaKafli.sposobOdczytu(true, 900, 900));
+        assertEquals(PiramidaKafli.W_CALOSCI, PiramidaKafli.sposobOdczytu(false, 900, 900));
+        // za duży na jeden raster: sekwencyjny w częściach, z przeplotem pasami
+        assertEquals(PiramidaKafli.W_PRZEBIEGU, PiramidaKafli.sposobOdczytu(true, 15000, 30000));
+        assertEquals(PiramidaKafli.PASAMI, PiramidaKafli.sposobOdczytu(false, 15000, 30000));
+        // układ próbek, którego nie obsługuje pierścień
+        assertEquals(PiramidaKafli.W_CALOSCI, PiramidaKafli.sposobOdczytu(true, 0, 900));
+    }
+
+    @Rule
+    public TemporaryFolder katalog = new TemporaryFolder();
+
+    private static BufferedImage losowy(int w, int h, int typ, long ziarno)
+    {
+        Random los = new Random(ziarno);
+        BufferedImage ret = new BufferedImage(w, h, typ);
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+            {
+                int p = los.nextInt();
+                // co piąty piksel przezroczysty, żeby sprawdzić ważenie alfą
+                if (ret.getColorModel().hasAlpha() && los.nextInt(5) == 0)
+                    p &= 0x00ffffff;
+                ret.setRGB(x, y, p);
+            }
+        return ret;
+    }
+
+    /** poziom niższy wprost z definicji: średnia pikseli 2x2 ważona alfą */
+    private static int [][] pomniejsz(int [][] p, boolean alfa)
+    {
+        int h = p.length;
+        int w = p[0].length;
+        int [][] ret = new int[(h + 1) / 2][(w + 1) / 2];
+        for (int y = 0; y < ret.length; y++)
+            for (int x = 0; x < ret[0].length; x++)
+            {
+                int [] q = { p[2 * y][2 * x], p[2 * y][Math.min(2 * x + 1, w - 1)],
+                    p[Math.min(2 * y + 1, h - 1)][2 * x],
+                    p[Math.min(2 * y + 1, h - 1)][Math.min(2 * x + 1, w - 1)] };
+                int suma = 0;
+                for (int v : q)
+                    suma += alfa ? v >>> 24 : 1;
+                if (suma == 0)
+                    continue;
+                int wynik = alfa ? ((suma + 2) >> 2) << 24 : 0xff000000;
+                for (int s = 0; s < 24; s += 8)
+                {
+                    int kolor = 0;
+                    for (int v : q)
+                        kolor += (alfa ? v >>> 24 : 1) * ((v >> s) & 0xff);
+                    wynik |= (alfa ? (kolor + suma / 2) / suma : (kolor + 2) >> 2) << s;
+                }
+                ret[y][x] = wynik;
+            }
+        return ret;
+    }
+
+    /**
+     * Sprawdza opis piramidy i wszystkie kafle (PNG, więc bez strat)
+     * z poziomami liczonymi wprost z obrazu wzor
+     */
+    private static void sprawdzPiramide(File dzi, BufferedImage wzor, int kafel, int zakladka,
+            int liczbaKafli) throws Exception
+    {
+        int w = wzor.getWidth();
+        int h = wzor.getHeight();
+        boolean alfa = wzor.getColorModel().hasAlpha();
+
+        Element opis = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(dzi).getDocumentElement();
+        assertEquals("Image", opis.getTagName());
+        assertEquals("png", opis.getAttribute("Format"));
+        assertEquals(Integer.toString(zakladka), opis.getAttribute("Overlap"));
+        assertEquals(Integer.toString(kafel), opis.getAttribute("TileSize"));
+        Element rozmiar = (Element) opis.getElementsByTagName("Size").item(0);
+        assertEquals(Integer.toString(w), rozmiar.getAttribute("Width"));
+        assertEquals(Integer.toString(h), rozmiar.getAttribute("Height"));
+
+        String nazwa = dzi.getName().substring(0, dzi.getName().lastIndexOf('.'));
+        File pliki = new File(dzi.getParentFile(), nazwa + "_files");
+        int poziomow = PiramidaKafli.liczbaPoziomow(w, h);
+        assertEquals(poziomow, pliki.list().length);
+
+        int [][] p = new int[h][w];
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                p[y][x] = alfa ? wzor.getRGB(x, y) : wzor.getRGB(x, y) | 0xff000000;
+
+        int razem = 0;
+        for (int poziom = poziomow - 1; poziom >= 0; poziom--)
+        {
+            int pw = p[0].length;
+            int ph = p.length;
+            if (poziom == 0)
+                assertTrue(pw == 1 && ph == 1);
+            int kolumn = (pw + kafel - 1) / kafel;
+            int wierszy = (ph + kafel - 1) / kafel;
+            File k = new File(pliki, Integer.toString(poziom));
+            assertEquals("poziom " + poziom, kolumn * wierszy, k.list().length);
+
+            for (int r = 0; r < wierszy; r++)
+                for (int c = 0; c < kolumn; c++)
+                {
+                    int x0 = Math.max(0, c * kafel - zakladka);
+                    int x1 = Math.min(pw, (c + 1) * kafel + zakladka);
+                    int y0 = Math.max(0, r * kafel - zakladka);
+                    int y1 = Math.min(ph, (r + 1) * kafel + zakladka);
+                    String opisKafla = poziom + "/" + c + "_" + r;
+
+                    BufferedImage t = ImageIO.read(new File(k, c + "_" + r + ".png"));
+                    assertEquals(opisKafla, x1 - x0, t.getWidth());
+                    assertEquals(opisKafla, y1 - y0, t.getHeight());
+                    for (int y = y0; y < y1; y++)
+                        for (int x = x0; x < x1; x++)
+                        {
+                            int v = p[y][x];
+                            int u = t.getRGB(x - x0, y - y0);
+                            // kolor całkiem przezroczystego piksela bez znaczenia
+                            if (alfa && (v >>> 24) == 0)
+                                assertEquals(opisKafla, 0, u >>> 24);
+                            else
+                                assertEquals(opisKafla + " (" + x + ", " + y + ")",
+                                        Integer.toHexString(v), Integer.toHexString(u));
+                        }
+                    razem++;
+                }
+
+            p = pomniejsz(p, alfa);
+        }
+        assertEquals(razem, liczbaKafli);
+    }
+
+    @Test
+    public void liczbaPoziomow()
+    {
+        assertEquals(1, PiramidaKafli.liczbaPoziomow(1, 1));
+        assertEquals(2, PiramidaKafli.liczbaPoziomow(2, 1));
+        assertEquals(3, PiramidaKafli.liczbaPoziomow(3, 4));
+        assertEquals(4, PiramidaKafli.liczbaPoziomow(5, 5));
+        assertEquals(10, PiramidaKafli.liczbaPoziomow(300, 512));
+        assertEquals(11, PiramidaKafli.liczbaPoziomow(513, 2));
+    }
+
+    @Test
+    public void ukladIZawartoscKafli() throws Exception
+    {
+        int [][] male = { { 1, 2 }, { 4, 1 }, { 5, 0 }, { 3, 3 }, { 2, 0 } };
+        for (int [] kz : male)
+        {
+            BufferedImage obraz = losowy(13, 7, BufferedImage.TYPE_INT_RGB, kz[0]);
+            File dzi = new File(katalog.newFolder(), "m.dzi");
+            int n = PiramidaKafli.eksportuj(obraz, dzi, "png", kz[0], kz[1]);
+            sprawdzPiramide(dzi, obraz, kz[0], kz[1], n);
+        }
+
+        int [][] duze = { { 64, 1 }, { 100, 0 }, { 254, 1 }, { 40, 7 } };
+        for (int [] kz : duze)
+        {
+            BufferedImage obraz = losowy(301, 170, BufferedImage.TYPE_3BYTE_BGR, kz[0]);
+            File dzi = new File(katalog.newFolder(), "d.dzi");
+            int n = PiramidaKafli.eksportuj(obraz, dzi, "png", kz[0], kz[1]);
+            sprawdzPiramide(dzi, obraz, kz[0], kz[1], n);
+        }
+    }
+
+    @Test
+    public void jedenPiksel() throws Exception
+    {
+        BufferedImage obraz = losowy(1, 1, BufferedImage.TYPE_INT_RGB, 1);
+        File dzi = new File(katalog.getRoot(), "p.dzi");
+        assertEquals(1, PiramidaKafli.eksportuj(obraz, dzi, "png", 254, 1));
+        sprawdzPiramide(dzi, obraz, 254, 1, 1);
+    }
+
+    @Test
+    public void przezroczystosc() throws Exception
+    {
+        BufferedImage obraz = losowy(77, 45, BufferedImage.TYPE_INT_ARGB, 2);
+        File dzi = new File(katalog.getRoot(), "a.dzi");
+        int n = PiramidaKafli.eksportuj(obraz, dzi, "png", 16, 2);
+        sprawdzPiramide(dzi, obraz, 16, 2, n);
+    }
+
+    @Test
+    public void plikJakObrazWPamieci() throws Exception
+    {
+        BufferedImage obraz = losowy(301, 170, BufferedImage.TYPE_3BYTE_BGR, 3);
+        // PNG i JPEG w jednym przebiegu, BMP pasami
+        for (String format : new String [] { "png", "jpg", "bmp" })
+        {
+            File wejscie = katalog.newFile("wejscie." + format);
+            assertTrue(ImageIO.write(obraz, format, wejscie));
+            BufferedImage wzor = ImageIO.read(wejscie);
+
+            File dzi = new File(katalog.newFolder(), format + ".dzi");
+            int n = PiramidaKafli.eksportuj(wejscie, dzi, "png", 64, 1);
+            sprawdzPiramide(dzi, wzor, 64, 1, n);
+        }
+    }
+
+    @Test
+    public void zlyFormatKafli() throws Exception
+    {
+        try {
+            PiramidaKafli.eksportuj(losowy(4, 4, BufferedImage.TYPE_INT_RGB, 1),
+                    new File(katalog.getRoot(), "z.dzi"), "gif", 254, 1);
+            fail("przyjęto nieobsługiwany format kafli");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // oczekiwane
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package eu.finwe.obrazki;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Miary porównania obrazów: równość, największa różnica, PSNR i SSIM,
+ * sprawdzane z prostymi wzorami liczonymi piksel po pikselu
+ *
+ * @author jfk
+ * @since 0.4
+ */
+public class PorownanieTest {
+
+    private static final double DOKLADNOSC = 1e-9;
+
+    private static BufferedImage losowy(int w, int h, int typ, long ziarno)
+    {
+        Random los = new Random(ziarno);
+        BufferedImage ret = new BufferedImage(w, h, typ);
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                ret.setRGB(x, y, los.nextInt());
+        return ret;
+    }
+
+    /** obraz b z szumem o amplitudzie do amplituda dodanym do a */
+    private static BufferedImage zaszumiony(BufferedImage a, int amplituda, long ziarno)
+    {
+        Random los = new Random(ziarno);
+        BufferedImage ret = new BufferedImage(a.getWidth(), a.getHeight(), a.getType());
+        for (int y = 0; y < a.getHeight(); y++)
+            for (int x = 0; x < a.getWidth(); x++)
+            {
+                int p = a.getRGB(x, y);
+                int q = p & 0xff000000;
+                for (int s = 0; s < 24; s += 8)
+                {
+                    int v = ((p >> s) & 0xff) + los.nextInt(2 * amplituda + 1) - amplituda;
+                    q |= Math.max(0, Math.min(255, v)) << s;
+                }
+                ret.setRGB(x, y, q);
+            }
+        return ret;
+    }
+
+    private static double jasnosc(int p)
+    {
+        return (0.299 * ((p >> 16) & 0xff) + 0.587 * ((p >> 8) & 0xff) + 0.114 * (p & 0xff)) / 255;
+    }
+
+    /** PSNR pasm R, G, B wprost ze wzoru */
+    private static double psnr(BufferedImage a, BufferedImage b)
+    {
+        double kw = 0;
+        for (int y = 0; y < a.getHeight(); y++)
+            for (int x = 0; x < a.getWidth(); x++)
+            {
+                int p = a.getRGB(x, y);
+                int q = b.getRGB(x, y);
+                for (int s = 0; s < 24; s += 8)
+                {
+                    double e = (((p >> s) & 0xff) - ((q >> s) & 0xff)) / 255.0;
+                    kw += e * e;
+                }
+            }
+        double mse = kw / (3.0 * a.getWidth() * a.getHeight());
+        return 10 * Math.log10(1 / mse);
+    }
+
+    /** SSIM jasności w kaflach 8x8, średnia ważona liczbą pikseli kafla */
+    private static double ssim(BufferedImage a, BufferedImage b)
+    {
+        int w = a.getWidth();
+        int h = a.getHeight();
+        double suma = 0;
+        for (int ky = 0; ky < h; ky += 8)
+            for (int kx = 0; kx < w; kx += 8)
+            {
+                double sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+                int ile = 0;
+                for (int y = ky; y < Math.min(h, ky + 8); y++)
+                    for (int x = kx; x < Math.min(w, kx + 8); x++)
+                    {
+                        double ya = jasnosc(a.getRGB(x, y));
+                        double yb = jasnosc(b.getRGB(x, y));
+                        sa += ya;
+                        sb += yb;
+                        saa += ya * ya;
+                        sbb += yb * yb;
+                        sab += ya * yb;
+                        ile++;
+                    }
+                double ma = sa / ile, mb = sb / ile;
+                double va = Math.max(0, saa / ile - ma * ma);
+                double vb = Math.max(0, sbb / ile - mb * mb);
+                double kow = sab / ile - ma * mb;
+                double c1 = 0.01 * 0.01, c2 = 0.03 * 0.03;
+                suma += ile * ((2 * ma * mb + c1) * (2 * kow + c2))
+                        / ((ma * ma + mb * mb + c1) * (va + vb + c2));
+            }
+        return suma / (w * h);
+    }
+
+    @Test
+    public void identyczne()
+    {
+        BufferedImage a = losowy(123, 77, BufferedImage.TYPE_INT_RGB, 1);
+        Porownanie p = Porownanie.licz(a, Util.kopiuj(a));
+
+        assertTrue(Porownanie.rowne(a, Util.kopiuj(a)));
+        assertTrue(p.rowne());
+        assertEquals(0, p.maksRoznica());
+        assertEquals(0, p.mse(), 0);
+        assertEquals(Double.POSITIVE_INFINITY, p.psnr(), 0);
+        assertEquals(1, p.ssim(), DOKLADNOSC);
+    }
+
+    @Test
+    public void jedenPiksel()
+    {
+        BufferedImage a = losowy(64, 48, BufferedImage.TYPE_3BYTE_BGR, 2);
+        BufferedImage b = Util.kopiuj(a);
+        // ostatni piksel - różnica w ostatnim sprawdzanym wierszu
+        int p = a.getRGB(63, 47);
+        int r = (p >> 16) & 0xff;
+        int nowe = (r < 128) ? r + 10 : r - 10;
+        b.setRGB(63, 47, (p & 0xff00ffff) | (nowe << 16));
+
+        assertFalse(Porownanie.rowne(a, b));
+        Porownanie wynik = Porownanie.licz(a, b);
+        assertFalse(wynik.rowne());
+        assertEquals(10, wynik.maksRoznica());
+        assertEquals((10 / 255.0) * (10 / 255.0) / (64 * 48 * 3), wynik.mse(), DOKLADNOSC);
+        assertEquals(psnr(a, b), wynik.psnr(), DOKLADNOSC);
+    }
+
+    @Test
+    public void psnrISsimZeWzoru()
+    {
+        // wymiary niebędące wielokrotnością kafla 8x8
+        for (int typ : new int [] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_INT_BGR })
+        {
+            BufferedImage a = losowy(301, 203, typ, 3);
+            BufferedImage b = zaszumiony(a, 12, 4);
+            Porownanie wynik = Porownanie.licz(a, b);
+
+            assertEquals(psnr(a, b), wynik.psnr(), 1e-6);
+            assertEquals(ssim(a, b), wynik.ssim(), 1e-6);
+            assertTrue(wynik.maksRoznica() <= 12);
+        }
+    }
+
+    @Test
+    public void rozneModeleTeSameKolory()
+    {
+        BufferedImage a = losowy(90, 70, BufferedImage.TYPE_INT_RGB, 5);
+        BufferedImage b = new BufferedImage(90, 70, BufferedImage.TYPE_3BYTE_BGR);
+        b.getGraphics().drawImage(a, 0, 0, null);
+
+        assertTrue(Porownanie.rowne(a, b));
+        assertEquals(0, Porownanie.licz(a, b).maksRoznica());
+    }
+
+    @Test
+    public void alfaLiczySieTylkoDoMaksRoznicy()
+    {
+        BufferedImage a = losowy(40, 30, BufferedImage.TYPE_INT_ARGB, 6);
+        BufferedImage b = Util.kopiuj(a);
+        b.setRGB(5, 5, (a.getRGB(5, 5) & 0x00ffffff) | ((~a.getRGB(5, 5)) & 0xff000000));
+
+        Porownanie wynik = Porownanie.licz(a, b);
+        assertFalse(Porownanie.rowne(a, b));
+        assertEquals(Math.abs((a.getRGB(5, 5) >>> 24) - (b.getRGB(5, 5) >>> 24)),
+                wynik.maksRoznica());
+        assertEquals(Double.POSITIVE_INFINITY, wynik.psnr(), 0);
+    }
+
+    @Test
+    public void paletyTeSameIndeksyRozneKolory()
+    {
+        int [] kolory = { 0xff000000, 0xffffffff };
+        int [] odwrocone = { 0xffffffff, 0xff000000 };
+        BufferedImage a = new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_BINARY,
+                new IndexColorModel(1, 2, kolory, 0, false, -1, DataBuffer.TYPE_BYTE));
+        BufferedImage b = new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_BINARY,
+                new IndexColorModel(1, 2, odwrocone, 0, false, -1, DataBuffer.TYPE_BYTE));
+
+        // te same (zerowe) indeksy, ale czarny i biały obraz
+        assertFalse(Porownanie.rowne(a, b));
+        assertEquals(255, Porownanie.licz(a, b).maksRoznica());
+    }
+
+    @Test
+    public void widokiFragmentow()
+    {
+        BufferedImage a = losowy(100, 100, BufferedImage.TYPE_INT_RGB, 7);
+        BufferedImage b = new BufferedImage(120, 130, BufferedImage.TYPE_INT_RGB);
+        b.getGraphics().drawImage(a, 20, 30, null);
+
+        assertTrue(Porownanie.rowne(Util.wytnij(a, 10, 10, 50, 40),
+                Util.wytnij(b, 30, 40, 50, 40)));
+        assertFalse(Porownanie.rowne(Util.wytnij(a, 10, 10, 50, 40),
+                Util.wytnij(b, 31, 40, 50, 40)));
+    }
+
+    @Test
+    public void rozneWymiary()
+    {
+        BufferedImage a = losowy(10, 10, BufferedImage.TYPE_INT_RGB, 8);
+        BufferedImage b = losowy(10, 11, BufferedImage.TYPE_INT_RGB, 8);
+
+        assertFalse(Porownanie.rowne(a, b));
+        try {
+            Porownanie.licz(a, b);
+            fail("porównano obrazy o różnych wymiarach");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // oczekiwane
+        }
+    }
+}